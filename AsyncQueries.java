@@ -0,0 +1,85 @@
+/*
+ * Asynchronous queries on pooled connections
+ * ==========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * This class runs read-only queries that do not depend on each other at
+ * the same time, each on its own pooled connection, so a caller waiting
+ * for all of them waits about as long as for the slowest one instead of
+ * for the sum of their round trips.
+ *
+ * Every query runs in its own autocommit transaction.  Checks that must
+ * see the same snapshot as a write that follows them belong in that
+ * write's unit of work instead, combined into one statement where they
+ * can be.
+ *
+ */
+public class AsyncQueries{
+	private final ConnectionPool pool;
+	private final Executor executor;
+
+	/**
+	 * @param pool where the connections are borrowed from; its size bounds
+	 *             how many of the queries actually run at once
+	 * @param executor the threads that wait for the database
+	 */
+	public AsyncQueries(ConnectionPool pool, Executor executor){
+		this.pool = pool;
+		this.executor = executor;
+	}
+
+	/**
+	 * Method to start a query.
+	 *
+	 * @return the pending rows; completes exceptionally with the
+	 *         SQLException when the query failed
+	 */
+	public CompletableFuture<List<List<String>>> query(final String query, final Object... args){
+		return CompletableFuture.supplyAsync(new Supplier<List<List<String>>>(){
+			public List<List<String>> get(){
+				MechanicShop esql = null;
+				try{
+					esql = pool.acquire();
+					return esql.executeQueryAndReturnResult(query, args);
+				}catch(SQLException e){
+					throw new CompletionException(e);
+				}finally{
+					pool.release(esql);
+				}
+			}
+		}, this.executor);
+	}
+
+	/**
+	 * Method to wait for a query.
+	 *
+	 * @return the result of the query
+	 * @throws java.sql.SQLException the exception the query failed with
+	 */
+	public static <T> T join(CompletableFuture<T> future) throws SQLException {
+		try{
+			return future.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a query");
+		}catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof SQLException) throw (SQLException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new SQLException(cause);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Batch replay of MechanicShop operations
+ * =======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class replays a script of operations, one per line in the format
+ * of ShopCommands, e.g. to backfill a day of service requests from
+ * another system.  Blank lines and lines starting with # are skipped.
+ *
+ * Every operation runs through the same validation as the menu.  The
+ * operations are committed in groups of groupSize to save a commit per
+ * row; each runs under its own savepoint, so an operation that fails is
+ * rolled back alone and reported while the rest of its group still
+ * commits.  Report operations are run and timed but their rows are
+ * discarded.
+ *
+ * Groups run at SERIALIZABLE, the strictest level any operation asks
+ * for, since an operation joins the group's transaction instead of
+ * starting its own (see UnitOfWork); AddCustomer and AddMechanic rely on
+ * it for their duplicate checks.  A group the database cannot serialize
+ * fails to commit and all of its operations are reported as failed.  The
+ * cache and index updates of the operations wait for the group's commit.
+ *
+ */
+public class BatchRunner{
+	private final MechanicShop esql;
+	private final int groupSize;
+	//per operation name: { succeeded, failed, nanoseconds }
+	private final Map<String, long[]> stats = new TreeMap<String, long[]>(String.CASE_INSENSITIVE_ORDER);
+	//names of the operations of the open group, to count them as failed if it cannot commit
+	private final List<String> pending = new ArrayList<String>();
+	private long succeeded = 0;
+	private long failed = 0;
+	private long commits = 0;
+
+	/**
+	 * @param esql the connection to run the operations on
+	 * @param groupSize the number of operations per transaction
+	 */
+	public BatchRunner(MechanicShop esql, int groupSize){
+		if(groupSize <= 0) throw new IllegalArgumentException("group size must be positive");
+		this.esql = esql;
+		this.groupSize = groupSize;
+	}
+
+	/**
+	 * Method to replay a script file.
+	 *
+	 * @param file the script, or "-" for standard in
+	 * @return true when every operation succeeded
+	 * @throws java.lang.Exception when the script cannot be read
+	 */
+	public boolean run(String file) throws Exception {
+		Reader reader = file.equals("-")
+			? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+			: new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+		try{
+			return run(reader);
+		}finally{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Method to replay a script, print every failure as it happens and a
+	 * summary at the end.
+	 *
+	 * @param script the operations, one per line
+	 * @return true when every operation succeeded
+	 * @throws java.io.IOException when the script cannot be read
+	 * @throws java.sql.SQLException when the transaction cannot be managed
+	 */
+	public boolean run(Reader script) throws IOException, SQLException {
+		Connection conn = this.esql.getConnection();
+		BufferedReader in = new BufferedReader(script, 1 << 16);
+		boolean autoCommit = conn.getAutoCommit();
+		int isolation = conn.getTransactionIsolation();
+		conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+		conn.setAutoCommit(false);
+		long start = System.nanoTime();
+		try{
+			String line;
+			int lineNumber = 0;
+			while((line = in.readLine()) != null){
+				++lineNumber;
+				if(line.trim().isEmpty() || line.startsWith("#")) continue;
+				execute(conn, lineNumber, ShopCommands.parse(line));
+				if(this.pending.size() >= this.groupSize) commit(conn, lineNumber);
+			}//end while
+			commit(conn, lineNumber);
+		}finally{
+			if(!this.pending.isEmpty()) conn.rollback();
+			UnitOfWork.dropActions(this.esql, 0);
+			conn.setAutoCommit(autoCommit);
+			conn.setTransactionIsolation(isolation);
+		}
+		printSummary(System.nanoTime() - start);
+		return this.failed == 0;
+	}//end run
+
+	private void execute(Connection conn, int lineNumber, String[] op) throws SQLException {
+		String name = op[0].trim();
+		long[] stat = this.stats.get(name);
+		if(stat == null){
+			stat = new long[3];
+			this.stats.put(name, stat);
+		}
+		Savepoint savepoint = conn.setSavepoint();
+		int actions = UnitOfWork.pendingActions(this.esql);
+		long start = System.nanoTime();
+		try{
+			ShopCommands.execute(this.esql, op);
+			conn.releaseSavepoint(savepoint);
+			this.pending.add(name);
+			++stat[0];
+			++this.succeeded;
+		}catch(Exception e){
+			conn.rollback(savepoint);
+			UnitOfWork.dropActions(this.esql, actions);
+			++stat[1];
+			++this.failed;
+			System.err.println("line " + lineNumber + ": " + name + ": " + String.valueOf(e.getMessage()).trim());
+		}finally{
+			stat[2] += System.nanoTime() - start;
+		}
+	}//end execute
+
+	private void commit(Connection conn, int lineNumber) throws SQLException {
+		if(this.pending.isEmpty()) return;
+		try{
+			conn.commit();
+			++this.commits;
+			UnitOfWork.committed(this.esql);
+		}catch(SQLException e){
+			conn.rollback();
+			UnitOfWork.dropActions(this.esql, 0);
+			System.err.println("line " + lineNumber + ": commit of " + this.pending.size() + " operation(s) failed: " + e.getMessage());
+			for(String name : this.pending){
+				long[] stat = this.stats.get(name);
+				--stat[0];
+				++stat[1];
+			}
+			this.succeeded -= this.pending.size();
+			this.failed += this.pending.size();
+		}
+		this.pending.clear();
+	}//end commit
+
+	private void printSummary(long elapsed){
+		System.out.println(String.format("%-48s %8s %8s %10s", "operation", "ok", "failed", "avg ms"));
+		for(Map.Entry<String, long[]> e : this.stats.entrySet()){
+			long[] stat = e.getValue();
+			System.out.println(String.format("%-48s %8d %8d %10.3f", e.getKey(), stat[0], stat[1], stat[2] / 1e6 / Math.max(1, stat[0] + stat[1])));
+		}
+		long total = this.succeeded + this.failed;
+		System.out.println(String.format("total %d operation(s) in %.3fs (%.0f op/s), %d ok, %d failed, %d commit(s) of up to %d",
+			total, elapsed / 1e9, total / Math.max(elapsed / 1e9, 1e-9), this.succeeded, this.failed, this.commits, this.groupSize));
+	}
+
+	public long getSucceeded(){
+		return this.succeeded;
+	}
+
+	public long getFailed(){
+		return this.failed;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Bloom filter over string keys
+ * =============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * This class answers "might this key be in the set?" in a few bits per
+ * key: a negative answer is certain, a positive one is wrong with about
+ * the false positive rate the filter was sized for.
+ *
+ * Each key sets k bits chosen by double hashing of one 64-bit hash of its
+ * characters.  The filter only grows by add and is not thread safe.
+ *
+ */
+public class BloomFilter{
+	private final long[] bits;
+	private final long numBits;
+	private final int numHashes;
+	private long added = 0;
+
+	/**
+	 * Constructs a filter sized for an expected number of keys.
+	 *
+	 * @param expectedKeys the number of keys that will be added
+	 * @param falsePositiveRate the rate of wrong positives at that size,
+	 *        e.g. 0.01
+	 */
+	public BloomFilter(long expectedKeys, double falsePositiveRate){
+		if(falsePositiveRate <= 0 || falsePositiveRate >= 1) throw new IllegalArgumentException("false positive rate must be between 0 and 1");
+		long n = Math.max(1, expectedKeys);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		m = Math.max(64, (m + 63) / 64 * 64);
+		this.bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, m / 64)];
+		this.numBits = this.bits.length * 64L;
+		this.numHashes = (int) Math.max(1, Math.min(16, Math.round((double) this.numBits / n * Math.log(2))));
+	}
+
+	/**
+	 * Method to add a key.
+	 */
+	public void add(String key){
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for(int i = 1; i <= this.numHashes; ++i){
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this.numBits;
+			this.bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+		++this.added;
+	}
+
+	/**
+	 * @return false when the key was certainly never added, true when it
+	 *         may have been
+	 */
+	public boolean mightContain(String key){
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for(int i = 1; i <= this.numHashes; ++i){
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this.numBits;
+			if((this.bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the false positive rate expected for the keys added so far
+	 */
+	public double expectedFalsePositiveRate(){
+		return Math.pow(1 - Math.exp(-(double) this.numHashes * this.added / this.numBits), this.numHashes);
+	}
+
+	public long getNumBits(){
+		return this.numBits;
+	}
+
+	public int getNumHashes(){
+		return this.numHashes;
+	}
+
+	//FNV-1a over the characters, then the murmur3 finalizer to spread the bits
+	private static long hash(String key){
+		long h = 0xcbf29ce484222325L;
+		for(int i = 0; i < key.length(); ++i){
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
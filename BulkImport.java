@@ -0,0 +1,312 @@
+/*
+ * Deduplicating import of customers, mechanics and cars
+ * =====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class imports new customers, mechanics or cars from a csv file
+ * (the fields AddCustomer, AddMechanic and AddCar prompt for, in that
+ * order, without ids) and skips the records that already exist, without
+ * the duplicate check round trip those operations make per record.
+ *
+ * The keys of the table (every field for customers and mechanics, the VIN
+ * for cars) are first read into a Bloom filter.  A record the filter has
+ * never seen is new for certain.  The few it may have seen are confirmed
+ * against the database in one query per CONFIRM_CHUNK of them, on the
+ * indexed last name or VIN.  Duplicates within the file are caught
+ * exactly, by their key.  The new records are then inserted in batches,
+ * one transaction per group.
+ *
+ * The filter is a snapshot taken when the import starts: a record added
+ * by another process during the import is not seen, as with the load
+ * command.  VINs stay protected by the primary key of Car.
+ *
+ */
+public class BulkImport{
+	static final double FALSE_POSITIVE_RATE = 0.01;
+	static final int CONFIRM_CHUNK = 256;
+
+	//what is imported into each table: the fields, the key and how to confirm it
+	static final Kind CUSTOMER = new Kind("customer", "Customer", 4, 4, -1, 1, MechanicShop.customerIds,
+		"SELECT fname, lname, phone, address FROM Customer", "lname", "INSERT INTO Customer VALUES(?,?,?,?,?)");
+	static final Kind MECHANIC = new Kind("mechanic", "Mechanic", 3, 3, 2, 1, MechanicShop.mechanicIds,
+		"SELECT fname, lname, experience FROM Mechanic", "lname", "INSERT INTO Mechanic VALUES(?,?,?,?)");
+	static final Kind CAR = new Kind("car", "Car", 4, 1, 3, 0, null,
+		"SELECT vin FROM Car", "vin", "INSERT INTO Car VALUES(?,?,?,?)");
+
+	/**
+	 * One importable table.
+	 */
+	static final class Kind{
+		final String name;
+		final String table;
+		final int fields;
+		//the leading fields of a record that make up its key
+		final int keyFields;
+		//the field holding an integer, -1 for none
+		final int intField;
+		//the field compared to confirmColumn
+		final int confirmField;
+		//allocates the id inserted before the fields, null when the key is the id
+		final IdAllocator ids;
+		final String keys;
+		final String confirmColumn;
+		final String insert;
+
+		Kind(String name, String table, int fields, int keyFields, int intField, int confirmField, IdAllocator ids, String keys, String confirmColumn, String insert){
+			this.name = name;
+			this.table = table;
+			this.fields = fields;
+			this.keyFields = keyFields;
+			this.intField = intField;
+			this.confirmField = confirmField;
+			this.ids = ids;
+			this.keys = keys;
+			this.confirmColumn = confirmColumn;
+			this.insert = insert;
+		}
+
+		static Kind of(String name) throws Exception {
+			for(Kind kind : new Kind[]{ CUSTOMER, MECHANIC, CAR })
+				if(kind.name.equalsIgnoreCase(name)) return kind;
+			throw new Exception("Unknown import: " + name + "; expected customer, mechanic or car");
+		}
+
+		//the typed values of a record, id excluded
+		Object[] values(String[] fields){
+			Object[] values = new Object[fields.length];
+			for(int i = 0; i < fields.length; ++i)
+				values[i] = i == this.intField ? (Object) Integer.valueOf(fields[i]) : fields[i];
+			return values;
+		}
+	}
+
+	private final MechanicShop esql;
+	private final Kind kind;
+	private final int groupSize;
+	private BloomFilter filter;
+	//key of every record of the file so far -> its line
+	private final Map<String, Integer> seen = new HashMap<String, Integer>();
+	private long lines = 0;
+	private long inserted = 0;
+	private long inFile = 0;
+	private long existing = 0;
+	private long candidates = 0;
+	private long confirmQueries = 0;
+	private long malformed = 0;
+
+	/**
+	 * @param esql the connection to import with
+	 * @param kind customer, mechanic or car
+	 * @param groupSize the number of records per transaction
+	 */
+	public BulkImport(MechanicShop esql, String kind, int groupSize) throws Exception {
+		if(groupSize <= 0) throw new IllegalArgumentException("group size must be positive");
+		this.esql = esql;
+		this.kind = Kind.of(kind);
+		this.groupSize = groupSize;
+	}
+
+	/**
+	 * Method to import a csv file.
+	 *
+	 * @param file the records, or "-" for standard in
+	 * @return the number of records inserted
+	 * @throws java.lang.Exception when the file cannot be read or a group
+	 *         cannot be inserted; the groups before it stay committed
+	 */
+	public long run(String file) throws Exception {
+		Reader reader = file.equals("-")
+			? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+			: new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+		try{
+			return run(reader);
+		}finally{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Method to import records, print every skipped one and a summary.
+	 */
+	public long run(Reader records) throws Exception {
+		long start = System.nanoTime();
+		buildFilter();
+		long built = System.nanoTime();
+		BufferedReader in = new BufferedReader(records, 1 << 16);
+		List<String[]> group = new ArrayList<String[]>(this.groupSize);
+		List<Integer> groupLines = new ArrayList<Integer>(this.groupSize);
+		String line;
+		int lineNumber = 0;
+		while((line = in.readLine()) != null){
+			++lineNumber;
+			if(line.trim().isEmpty() || line.startsWith("#")) continue;
+			++this.lines;
+			String[] fields;
+			try{
+				fields = BulkLoader.splitLine(line, this.kind.fields);
+				this.kind.values(fields);
+			}catch(IllegalArgumentException e){
+				++this.malformed;
+				System.err.println("line " + lineNumber + ": " + e.getMessage());
+				continue;
+			}
+			String key = key(fields);
+			Integer first = this.seen.get(key);
+			if(first != null){
+				++this.inFile;
+				System.err.println("line " + lineNumber + ": duplicate of line " + first);
+				continue;
+			}
+			this.seen.put(key, lineNumber);
+			group.add(fields);
+			groupLines.add(lineNumber);
+			if(group.size() >= this.groupSize) flush(group, groupLines);
+		}//end while
+		flush(group, groupLines);
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("%s import: %d record(s) in %.3fs (filter of %d bits, %d hashes built in %.3fs), %d inserted, %d duplicate(s) in the file, %d existing, %d malformed",
+			this.kind.name, this.lines, elapsed / 1e9, this.filter.getNumBits(), this.filter.getNumHashes(), (built - start) / 1e9,
+			this.inserted, this.inFile, this.existing, this.malformed));
+		System.out.println(String.format("%d candidate(s) confirmed in %d query(ies), %d false positive(s)",
+			this.candidates, this.confirmQueries, this.candidates - this.existing));
+		return this.inserted;
+	}//end run
+
+	/**
+	 * Method to read the keys of the table into the filter.
+	 */
+	private void buildFilter() throws SQLException {
+		int rows = this.esql.executeQueryForInt("SELECT COUNT(*) FROM " + this.kind.table, MechanicShop.NO_ARGS);
+		final BloomFilter filter = new BloomFilter(rows, FALSE_POSITIVE_RATE);
+		final int keyFields = this.kind.keyFields;
+		this.esql.executeQueryForEach(this.kind.keys, new RowHandler(){
+			public void handle(ResultCursor row) throws SQLException {
+				String[] fields = new String[keyFields];
+				for(int i = 0; i < keyFields; ++i) fields[i] = row.getString(i + 1);
+				filter.add(key(fields, keyFields));
+			}
+		}, MechanicShop.NO_ARGS);
+		this.filter = filter;
+	}
+
+	/**
+	 * Method to drop the records of a group that exist in the table and
+	 * insert the rest in one transaction.
+	 */
+	private void flush(List<String[]> group, List<Integer> groupLines) throws Exception {
+		if(group.isEmpty()) return;
+		List<String[]> maybe = new ArrayList<String[]>();
+		for(String[] fields : group)
+			if(this.filter.mightContain(key(fields))) maybe.add(fields);
+		this.candidates += maybe.size();
+		Set<String> found = confirm(maybe);
+		final List<Object[]> rows = new ArrayList<Object[]>(group.size());
+		for(int i = 0; i < group.size(); ++i){
+			String[] fields = group.get(i);
+			if(found.contains(key(fields))){
+				++this.existing;
+				System.err.println("line " + groupLines.get(i) + ": " + this.kind.name + " already exists");
+				continue;
+			}
+			rows.add(this.kind.values(fields));
+		}//end for
+		group.clear();
+		groupLines.clear();
+		if(rows.isEmpty()) return;
+		final Kind kind = this.kind;
+		final List<Integer> ids = UnitOfWork.run(this.esql, new UnitOfWork.Work<List<Integer>>(){
+			public List<Integer> run(MechanicShop esql) throws Exception {
+				List<Integer> ids = new ArrayList<Integer>(rows.size());
+				List<Object[]> batch = rows;
+				if(kind.ids != null){
+					//the id goes first, ahead of the values of the record
+					batch = new ArrayList<Object[]>(rows.size());
+					for(Object[] values : rows){
+						int id = kind.ids.next(esql);
+						ids.add(id);
+						Object[] args = new Object[values.length + 1];
+						args[0] = id;
+						System.arraycopy(values, 0, args, 1, values.length);
+						batch.add(args);
+					}
+				}
+				esql.executeBatch(kind.insert, batch);
+				return ids;
+			}
+		});
+		this.inserted += rows.size();
+		if(kind == CUSTOMER){
+			for(int i = 0; i < rows.size(); ++i){
+				Object[] c = rows.get(i);
+				CustomerIndex.added(ids.get(i), (String) c[0], (String) c[1], (String) c[2], (String) c[3]);
+			}
+		}
+	}//end flush
+
+	/**
+	 * Method to look the candidates up in the table.
+	 *
+	 * @return the keys of the candidates that exist
+	 */
+	private Set<String> confirm(List<String[]> maybe) throws SQLException {
+		final Set<String> found = new HashSet<String>();
+		if(maybe.isEmpty()) return found;
+		Set<String> values = new HashSet<String>();
+		for(String[] fields : maybe) values.add(fields[this.kind.confirmField]);
+		List<String> distinct = new ArrayList<String>(values);
+		//always CONFIRM_CHUNK placeholders, padded with a repeat, so the statement is prepared once
+		StringBuilder sql = new StringBuilder(this.kind.keys).append(" WHERE ").append(this.kind.confirmColumn).append(" IN (");
+		for(int i = 0; i < CONFIRM_CHUNK; ++i) sql.append(i == 0 ? "?" : ", ?");
+		sql.append(")");
+		final int keyFields = this.kind.keyFields;
+		for(int from = 0; from < distinct.size(); from += CONFIRM_CHUNK){
+			Object[] args = new Object[CONFIRM_CHUNK];
+			for(int i = 0; i < CONFIRM_CHUNK; ++i) args[i] = distinct.get(Math.min(from + i, distinct.size() - 1));
+			this.esql.executeQueryForEach(sql.toString(), new RowHandler(){
+				public void handle(ResultCursor row) throws SQLException {
+					String[] fields = new String[keyFields];
+					for(int i = 0; i < keyFields; ++i) fields[i] = row.getString(i + 1);
+					found.add(key(fields, keyFields));
+				}
+			}, args);
+			++this.confirmQueries;
+		}//end for
+		return found;
+	}
+
+	private String key(String[] fields){
+		return key(fields, this.kind.keyFields);
+	}
+
+	//the trimmed key fields, as the CHAR columns compare
+	private static String key(String[] fields, int keyFields){
+		StringBuilder key = new StringBuilder();
+		for(int i = 0; i < keyFields; ++i){
+			if(i > 0) key.append('\u001f');
+			key.append(fields[i] == null ? "" : fields[i].trim());
+		}
+		return key.toString();
+	}
+
+	public long getInserted(){
+		return this.inserted;
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Bulk CSV loader for the MechanicShop database
+ * =============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Method;
+
+/**
+ * This class streams the seed files in data/ into their tables.  It uses the
+ * PostgreSQL COPY protocol when the driver offers it and otherwise falls back
+ * to JDBC batched prepared inserts.
+ *
+ */
+public class BulkLoader{
+	//tables in foreign key order together with the file that seeds them
+	static final String[][] TABLES = {
+		{"Customer", "customer.csv"},
+		{"Mechanic", "mechanic.csv"},
+		{"Car", "car.csv"},
+		{"Owns", "owns.csv"},
+		{"Service_Request", "service_request.csv"},
+		{"Closed_Request", "closed_request.csv"}
+	};
+
+	private final Connection _connection;
+	private int batchSize = 1000;
+	private int commitInterval = 10000;
+	private boolean useCopy = true;
+
+	public BulkLoader(Connection connection){
+		this._connection = connection;
+	}
+
+	public void setBatchSize(int batchSize){
+		if(batchSize <= 0) throw new IllegalArgumentException("batch size must be positive");
+		this.batchSize = batchSize;
+	}
+
+	public void setCommitInterval(int commitInterval){
+		if(commitInterval <= 0) throw new IllegalArgumentException("commit interval must be positive");
+		this.commitInterval = commitInterval;
+	}
+
+	public void setUseCopy(boolean useCopy){
+		this.useCopy = useCopy;
+	}
+
+	/**
+	 * Method to load every seed file found in the given directory, in
+	 * foreign key order, and report the load rate of each table.
+	 *
+	 * @param dir the directory holding the csv files
+	 * @return the total number of rows loaded
+	 * @throws java.sql.SQLException when a load failed
+	 * @throws java.io.IOException when a file could not be read
+	 */
+	public long loadAll(File dir) throws SQLException, IOException {
+		long total = 0;
+		for(String[] table : TABLES){
+			File file = new File(dir, table[1]);
+			if(!file.exists()){
+				System.out.println("Skipping " + table[0] + ": " + file + " not found");
+				continue;
+			}
+			total += loadTable(table[0], file);
+		}
+		return total;
+	}//end loadAll
+
+	/**
+	 * Method to load a single csv file into a table and print the number of
+	 * rows per second achieved.
+	 *
+	 * @param table the target table
+	 * @param file the csv file
+	 * @return the number of rows loaded
+	 * @throws java.sql.SQLException when the load failed
+	 * @throws java.io.IOException when the file could not be read
+	 */
+	public long loadTable(String table, File file) throws SQLException, IOException {
+		int[] types = columnTypes(table);
+		long start = System.nanoTime();
+		long rows;
+		Object copyApi = this.useCopy ? copyApi() : null;
+		if(copyApi != null){
+			rows = copyTable(copyApi, table, file, types);
+		}else{
+			rows = batchTable(table, file, types);
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%-16s %8d rows in %7.3fs (%.0f rows/s, %s)",
+			table, rows, secs, rows / Math.max(secs, 1e-9), copyApi != null ? "COPY" : "batch"));
+		return rows;
+	}//end loadTable
+
+	/**
+	 * Method to find the JDBC types of the columns of a table without
+	 * fetching any row.
+	 */
+	private int[] columnTypes(String table) throws SQLException {
+		Statement stmt = this._connection.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT * FROM " + table + " WHERE 1 = 0");
+			ResultSetMetaData rsmd = rs.getMetaData();
+			int[] types = new int[rsmd.getColumnCount()];
+			for(int i = 0; i < types.length; i++)
+				types[i] = rsmd.getColumnType(i + 1);
+			return types;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Method to obtain the driver's CopyManager.  It is looked up reflectively
+	 * so that the loader still compiles and runs against drivers that do not
+	 * offer COPY.
+	 *
+	 * @return the CopyManager, or null when COPY is unavailable
+	 */
+	private Object copyApi(){
+		try{
+			Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+			if(!this._connection.isWrapperFor(pgConnection)) return null;
+			Object pg = this._connection.unwrap(pgConnection);
+			return pgConnection.getMethod("getCopyAPI").invoke(pg);
+		}catch(Exception e){
+			return null;
+		}
+	}
+
+	private long copyTable(Object copyApi, String table, File file, int[] types) throws SQLException, IOException {
+		CopyReader reader = new CopyReader(new BufferedReader(new FileReader(file), 1 << 16), types);
+		try{
+			Method copyIn = copyApi.getClass().getMethod("copyIn", String.class, Reader.class);
+			copyIn.invoke(copyApi, "COPY " + table + " FROM STDIN WITH (FORMAT csv)", reader);
+			return reader.rows;
+		}catch(java.lang.reflect.InvocationTargetException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof SQLException) throw (SQLException) cause;
+			if(cause instanceof IOException) throw (IOException) cause;
+			throw new SQLException("COPY into " + table + " failed", cause);
+		}catch(ReflectiveOperationException e){
+			throw new SQLException("COPY into " + table + " failed", e);
+		}finally{
+			reader.close();
+		}
+	}
+
+	private long batchTable(String table, File file, int[] types) throws SQLException, IOException {
+		StringBuilder sql = new StringBuilder("INSERT INTO " + table + " VALUES (");
+		for(int i = 0; i < types.length; i++)
+			sql.append(i == 0 ? "?" : ", ?");
+		sql.append(")");
+
+		boolean autoCommit = this._connection.getAutoCommit();
+		this._connection.setAutoCommit(false);
+		PreparedStatement stmt = this._connection.prepareStatement(sql.toString());
+		BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16);
+		long rows = 0;
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				String[] fields = splitLine(line, types.length);
+				if(fields == null) continue;
+				for(int i = 0; i < types.length; i++)
+					bind(stmt, i + 1, types[i], fields[i]);
+				stmt.addBatch();
+				++rows;
+				if(rows % this.batchSize == 0) stmt.executeBatch();
+				if(rows % this.commitInterval == 0){
+					stmt.executeBatch();
+					this._connection.commit();
+				}
+			}//end while
+			stmt.executeBatch();
+			this._connection.commit();
+		}catch(SQLException e){
+			this._connection.rollback();
+			throw e;
+		}finally{
+			reader.close();
+			stmt.close();
+			this._connection.setAutoCommit(autoCommit);
+		}
+		return rows;
+	}
+
+	private static void bind(PreparedStatement stmt, int index, int type, String value) throws SQLException {
+		if(value.isEmpty() && type != Types.CHAR && type != Types.VARCHAR){
+			stmt.setNull(index, type);
+			return;
+		}
+		switch(type){
+			case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT:
+				stmt.setInt(index, Integer.parseInt(value)); break;
+			case Types.BIGINT:
+				stmt.setLong(index, Long.parseLong(value)); break;
+			case Types.NUMERIC: case Types.DECIMAL: case Types.REAL: case Types.DOUBLE: case Types.FLOAT:
+				stmt.setBigDecimal(index, new java.math.BigDecimal(value)); break;
+			case Types.DATE:
+				stmt.setDate(index, java.sql.Date.valueOf(isoDate(value))); break;
+			default:
+				stmt.setString(index, value);
+		}
+	}
+
+	/**
+	 * Method to split one csv line into its trimmed fields.  The seed files
+	 * carry no quoting but do have stray blanks after commas (e.g.
+	 * "Toyota, Prius").
+	 *
+	 * @return the fields, or null for a blank line
+	 */
+	static String[] splitLine(String line, int numCol){
+		if(line.trim().isEmpty()) return null;
+		String[] fields = new String[numCol];
+		int start = 0;
+		for(int i = 0; i < numCol; i++){
+			int end = i == numCol - 1 ? line.length() : line.indexOf(',', start);
+			if(end < 0) throw new IllegalArgumentException("Expected " + numCol + " fields: " + line);
+			fields[i] = line.substring(start, end).trim();
+			start = end + 1;
+		}
+		return fields;
+	}
+
+	/**
+	 * Method to turn a seed file date such as "5/20/2016 00:00" into its ISO
+	 * form "2016-05-20".
+	 */
+	static String isoDate(String value){
+		int space = value.indexOf(' ');
+		String date = space < 0 ? value : value.substring(0, space);
+		if(date.indexOf('/') < 0) return date;
+		String[] mdy = date.split("/");
+		return String.format("%s-%02d-%02d", mdy[2], Integer.parseInt(mdy[0]), Integer.parseInt(mdy[1]));
+	}
+
+	/**
+	 * Reader that turns the seed file, line by line, into the CSV that COPY
+	 * expects: trimmed fields, ISO dates and quoting where needed.
+	 */
+	private static class CopyReader extends Reader {
+		private final BufferedReader in;
+		private final int[] types;
+		private final StringBuilder buf = new StringBuilder();
+		private int pos = 0;
+		long rows = 0;
+
+		CopyReader(BufferedReader in, int[] types){
+			this.in = in;
+			this.types = types;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			while(this.pos >= this.buf.length()){
+				String line = this.in.readLine();
+				if(line == null) return -1;
+				String[] fields = splitLine(line, this.types.length);
+				if(fields == null) continue;
+				this.buf.setLength(0);
+				this.pos = 0;
+				for(int i = 0; i < fields.length; i++){
+					if(i > 0) this.buf.append(',');
+					String value = this.types[i] == Types.DATE && !fields[i].isEmpty() ? isoDate(fields[i]) : fields[i];
+					if(value.indexOf(',') >= 0 || value.indexOf('"') >= 0)
+						this.buf.append('"').append(value.replace("\"", "\"\"")).append('"');
+					else
+						this.buf.append(value);
+				}
+				this.buf.append('\n');
+				++this.rows;
+			}
+			int n = Math.min(len, this.buf.length() - this.pos);
+			this.buf.getChars(this.pos, this.pos + n, cbuf, off);
+			this.pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+	}
+}
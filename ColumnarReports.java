@@ -0,0 +1,498 @@
+/*
+ * Offline columnar reports
+ * ========================
+ *
+ * Answers reports 6 to 10 straight from the data/*.csv files, without a
+ * database.
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class loads the six seed tables into primitive column arrays and runs
+ * the five reports of the menu over them with hash joins and primitive
+ * aggregation.  Strings (VINs, names, makes, ...) are dictionary encoded to
+ * ints and dates are encoded as yyyymmdd ints.  Every report returns the
+ * same rows as its SQL counterpart in MechanicShop; verify checks this
+ * against a live database.
+ *
+ */
+public class ColumnarReports{
+	//shared dictionary of every string value
+	final Dictionary dict = new Dictionary();
+
+	//Customer
+	int[] custId, custFname, custLname, custPhone, custAddress;
+	//Mechanic
+	int[] mechId, mechFname, mechLname, mechExperience;
+	//Car
+	int[] carVin, carMake, carModel, carYear;
+	//Owns
+	int[] ownId, ownCustomer, ownVin;
+	//Service_Request
+	int[] srRid, srCustomer, srVin, srDate, srOdometer, srComplain;
+	//Closed_Request
+	int[] crWid, crRid, crMid, crDate, crComment, crBill;
+
+	/**
+	 * Method to load the seed files of a directory.
+	 *
+	 * @param dir the directory holding the csv files
+	 * @return the loaded tables
+	 * @throws java.io.IOException when a file could not be read
+	 */
+	public static ColumnarReports load(File dir) throws IOException {
+		ColumnarReports db = new ColumnarReports();
+		int[][] c = db.loadTable(new File(dir, "customer.csv"), "issss");
+		db.custId = c[0]; db.custFname = c[1]; db.custLname = c[2]; db.custPhone = c[3]; db.custAddress = c[4];
+		int[][] m = db.loadTable(new File(dir, "mechanic.csv"), "issi");
+		db.mechId = m[0]; db.mechFname = m[1]; db.mechLname = m[2]; db.mechExperience = m[3];
+		int[][] car = db.loadTable(new File(dir, "car.csv"), "sssi");
+		db.carVin = car[0]; db.carMake = car[1]; db.carModel = car[2]; db.carYear = car[3];
+		int[][] o = db.loadTable(new File(dir, "owns.csv"), "iis");
+		db.ownId = o[0]; db.ownCustomer = o[1]; db.ownVin = o[2];
+		int[][] sr = db.loadTable(new File(dir, "service_request.csv"), "iisdis");
+		db.srRid = sr[0]; db.srCustomer = sr[1]; db.srVin = sr[2]; db.srDate = sr[3]; db.srOdometer = sr[4]; db.srComplain = sr[5];
+		int[][] cr = db.loadTable(new File(dir, "closed_request.csv"), "iiidsi");
+		db.crWid = cr[0]; db.crRid = cr[1]; db.crMid = cr[2]; db.crDate = cr[3]; db.crComment = cr[4]; db.crBill = cr[5];
+		return db;
+	}//end load
+
+	/**
+	 * Method to read one csv file into int columns.  The layout string has
+	 * one letter per column: i for an int, s for a dictionary encoded string
+	 * and d for a date.  Chunks of the file are parsed in parallel; strings
+	 * are then encoded in file order so codes do not depend on the split.
+	 */
+	int[][] loadTable(File file, final String layout) throws IOException {
+		final int numCol = layout.length();
+		Chunk all = MappedCsvReader.read(file, numCol, new MappedCsvReader.ChunkParser<Chunk>(){
+			public Chunk newChunk(){
+				return new Chunk(layout);
+			}
+			public void row(Chunk acc, MappedCsvReader.Row row){
+				acc.ensureCapacity(acc.rows + 1);
+				for(int i = 0; i < numCol; i++){
+					switch(layout.charAt(i)){
+						case 'i': acc.ints[i][acc.rows] = row.getInt(i); break;
+						case 'd': acc.ints[i][acc.rows] = row.getDate(i); break;
+						default: acc.strings[i][acc.rows] = row.getString(i);
+					}
+				}
+				++acc.rows;
+			}
+			public Chunk merge(Chunk left, Chunk right){
+				return left.append(right);
+			}
+		});
+		int[][] cols = new int[numCol][];
+		for(int i = 0; i < numCol; i++){
+			if(layout.charAt(i) == 's'){
+				cols[i] = new int[all.rows];
+				for(int r = 0; r < all.rows; r++)
+					cols[i][r] = this.dict.encode(all.strings[i][r]);
+			}else{
+				cols[i] = Arrays.copyOf(all.ints[i], all.rows);
+			}
+		}
+		return cols;
+	}
+
+	/**
+	 * Rows parsed from one chunk of a csv file: int columns hold ints and
+	 * dates, String columns the values still to be dictionary encoded.
+	 * Each column has only the array its layout letter needs; the other is
+	 * null.
+	 */
+	static class Chunk{
+		int rows = 0;
+		int capacity = 64;
+		int[][] ints;
+		String[][] strings;
+
+		Chunk(String layout){
+			this.ints = new int[layout.length()][];
+			this.strings = new String[layout.length()][];
+			for(int i = 0; i < layout.length(); i++){
+				if(layout.charAt(i) == 's') this.strings[i] = new String[this.capacity];
+				else this.ints[i] = new int[this.capacity];
+			}
+		}
+
+		void ensureCapacity(int capacity){
+			if(capacity <= this.capacity) return;
+			this.capacity = Math.max(capacity, this.capacity * 2);
+			for(int i = 0; i < this.ints.length; i++){
+				if(this.ints[i] != null) this.ints[i] = Arrays.copyOf(this.ints[i], this.capacity);
+				else this.strings[i] = Arrays.copyOf(this.strings[i], this.capacity);
+			}
+		}
+
+		Chunk append(Chunk other){
+			ensureCapacity(this.rows + other.rows);
+			for(int i = 0; i < this.ints.length; i++){
+				if(this.ints[i] != null) System.arraycopy(other.ints[i], 0, this.ints[i], this.rows, other.rows);
+				else System.arraycopy(other.strings[i], 0, this.strings[i], this.rows, other.rows);
+			}
+			this.rows += other.rows;
+			return this;
+		}
+	}
+
+	/**
+	 * Method to print an encoded date the way PostgreSQL prints a DATE.
+	 */
+	static String formatDate(int date){
+		return String.format("%04d-%02d-%02d", date / 10000, date / 100 % 100, date % 100);
+	}
+
+	/**
+	 * Report 6: fname, lname, date, comment and bill of every closed request
+	 * billed under 100.
+	 */
+	public List<List<String>> customersWithBillLessThan100(){
+		IntIndex requests = new IntIndex(this.srRid);
+		IntIndex customers = new IntIndex(this.custId);
+		List<List<String>> result = new ArrayList<List<String>>();
+		for(int i = 0; i < this.crRid.length; i++){
+			if(this.crBill[i] >= 100) continue;
+			int s = requests.get(this.crRid[i]);
+			if(s < 0) continue;
+			int c = customers.get(this.srCustomer[s]);
+			if(c < 0) continue;
+			result.add(Arrays.asList(this.dict.decode(this.custFname[c]), this.dict.decode(this.custLname[c]),
+				formatDate(this.crDate[i]), this.dict.decode(this.crComment[i]), String.valueOf(this.crBill[i])));
+		}
+		return result;
+	}
+
+	/**
+	 * Report 7, with the semantics of its SQL: distinct names of the car
+	 * owners whose id equals the number of cars of some customer owning
+	 * more than 20 cars.
+	 */
+	public List<List<String>> customersWithMoreThan20Cars(){
+		IntIndex counts = new IntIndex(this.ownCustomer.length);
+		for(int i = 0; i < this.ownCustomer.length; i++)
+			counts.add(this.ownCustomer[i], 1);
+		IntIndex matchingIds = new IntIndex(16);
+		for(int slot = 0; slot < counts.capacity(); slot++){
+			if(counts.isUsed(slot) && counts.valueAt(slot) > 20)
+				matchingIds.put(counts.valueAt(slot), 1);
+		}
+		IntIndex customers = new IntIndex(this.custId);
+		HashSet<Long> seenNames = new HashSet<Long>();
+		List<List<String>> result = new ArrayList<List<String>>();
+		for(int i = 0; i < this.ownCustomer.length; i++){
+			if(matchingIds.get(this.ownCustomer[i]) < 0) continue;
+			int c = customers.get(this.ownCustomer[i]);
+			if(c < 0) continue;
+			//DISTINCT fname, lname on the pair of codes
+			if(!seenNames.add(((long) this.custFname[c] << 32) | this.custLname[c])) continue;
+			result.add(Arrays.asList(this.dict.decode(this.custFname[c]), this.dict.decode(this.custLname[c])));
+		}
+		return result;
+	}
+
+	/**
+	 * Report 8: make, model and year of the cars built before 1995, once per
+	 * service request opened with fewer than 50000 miles.
+	 */
+	public List<List<String>> carsBefore1995With50000Miles(){
+		IntIndex cars = new IntIndex(this.carVin);
+		List<List<String>> result = new ArrayList<List<String>>();
+		for(int i = 0; i < this.srVin.length; i++){
+			if(this.srOdometer[i] >= 50000) continue;
+			int c = cars.get(this.srVin[i]);
+			if(c < 0 || this.carYear[c] >= 1995) continue;
+			result.add(Arrays.asList(this.dict.decode(this.carMake[c]), this.dict.decode(this.carModel[c]), String.valueOf(this.carYear[c])));
+		}
+		return result;
+	}
+
+	/**
+	 * Report 9: make, model and number of services of the k most serviced
+	 * cars.
+	 *
+	 * @throws java.lang.Exception when k is out of range
+	 */
+	public List<List<String>> kCarsWithTheMostServices(int k) throws Exception {
+		if(k <= 0){
+			throw new Exception("K value must be greater than 0.");
+		}
+		IntIndex counts = new IntIndex(this.carVin.length);
+		for(int i = 0; i < this.srVin.length; i++)
+			counts.add(this.srVin[i], 1);
+		int groups = counts.size();
+		if(k > groups){
+			throw new Exception("K value must be smaller than " + groups);
+		}
+		//(count, vin) packed in a long so a primitive sort orders by count
+		long[] packed = new long[groups];
+		int n = 0;
+		for(int slot = 0; slot < counts.capacity(); slot++){
+			if(counts.isUsed(slot))
+				packed[n++] = ((long) counts.valueAt(slot) << 32) | (counts.keyAt(slot) & 0xffffffffL);
+		}
+		Arrays.sort(packed);
+		IntIndex cars = new IntIndex(this.carVin);
+		List<List<String>> result = new ArrayList<List<String>>();
+		for(int i = groups - 1; i >= groups - k; i--){
+			int c = cars.get((int) packed[i]);
+			if(c < 0) continue;
+			result.add(Arrays.asList(this.dict.decode(this.carMake[c]), this.dict.decode(this.carModel[c]), String.valueOf(packed[i] >>> 32)));
+		}
+		return result;
+	}
+
+	/**
+	 * Report 10: fname, lname and total bill of every customer with a closed
+	 * request, highest total first.
+	 */
+	public List<List<String>> customersByTotalBill(){
+		IntIndex requests = new IntIndex(this.srRid);
+		IntIndex totals = new IntIndex(this.custId.length);
+		for(int i = 0; i < this.crRid.length; i++){
+			int s = requests.get(this.crRid[i]);
+			if(s >= 0) totals.add(this.srCustomer[s], this.crBill[i]);
+		}
+		IntIndex customers = new IntIndex(this.custId);
+		long[] packed = new long[totals.size()];
+		int n = 0;
+		for(int slot = 0; slot < totals.capacity(); slot++){
+			if(totals.isUsed(slot) && customers.get(totals.keyAt(slot)) >= 0)
+				packed[n++] = ((long) totals.valueAt(slot) << 32) | (totals.keyAt(slot) & 0xffffffffL);
+		}
+		packed = Arrays.copyOf(packed, n);
+		Arrays.sort(packed);
+		List<List<String>> result = new ArrayList<List<String>>();
+		for(int i = n - 1; i >= 0; i--){
+			int c = customers.get((int) packed[i]);
+			result.add(Arrays.asList(this.dict.decode(this.custFname[c]), this.dict.decode(this.custLname[c]), String.valueOf(packed[i] >> 32)));
+		}
+		return result;
+	}
+
+	/**
+	 * Method to run one report by its menu number.
+	 *
+	 * @param report the menu number, 6 to 10
+	 * @param k the k of report 9
+	 * @return the report rows
+	 * @throws java.lang.Exception when the report number or k is invalid
+	 */
+	public List<List<String>> run(int report, int k) throws Exception {
+		switch(report){
+			case 6: return customersWithBillLessThan100();
+			case 7: return customersWithMoreThan20Cars();
+			case 8: return carsBefore1995With50000Miles();
+			case 9: return kCarsWithTheMostServices(k);
+			case 10: return customersByTotalBill();
+		}
+		throw new Exception("Only reports 6 to 10 run offline");
+	}
+
+	/**
+	 * Method to compare every offline report with the SQL version run on a
+	 * database seeded from the same files.  CHAR padding is ignored; rows of
+	 * reports without ORDER BY are compared as multisets, and ordered
+	 * reports are compared on their ordering key where SQL leaves ties in
+	 * any order.
+	 *
+	 * @param esql a connection to the seeded database
+	 * @param k the k of report 9
+	 * @return true when every report matches
+	 * @throws java.lang.Exception when a query failed
+	 */
+	public boolean verify(MechanicShop esql, int k) throws Exception {
+		boolean ok = true;
+		ok &= same("6", customersWithBillLessThan100(), esql.executeQueryAndReturnResult(esql.allHistory(MechanicShop.REPORT_BILL_LESS_THAN_100), MechanicShop.NO_ARGS), -1, false);
+		ok &= same("7", customersWithMoreThan20Cars(), esql.executeQueryAndReturnResult(MechanicShop.REPORT_MORE_THAN_20_CARS, MechanicShop.NO_ARGS), -1, false);
+		ok &= same("8", carsBefore1995With50000Miles(), esql.executeQueryAndReturnResult(esql.allHistory(MechanicShop.REPORT_CARS_BEFORE_1995), MechanicShop.NO_ARGS), -1, false);
+		ok &= same("9", kCarsWithTheMostServices(k), MechanicShop.ListKCarsWithTheMostServices(esql, k), 2, true);
+		ok &= same("10", customersByTotalBill(), esql.executeQueryAndReturnResult(esql.allHistory(MechanicShop.REPORT_TOTAL_BILL), MechanicShop.NO_ARGS), 2, false);
+		return ok;
+	}
+
+	/**
+	 * @param orderColumn the column the report is sorted on, or -1
+	 * @param truncated whether the report stops after its first rows, in
+	 *                  which case rows tied with the last one may legally
+	 *                  differ
+	 */
+	private static boolean same(String report, List<List<String>> offline, List<List<String>> sql, int orderColumn, boolean truncated){
+		int offlineRows = offline.size();
+		int sqlRows = sql.size();
+		boolean ok = offlineRows == sqlRows;
+		if(ok && orderColumn >= 0){
+			for(int i = 0; ok && i < sql.size(); i++)
+				ok = key(offline.get(i), orderColumn) == key(sql.get(i), orderColumn);
+		}
+		if(ok && truncated && !sql.isEmpty()){
+			long last = key(sql.get(sql.size() - 1), orderColumn);
+			offline = above(offline, orderColumn, last);
+			sql = above(sql, orderColumn, last);
+		}
+		ok = ok && normalize(offline).equals(normalize(sql));
+		System.out.println("report " + report + ": " + (ok ? "ok" : "MISMATCH") + " (" + offlineRows + " offline, " + sqlRows + " sql row(s))");
+		return ok;
+	}
+
+	private static long key(List<String> row, int column){
+		return Long.parseLong(row.get(column).trim());
+	}
+
+	private static List<List<String>> above(List<List<String>> rows, int column, long bound){
+		List<List<String>> result = new ArrayList<List<String>>();
+		for(List<String> row : rows){
+			if(key(row, column) > bound) result.add(row);
+		}
+		return result;
+	}
+
+	private static List<String> normalize(List<List<String>> rows){
+		List<String> lines = new ArrayList<String>(rows.size());
+		for(List<String> row : rows){
+			StringBuilder line = new StringBuilder();
+			for(String value : row)
+				line.append(value == null ? "" : value.trim()).append('\t');
+			lines.add(line.toString());
+		}
+		Collections.sort(lines);
+		return lines;
+	}
+
+	/**
+	 * This class maps strings to dense int codes and back.
+	 */
+	static class Dictionary{
+		private final Map<String, Integer> codes = new HashMap<String, Integer>();
+		private final List<String> values = new ArrayList<String>();
+
+		int encode(String value){
+			Integer code = this.codes.get(value);
+			if(code == null){
+				code = this.values.size();
+				this.codes.put(value, code);
+				this.values.add(value);
+			}
+			return code;
+		}
+
+		String decode(int code){
+			return this.values.get(code);
+		}
+
+		int size(){
+			return this.values.size();
+		}
+	}
+
+	/**
+	 * This class is an open addressing int to int hash map, used both as the
+	 * build side of the hash joins (key to row number) and as the
+	 * accumulator of the aggregations.  Missing keys read as -1.
+	 */
+	static class IntIndex{
+		private int[] keys;
+		private int[] values;
+		private boolean[] used;
+		private int size = 0;
+
+		IntIndex(int expected){
+			int cap = 16;
+			while(cap < expected * 2) cap <<= 1;
+			this.keys = new int[cap];
+			this.values = new int[cap];
+			this.used = new boolean[cap];
+		}
+
+		/**
+		 * Builds an index from key to the position of the key in the column.
+		 */
+		IntIndex(int[] column){
+			this(column.length);
+			for(int i = 0; i < column.length; i++)
+				put(column[i], i);
+		}
+
+		private int slot(int key){
+			int mask = this.keys.length - 1;
+			int h = (key * 0x9E3779B9) >>> 7;
+			int slot = h & mask;
+			while(this.used[slot] && this.keys[slot] != key)
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+
+		int get(int key){
+			int slot = slot(key);
+			return this.used[slot] ? this.values[slot] : -1;
+		}
+
+		void put(int key, int value){
+			int slot = slot(key);
+			if(!this.used[slot]){
+				this.used[slot] = true;
+				this.keys[slot] = key;
+				++this.size;
+				this.values[slot] = value;
+				if(this.size * 2 > this.keys.length) grow();
+				return;
+			}
+			this.values[slot] = value;
+		}
+
+		void add(int key, int delta){
+			int slot = slot(key);
+			if(!this.used[slot]){
+				put(key, delta);
+				return;
+			}
+			this.values[slot] += delta;
+		}
+
+		private void grow(){
+			int[] oldKeys = this.keys;
+			int[] oldValues = this.values;
+			boolean[] oldUsed = this.used;
+			this.keys = new int[oldKeys.length * 2];
+			this.values = new int[oldKeys.length * 2];
+			this.used = new boolean[oldKeys.length * 2];
+			this.size = 0;
+			for(int i = 0; i < oldKeys.length; i++){
+				if(oldUsed[i]) put(oldKeys[i], oldValues[i]);
+			}
+		}
+
+		int size(){
+			return this.size;
+		}
+
+		int capacity(){
+			return this.keys.length;
+		}
+
+		boolean isUsed(int slot){
+			return this.used[slot];
+		}
+
+		int keyAt(int slot){
+			return this.keys[slot];
+		}
+
+		int valueAt(int slot){
+			return this.values[slot];
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Connection pool for the MechanicShop database
+ * =============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out MechanicShop handles, each wrapping one physical
+ * connection and its prepared statement cache, to concurrent sessions.  At
+ * most maxSize connections are ever open; a session that cannot get one
+ * within the acquire timeout fails instead of queueing forever.
+ *
+ */
+public class ConnectionPool{
+	private final String url;
+	private final String user;
+	private final String passwd;
+	private final int maxSize;
+	private final long acquireTimeoutMillis;
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<MechanicShop> idle = new LinkedBlockingDeque<MechanicShop>();
+	private volatile boolean closed = false;
+
+	//saturation metrics
+	private final AtomicInteger created = new AtomicInteger();
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final AtomicInteger peakInUse = new AtomicInteger();
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicInteger peakWaiting = new AtomicInteger();
+	private final AtomicLong acquires = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	/**
+	 * @param url the JDBC url, e.g. jdbc:postgresql://localhost:5432/shop or
+	 *            an embedded stand-in such as jdbc:h2:mem:shop;MODE=PostgreSQL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param maxSize the maximum number of open connections
+	 * @param acquireTimeoutMillis how long acquire waits for a free connection
+	 */
+	public ConnectionPool(String url, String user, String passwd, int maxSize, long acquireTimeoutMillis){
+		if(maxSize <= 0) throw new IllegalArgumentException("pool size must be positive");
+		this.url = url;
+		this.user = user;
+		this.passwd = passwd;
+		this.maxSize = maxSize;
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+		this.permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Method to borrow a connection, opening a new one when no idle
+	 * connection is available and the pool is not yet full.
+	 *
+	 * @return a MechanicShop handle that must be given back with release
+	 * @throws java.sql.SQLException when no connection became free in time
+	 */
+	public MechanicShop acquire() throws SQLException {
+		if(this.closed) throw new SQLException("Connection pool is closed");
+		long start = System.nanoTime();
+		updateMax(this.peakWaiting, this.waiting.incrementAndGet());
+		boolean granted;
+		try{
+			granted = this.permits.tryAcquire(this.acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection");
+		}finally{
+			this.waiting.decrementAndGet();
+		}
+		long waited = System.nanoTime() - start;
+		this.waitNanos.addAndGet(waited);
+		Metrics.POOL_WAIT.record(waited);
+		updateMax(this.maxWaitNanos, waited);
+		if(!granted){
+			this.timeouts.incrementAndGet();
+			throw new SQLException("Timed out after " + this.acquireTimeoutMillis + "ms waiting for a connection (pool size " + this.maxSize + ")");
+		}
+		this.acquires.incrementAndGet();
+		try{
+			MechanicShop esql = this.idle.pollFirst();
+			if(esql == null){
+				esql = open();
+			}
+			updateMax(this.peakInUse, this.inUse.incrementAndGet());
+			return esql;
+		}catch(SQLException e){
+			this.permits.release();
+			throw e;
+		}
+	}//end acquire
+
+	/**
+	 * Method to give a borrowed connection back.  Connections left in a
+	 * transaction are rolled back and broken ones are discarded.
+	 *
+	 * @param esql the handle obtained from acquire
+	 */
+	public void release(MechanicShop esql){
+		if(esql == null) return;
+		this.inUse.decrementAndGet();
+		try{
+			Connection conn = esql.getConnection();
+			if(this.closed || conn.isClosed()){
+				esql.cleanup();
+			}else{
+				if(!conn.getAutoCommit()){
+					conn.rollback();
+					conn.setAutoCommit(true);
+				}
+				this.idle.offerFirst(esql);
+			}
+		}catch(SQLException e){
+			esql.cleanup();
+		}finally{
+			this.permits.release();
+		}
+	}//end release
+
+	private MechanicShop open() throws SQLException {
+		Connection conn = DriverManager.getConnection(this.url, this.user, this.passwd);
+		this.created.incrementAndGet();
+		return new MechanicShop(conn);
+	}
+
+	private static void updateMax(AtomicInteger max, int value){
+		int cur;
+		while(value > (cur = max.get()) && !max.compareAndSet(cur, value));
+	}
+
+	private static void updateMax(AtomicLong max, long value){
+		long cur;
+		while(value > (cur = max.get()) && !max.compareAndSet(cur, value));
+	}
+
+	/**
+	 * Method to close every idle connection and refuse further acquires.
+	 * Connections still borrowed are closed when released.
+	 */
+	public void close(){
+		this.closed = true;
+		MechanicShop esql;
+		while((esql = this.idle.pollFirst()) != null)
+			esql.cleanup();
+	}
+
+	public int getMaxSize(){
+		return this.maxSize;
+	}
+
+	public int getInUse(){
+		return this.inUse.get();
+	}
+
+	public int getWaiting(){
+		return this.waiting.get();
+	}
+
+	public long getAcquires(){
+		return this.acquires.get();
+	}
+
+	public long getTimeouts(){
+		return this.timeouts.get();
+	}
+
+	public long getWaitNanos(){
+		return this.waitNanos.get();
+	}
+
+	@Override
+	public String toString(){
+		long n = Math.max(1, this.acquires.get() + this.timeouts.get());
+		return String.format("pool: size %d/%d, in use %d (peak %d), waiting %d (peak %d), acquires %d, timeouts %d, avg wait %.3fms, max wait %.3fms",
+			this.created.get(), this.maxSize, this.inUse.get(), this.peakInUse.get(),
+			this.waiting.get(), this.peakWaiting.get(), this.acquires.get(), this.timeouts.get(),
+			this.waitNanos.get() / 1e6 / n, this.maxWaitNanos.get() / 1e6);
+	}
+}
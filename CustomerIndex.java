@@ -0,0 +1,422 @@
+/*
+ * In-process customer search index
+ * ================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class finds customers for the front desk without a round trip: by
+ * the first letters of the last name (any case), by phone number (digits
+ * only, so "(951)555-1234", "951 555 1234" and "555-1234" all match) and
+ * by the words of the address ("12 main" finds "12 Main Street").
+ *
+ * Each search field is a sorted array of distinct terms, each with the
+ * sorted ids of the customers holding it; a prefix is a binary search and
+ * a scan of the terms that follow.  AddCustomer adds to a small sorted
+ * delta that is merged into the arrays once it grows past DELTA_LIMIT
+ * terms, so an insert never copies the whole index.
+ *
+ * The index is loaded on first use and shared by every connection of the
+ * process.  Customers added by another process show up when the index is
+ * reloaded, which a search that finds nothing does once it is older than
+ * RELOAD_AFTER_MILLIS.  Results are candidates: the id a clerk picks is
+ * still checked against the database.
+ *
+ */
+public class CustomerIndex{
+	static final int DELTA_LIMIT = 1024;
+	static final long RELOAD_AFTER_MILLIS = 60 * 1000;
+	static final String LOAD = "SELECT id, fname, lname, phone, address FROM Customer";
+
+	private static volatile CustomerIndex shared = null;
+	//per load running, the customers added meanwhile; the load may have read Customer before they committed
+	private static final List<List<Customer>> loading = new ArrayList<List<Customer>>();
+
+	private final Map<Integer, Customer> customers = new ConcurrentHashMap<Integer, Customer>();
+	private final Field names = new Field();
+	private final Field phones = new Field();
+	private final Field addresses = new Field();
+	private final long loadedAt = System.currentTimeMillis();
+
+	/**
+	 * A customer as shown in the search results.
+	 */
+	public static final class Customer{
+		public final int id;
+		public final String fname;
+		public final String lname;
+		public final String phone;
+		public final String address;
+
+		Customer(int id, String fname, String lname, String phone, String address){
+			this.id = id;
+			this.fname = trim(fname);
+			this.lname = trim(lname);
+			this.phone = trim(phone);
+			this.address = trim(address);
+		}
+
+		List<String> toRow(){
+			return Arrays.asList(String.valueOf(this.id), this.fname, this.lname, this.phone, this.address);
+		}
+	}
+
+	/**
+	 * Method to get the index of this process, loading it on first use.
+	 *
+	 * @param esql the connection to load it from
+	 * @return the shared index
+	 * @throws java.sql.SQLException when the customers cannot be read
+	 */
+	public static CustomerIndex get(MechanicShop esql) throws SQLException {
+		CustomerIndex index = shared;
+		if(index == null){
+			synchronized(CustomerIndex.class){
+				if((index = shared) == null) index = loadShared(esql);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Method to replace the shared index with a fresh load of Customer.
+	 */
+	public static CustomerIndex reload(MechanicShop esql) throws SQLException {
+		return loadShared(esql);
+	}
+
+	//loads the index and shares it with the customers added during the load replayed into it
+	private static CustomerIndex loadShared(MechanicShop esql) throws SQLException {
+		List<Customer> replay = new ArrayList<Customer>();
+		synchronized(loading){
+			loading.add(replay);
+		}
+		try{
+			CustomerIndex index = load(esql);
+			synchronized(loading){
+				for(Customer c : replay)
+					if(!index.customers.containsKey(c.id)) index.add(c);
+				shared = index;
+			}
+			return index;
+		}finally{
+			synchronized(loading){
+				//by identity: two replay lists may be equal
+				for(Iterator<List<Customer>> it = loading.iterator(); it.hasNext(); )
+					if(it.next() == replay) it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Method to add a customer that was just committed.  A load running at
+	 * the same time replays it before its index is shared.
+	 */
+	static void added(int id, String fname, String lname, String phone, String address){
+		Customer c = new Customer(id, fname, lname, phone, address);
+		CustomerIndex index;
+		synchronized(loading){
+			for(List<Customer> replay : loading) replay.add(c);
+			index = shared;
+		}
+		if(index != null) index.add(c);
+	}
+
+	/**
+	 * Method to add a customer once the transaction that inserted it
+	 * commits, see UnitOfWork.afterCommit.
+	 *
+	 * @throws java.sql.SQLException when the connection cannot be read
+	 */
+	static void addedAfterCommit(MechanicShop esql, final int id, final String fname, final String lname, final String phone, final String address) throws SQLException {
+		UnitOfWork.afterCommit(esql, new Runnable(){
+			public void run(){
+				added(id, fname, lname, phone, address);
+			}
+		});
+	}
+
+	/**
+	 * Method to make an index built elsewhere, e.g. from a snapshot, the
+	 * shared one.
+	 */
+	static void install(CustomerIndex index){
+		shared = index;
+	}
+
+	private static CustomerIndex load(MechanicShop esql) throws SQLException {
+		final List<Customer> customers = new ArrayList<Customer>();
+		esql.executeQueryForEach(LOAD, new RowHandler(){
+			public void handle(ResultCursor row) throws SQLException {
+				customers.add(new Customer(row.getInt(1), row.getString(2), row.getString(3), row.getString(4), row.getString(5)));
+			}
+		}, MechanicShop.NO_ARGS);
+		return of(customers);
+	}
+
+	/**
+	 * Method to build an index of the given customers.
+	 */
+	static CustomerIndex of(List<Customer> customers){
+		CustomerIndex index = new CustomerIndex();
+		Map<String, List<Integer>> names = new HashMap<String, List<Integer>>();
+		Map<String, List<Integer>> phones = new HashMap<String, List<Integer>>();
+		Map<String, List<Integer>> addresses = new HashMap<String, List<Integer>>();
+		for(Customer c : customers){
+			index.customers.put(c.id, c);
+			for(String term : nameTerms(c)) post(names, term, c.id);
+			for(String term : phoneTerms(c)) post(phones, term, c.id);
+			for(String term : addressTerms(c)) post(addresses, term, c.id);
+		}
+		index.names.base = Terms.of(names);
+		index.phones.base = Terms.of(phones);
+		index.addresses.base = Terms.of(addresses);
+		return index;
+	}
+
+	private static void post(Map<String, List<Integer>> terms, String term, int id){
+		List<Integer> ids = terms.get(term);
+		if(ids == null){
+			ids = new ArrayList<Integer>(1);
+			terms.put(term, ids);
+		}
+		ids.add(id);
+	}
+
+	private synchronized void add(Customer c){
+		this.customers.put(c.id, c);
+		this.names.add(nameTerms(c), c.id);
+		this.phones.add(phoneTerms(c), c.id);
+		this.addresses.add(addressTerms(c), c.id);
+	}
+
+	/**
+	 * Method to find the customers whose last name starts with a prefix,
+	 * ignoring case.
+	 */
+	public List<Customer> byLastName(String prefix, int limit){
+		return resolve(this.names.prefix(prefix.trim().toLowerCase(), limit));
+	}
+
+	/**
+	 * Method to find customers by phone number: the digits given must
+	 * start the full number or the local number without its area code.
+	 */
+	public List<Customer> byPhone(String phone, int limit){
+		String digits = digits(phone);
+		if(digits.isEmpty()) return new ArrayList<Customer>();
+		return resolve(this.phones.prefix(digits, limit));
+	}
+
+	/**
+	 * Method to find the customers whose address has a word starting with
+	 * every word given, e.g. "12 main".
+	 */
+	public List<Customer> byAddress(String text, int limit){
+		List<String> words = tokens(text);
+		if(words.isEmpty()) return new ArrayList<Customer>();
+		Set<Integer> found = null;
+		for(String word : words){
+			Set<Integer> ids = this.addresses.prefix(word, Integer.MAX_VALUE);
+			if(found == null) found = ids;
+			else found.retainAll(ids);
+			if(found.isEmpty()) break;
+		}//end for
+		List<Customer> result = resolve(found);
+		return result.size() > limit ? result.subList(0, limit) : result;
+	}
+
+	/**
+	 * Method to search the way the clerk types: input without letters is a
+	 * phone number, a single word a last name prefix (or an address word
+	 * when no last name matches), anything else an address.
+	 */
+	public List<Customer> search(String text, int limit){
+		String query = text.trim();
+		boolean letters = false;
+		for(int i = 0; i < query.length() && !letters; ++i) letters = Character.isLetter(query.charAt(i));
+		if(!letters) return byPhone(query, limit);
+		if(query.indexOf(' ') < 0){
+			List<Customer> result = byLastName(query, limit);
+			if(!result.isEmpty()) return result;
+		}
+		return byAddress(query, limit);
+	}
+
+	/**
+	 * @return whether a search that found nothing should reload the index
+	 *         in case the customer was added by another process
+	 */
+	public boolean isStale(){
+		return System.currentTimeMillis() - this.loadedAt > RELOAD_AFTER_MILLIS;
+	}
+
+	public int size(){
+		return this.customers.size();
+	}
+
+	private List<Customer> resolve(Set<Integer> ids){
+		List<Customer> result = new ArrayList<Customer>(ids.size());
+		for(Integer id : ids){
+			Customer c = this.customers.get(id);
+			if(c != null) result.add(c);
+		}
+		return result;
+	}
+
+	private static List<String> nameTerms(Customer c){
+		return Arrays.asList(c.lname.toLowerCase());
+	}
+
+	private static List<String> phoneTerms(Customer c){
+		String digits = digits(c.phone);
+		//the local number, so a search may leave out the area code
+		if(digits.length() > 7) return Arrays.asList(digits, digits.substring(digits.length() - 7));
+		return Arrays.asList(digits);
+	}
+
+	private static List<String> addressTerms(Customer c){
+		return tokens(c.address);
+	}
+
+	private static String digits(String value){
+		StringBuilder digits = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); ++i){
+			char ch = value.charAt(i);
+			if(ch >= '0' && ch <= '9') digits.append(ch);
+		}
+		return digits.toString();
+	}
+
+	//the lower case runs of letters and digits, without repeats
+	private static List<String> tokens(String value){
+		Set<String> tokens = new LinkedHashSet<String>();
+		int start = -1;
+		for(int i = 0; i <= value.length(); ++i){
+			boolean word = i < value.length() && Character.isLetterOrDigit(value.charAt(i));
+			if(word && start < 0) start = i;
+			if(!word && start >= 0){
+				tokens.add(value.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}//end for
+		return new ArrayList<String>(tokens);
+	}
+
+	private static String trim(String value){
+		return value == null ? "" : value.trim();
+	}
+
+	/**
+	 * One search field: the sorted base terms plus the terms added since
+	 * the last merge.  Readers use whatever pair of snapshots they see;
+	 * writers are serialized by CustomerIndex.add.
+	 */
+	private static final class Field{
+		volatile Terms base = Terms.EMPTY;
+		volatile Terms delta = Terms.EMPTY;
+		private final TreeMap<String, List<Integer>> pending = new TreeMap<String, List<Integer>>();
+
+		void add(List<String> terms, int id){
+			for(String term : terms) post(this.pending, term, id);
+			if(this.pending.size() > DELTA_LIMIT){
+				//publish the merged base before dropping the delta; with prefix reading the delta first, a reader never misses a term
+				this.base = Terms.merge(this.base, Terms.of(this.pending));
+				this.pending.clear();
+				this.delta = Terms.EMPTY;
+			}else{
+				this.delta = Terms.of(this.pending);
+			}
+		}
+
+		Set<Integer> prefix(String prefix, int limit){
+			//the delta before the base: an emptied delta is only seen together with the base it was merged into
+			Terms delta = this.delta;
+			Terms base = this.base;
+			Set<Integer> ids = new LinkedHashSet<Integer>();
+			base.prefix(prefix, ids, limit);
+			delta.prefix(prefix, ids, limit);
+			return ids;
+		}
+	}
+
+	/**
+	 * An immutable sorted array of distinct terms and, per term, the
+	 * sorted ids holding it.
+	 */
+	private static final class Terms{
+		static final Terms EMPTY = new Terms(new String[0], new int[0][]);
+
+		final String[] terms;
+		final int[][] ids;
+
+		Terms(String[] terms, int[][] ids){
+			this.terms = terms;
+			this.ids = ids;
+		}
+
+		static Terms of(Map<String, List<Integer>> postings){
+			String[] terms = postings.keySet().toArray(new String[postings.size()]);
+			Arrays.sort(terms);
+			int[][] ids = new int[terms.length][];
+			for(int i = 0; i < terms.length; ++i){
+				List<Integer> list = postings.get(terms[i]);
+				ids[i] = new int[list.size()];
+				for(int j = 0; j < ids[i].length; ++j) ids[i][j] = list.get(j);
+				Arrays.sort(ids[i]);
+			}
+			return new Terms(terms, ids);
+		}
+
+		//a linear merge of two sorted term arrays
+		static Terms merge(Terms a, Terms b){
+			String[] terms = new String[a.terms.length + b.terms.length];
+			int[][] ids = new int[terms.length][];
+			int i = 0, j = 0, n = 0;
+			while(i < a.terms.length || j < b.terms.length){
+				int cmp = i == a.terms.length ? 1 : j == b.terms.length ? -1 : a.terms[i].compareTo(b.terms[j]);
+				if(cmp < 0){
+					terms[n] = a.terms[i];
+					ids[n++] = a.ids[i++];
+				}else if(cmp > 0){
+					terms[n] = b.terms[j];
+					ids[n++] = b.ids[j++];
+				}else{
+					int[] merged = Arrays.copyOf(a.ids[i], a.ids[i].length + b.ids[j].length);
+					System.arraycopy(b.ids[j], 0, merged, a.ids[i].length, b.ids[j].length);
+					Arrays.sort(merged);
+					terms[n] = a.terms[i++];
+					ids[n++] = merged;
+					++j;
+				}
+			}//end while
+			return new Terms(Arrays.copyOf(terms, n), Arrays.copyOf(ids, n));
+		}
+
+		void prefix(String prefix, Set<Integer> out, int limit){
+			int at = Arrays.binarySearch(this.terms, prefix);
+			if(at < 0) at = -at - 1;
+			for(; at < this.terms.length && this.terms[at].startsWith(prefix); ++at){
+				for(int id : this.ids[at]){
+					if(out.size() >= limit) return;
+					out.add(id);
+				}
+			}//end for
+		}
+	}
+}
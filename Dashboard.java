@@ -0,0 +1,323 @@
+/*
+ * Parallel morning dashboard of reports 6 to 10
+ * =============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * This class runs the five reports of the menu (6 to 10) at the same time,
+ * each on pooled connections of its own, so the manager waits for the
+ * slowest of them instead of for all of them in a row.
+ *
+ * The reports that read the large tables are also split into partitions
+ * that run in parallel and are merged here:
+ *
+ *	6, 8	rid ranges of Service_Request; the rows are concatenated
+ *	9	VIN ranges of Car, so every car is counted by one partition
+ *		only; the top k of each partition are merged into the top k
+ *	10	customer id ranges, so every total is summed by one partition
+ *		only; the partitions, each sorted by total, are merged in order
+ *
+ * Report 7 reads Owns only and runs whole.  With the summary tables
+ * installed, reports 9 and 10 read them instead and are not split.
+ *
+ */
+public class Dashboard{
+	//the menu queries narrowed to a range of rid (the last two arguments)
+	static final String REPORT_BILL_LESS_THAN_100_PART = MechanicShop.REPORT_BILL_LESS_THAN_100 + " AND c.rid >= ? AND c.rid < ?";
+	static final String REPORT_CARS_BEFORE_1995_PART = MechanicShop.REPORT_CARS_BEFORE_1995 + " AND rid >= ? AND rid < ?";
+	//the k most serviced cars of a VIN range, ties broken by VIN; {} is the range condition
+	static final String REPORT_TOP_K_CARS_PART = "SELECT c.make, c.model, s.cnt, s.car_vin FROM (SELECT car_vin, COUNT(*) AS cnt FROM Service_Request WHERE {} GROUP BY car_vin ORDER BY COUNT(*) DESC, car_vin LIMIT ?) s JOIN Car c ON c.vin = s.car_vin";
+	static final String REPORT_TOTAL_BILL_PART = "SELECT Customer.id, fname, lname, SUM(bill) AS total FROM ((Service_Request INNER JOIN Closed_Request ON Service_Request.rid = Closed_Request.rid) INNER JOIN Customer ON Service_Request.customer_id = Customer.id) WHERE Service_Request.customer_id >= ? AND Service_Request.customer_id < ? GROUP BY Customer.id, fname, lname ORDER BY SUM(bill) DESC, Customer.id";
+
+	private final ConnectionPool pool;
+	private final int partitions;
+	private final int k;
+	//whether the database has an archive, looked up by run
+	private boolean archive = false;
+
+	/**
+	 * One report of the dashboard: its pending rows and when it finished.
+	 */
+	private static final class Report{
+		final String title;
+		final String header;
+		final int parts;
+		final CompletableFuture<List<List<String>>> rows;
+		volatile long finished;
+
+		Report(String title, String header, int parts, CompletableFuture<List<List<String>>> rows, final long start){
+			this.title = title;
+			this.header = header;
+			this.parts = parts;
+			this.rows = rows.thenApply(new Function<List<List<String>>, List<List<String>>>(){
+				public List<List<String>> apply(List<List<String>> rows){
+					Report.this.finished = System.nanoTime() - start;
+					return rows;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @param pool the connections the partitions run on; its size bounds
+	 *             how many run at once
+	 * @param partitions the number of ranges a large report is split into
+	 * @param k the number of cars of report 9
+	 */
+	public Dashboard(ConnectionPool pool, int partitions, int k){
+		if(partitions <= 0 || k <= 0) throw new IllegalArgumentException("partitions and k must be positive");
+		this.pool = pool;
+		this.partitions = partitions;
+		this.k = k;
+	}
+
+	/**
+	 * Method to run the five reports and print them in menu order, each
+	 * with its time, once all are done.
+	 *
+	 * @throws java.sql.SQLException when a report failed
+	 */
+	public void run() throws SQLException {
+		final AtomicInteger count = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(this.pool.getMaxSize(), new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "dashboard-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try{
+			AsyncQueries queries = new AsyncQueries(this.pool, executor);
+			long start = System.nanoTime();
+			MechanicShop esql = this.pool.acquire();
+			boolean summaries;
+			int[] rids, customerIds;
+			List<String> vins;
+			try{
+				summaries = esql.hasSummaryTables();
+				this.archive = esql.hasArchive();
+				rids = intRanges(esql, history("SELECT MIN(rid), MAX(rid) FROM Service_Request"));
+				customerIds = intRanges(esql, "SELECT MIN(id), MAX(id) FROM Customer");
+				vins = summaries ? null : vinBounds(esql);
+			}finally{
+				this.pool.release(esql);
+			}
+			List<Report> reports = new ArrayList<Report>();
+			reports.add(new Report("6. Customers with a bill under 100", "fname\tlname\tdate\tcomment\tbill", rids.length - 1,
+				concat(byIntRange(queries, history(REPORT_BILL_LESS_THAN_100_PART), rids)), start));
+			reports.add(new Report("7. Customers with more than 20 cars", "fname\tlname", 1,
+				queries.query(MechanicShop.REPORT_MORE_THAN_20_CARS), start));
+			reports.add(new Report("8. Cars before 1995 with under 50000 miles", "make\tmodel\tyear", rids.length - 1,
+				concat(byIntRange(queries, history(REPORT_CARS_BEFORE_1995_PART), rids)), start));
+			if(summaries){
+				reports.add(new Report("9. The " + this.k + " most serviced cars", "make\tmodel\tcount", 1,
+					queries.query(SummaryTables.REPORT_TOP_K_CARS, this.k), start));
+				reports.add(new Report("10. Customers by total bill", "fname\tlname\ttotal", 1,
+					queries.query(SummaryTables.REPORT_TOTAL_BILL), start));
+			}else{
+				reports.add(new Report("9. The " + this.k + " most serviced cars", "make\tmodel\tcount", vins.size() + 1,
+					topK(byVinRange(queries, vins), this.k), start));
+				reports.add(new Report("10. Customers by total bill", "fname\tlname\ttotal", customerIds.length - 1,
+					byTotal(byIntRange(queries, history(REPORT_TOTAL_BILL_PART), customerIds)), start));
+			}
+			//wait for all before printing, so the slowest report sets the pace
+			for(Report report : reports) AsyncQueries.join(report.rows);
+			long elapsed = System.nanoTime() - start;
+			ResultWriter out = ResultWriter.open("tab", null);
+			long sum = 0;
+			for(Report report : reports){
+				List<List<String>> rows = AsyncQueries.join(report.rows);
+				out.println(String.format("%s (%d row(s), %d partition(s), %.3fs)", report.title, rows.size(), report.parts, report.finished / 1e9));
+				out.println(report.header);
+				for(List<String> row : rows){
+					StringBuilder line = new StringBuilder();
+					for(String value : row){
+						if(line.length() > 0) line.append('\t');
+						line.append(value == null ? "" : value.trim());
+					}
+					out.println(line.toString());
+				}
+				out.println("");
+				sum += report.finished;
+			}
+			out.println(String.format("dashboard done in %.3fs on %d connection(s); the reports finished after %.3fs in total",
+				elapsed / 1e9, this.pool.getMaxSize(), sum / 1e9));
+			out.close();
+		}catch(Exception e){
+			if(e instanceof SQLException) throw (SQLException) e;
+			throw new SQLException(e);
+		}finally{
+			executor.shutdownNow();
+		}
+	}//end run
+
+	/**
+	 * Method to split the span of an integer key into partitions.
+	 *
+	 * @return the bounds: partition i covers [bounds[i], bounds[i + 1])
+	 */
+	private int[] intRanges(MechanicShop esql, String minMax) throws SQLException {
+		List<List<String>> row = esql.executeQueryAndReturnResult(minMax, MechanicShop.NO_ARGS);
+		if(row.isEmpty() || row.get(0).get(0) == null) return new int[]{ 0, 1 };
+		long min = Long.parseLong(row.get(0).get(0).trim());
+		long max = Long.parseLong(row.get(0).get(1).trim()) + 1;
+		int parts = (int) Math.max(1, Math.min(this.partitions, max - min));
+		int[] bounds = new int[parts + 1];
+		for(int i = 0; i <= parts; ++i) bounds[i] = (int) (min + (max - min) * i / parts);
+		return bounds;
+	}
+
+	/**
+	 * Method to pick the VINs that split Car into partitions of about the
+	 * same number of cars.
+	 *
+	 * @return the inner bounds, in order; one fewer than the partitions
+	 */
+	private List<String> vinBounds(MechanicShop esql) throws SQLException {
+		List<List<String>> rows = esql.executeQueryAndReturnResult("SELECT vin FROM Car ORDER BY vin", MechanicShop.NO_ARGS);
+		List<String> bounds = new ArrayList<String>();
+		for(int i = 1; i < this.partitions; ++i){
+			int at = (int) ((long) rows.size() * i / this.partitions);
+			String vin = rows.get(at).get(0);
+			if(at > 0 && (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(vin))) bounds.add(vin);
+		}
+		return bounds;
+	}
+
+	private static List<CompletableFuture<List<List<String>>>> byIntRange(AsyncQueries queries, String query, int[] bounds){
+		List<CompletableFuture<List<List<String>>>> parts = new ArrayList<CompletableFuture<List<List<String>>>>();
+		for(int i = 0; i + 1 < bounds.length; ++i)
+			parts.add(queries.query(query, bounds[i], bounds[i + 1]));
+		return parts;
+	}
+
+	//the query over the archived requests too, when the database has an archive
+	private String history(String query){
+		return this.archive ? RequestArchive.allHistory(query) : query;
+	}
+
+	private List<CompletableFuture<List<List<String>>>> byVinRange(AsyncQueries queries, List<String> bounds){
+		List<CompletableFuture<List<List<String>>>> parts = new ArrayList<CompletableFuture<List<List<String>>>>();
+		for(int i = 0; i <= bounds.size(); ++i){
+			String lower = i == 0 ? null : bounds.get(i - 1);
+			String upper = i == bounds.size() ? null : bounds.get(i);
+			String range = lower == null && upper == null ? "1 = 1"
+				: lower == null ? "car_vin < ?" : upper == null ? "car_vin >= ?" : "car_vin >= ? AND car_vin < ?";
+			List<Object> args = new ArrayList<Object>();
+			if(lower != null) args.add(lower);
+			if(upper != null) args.add(upper);
+			args.add(this.k);
+			parts.add(queries.query(history(REPORT_TOP_K_CARS_PART).replace("{}", range), args.toArray()));
+		}
+		return parts;
+	}
+
+	/**
+	 * Method to join partitions whose rows simply add up.
+	 */
+	static CompletableFuture<List<List<String>>> concat(final List<CompletableFuture<List<List<String>>>> parts){
+		return all(parts).thenApply(new Function<Void, List<List<String>>>(){
+			public List<List<String>> apply(Void done){
+				List<List<String>> rows = new ArrayList<List<String>>();
+				for(CompletableFuture<List<List<String>>> part : parts) rows.addAll(part.join());
+				return rows;
+			}
+		});
+	}
+
+	/**
+	 * Method to merge the top k cars of every partition into the top k
+	 * overall, most serviced first; the partitions hold disjoint cars.
+	 */
+	static CompletableFuture<List<List<String>>> topK(final List<CompletableFuture<List<List<String>>>> parts, final int k){
+		return all(parts).thenApply(new Function<Void, List<List<String>>>(){
+			public List<List<String>> apply(Void done){
+				//smallest count on top, so the heap keeps the k largest
+				PriorityQueue<List<String>> top = new PriorityQueue<List<String>>(k + 1, new Comparator<List<String>>(){
+					public int compare(List<String> a, List<String> b){
+						return BY_COUNT.compare(b, a);
+					}
+				});
+				for(CompletableFuture<List<List<String>>> part : parts){
+					for(List<String> row : part.join()){
+						top.add(row);
+						if(top.size() > k) top.poll();
+					}
+				}
+				List<List<String>> rows = new ArrayList<List<String>>(top.size());
+				while(!top.isEmpty()){
+					List<String> row = top.poll();
+					rows.add(Arrays.asList(row.get(0), row.get(1), row.get(2)));
+				}
+				Collections.reverse(rows);
+				return rows;
+			}
+		});
+	}
+
+	//most serviced first, then by VIN, as each partition orders its cars
+	static final Comparator<List<String>> BY_COUNT = new Comparator<List<String>>(){
+		public int compare(List<String> a, List<String> b){
+			int cmp = Long.compare(Long.parseLong(b.get(2).trim()), Long.parseLong(a.get(2).trim()));
+			return cmp != 0 ? cmp : a.get(3).compareTo(b.get(3));
+		}
+	};
+
+	/**
+	 * Method to merge partitions sorted by total bill, highest first, into
+	 * one sorted list; the partitions hold disjoint customers.
+	 */
+	static CompletableFuture<List<List<String>>> byTotal(final List<CompletableFuture<List<List<String>>>> parts){
+		return all(parts).thenApply(new Function<Void, List<List<String>>>(){
+			public List<List<String>> apply(Void done){
+				final List<List<List<String>>> lists = new ArrayList<List<List<String>>>();
+				int total = 0;
+				for(CompletableFuture<List<List<String>>> part : parts){
+					lists.add(part.join());
+					total += lists.get(lists.size() - 1).size();
+				}
+				//{ partition, position } of the next row of every partition, highest total first
+				PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, lists.size()), new Comparator<int[]>(){
+					public int compare(int[] a, int[] b){
+						List<String> x = lists.get(a[0]).get(a[1]);
+						List<String> y = lists.get(b[0]).get(b[1]);
+						int cmp = Long.compare(Long.parseLong(y.get(3).trim()), Long.parseLong(x.get(3).trim()));
+						return cmp != 0 ? cmp : Long.compare(Long.parseLong(x.get(0).trim()), Long.parseLong(y.get(0).trim()));
+					}
+				});
+				for(int i = 0; i < lists.size(); ++i)
+					if(!lists.get(i).isEmpty()) heads.add(new int[]{ i, 0 });
+				List<List<String>> rows = new ArrayList<List<String>>(total);
+				while(!heads.isEmpty()){
+					int[] head = heads.poll();
+					List<String> row = lists.get(head[0]).get(head[1]);
+					rows.add(Arrays.asList(row.get(1), row.get(2), row.get(3)));
+					if(++head[1] < lists.get(head[0]).size()) heads.add(head);
+				}
+				return rows;
+			}
+		});
+	}
+
+	private static CompletableFuture<Void> all(List<CompletableFuture<List<List<String>>>> parts){
+		return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()]));
+	}
+}
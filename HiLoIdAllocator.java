@@ -0,0 +1,156 @@
+/*
+ * Sequence backed block key allocation
+ * ====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class reserves blocks of ids from a database sequence and hands them
+ * out from memory, so an insert costs no extra round trip and only one in
+ * every blockSize inserts touches the sequence.
+ *
+ * The sequence is created with INCREMENT BY blockSize and every nextval
+ * reserves the ids [value, value + blockSize).  Because nextval never
+ * returns the same value twice, blocks are disjoint across threads, sessions
+ * and JVMs alike.  The sequence starts past the largest id already in the
+ * table, so rows loaded before the allocator existed are never reused, and
+ * advance moves it past rows bulk loaded after it was created.
+ *
+ * The sequence is created by migration 7 (see SchemaMigrations), or on
+ * first use when the connection is in autocommit.  It is never created
+ * inside the caller's transaction: a rollback would drop it again while
+ * this allocator still counted on it.
+ *
+ */
+public class HiLoIdAllocator implements IdAllocator{
+	private final String table;
+	private final String column;
+	private final String sequence;
+	private final int requestedBlockSize;
+	private volatile Block block = null;
+	//largest id found in the table when the sequence was set up
+	private long floor = Long.MIN_VALUE;
+	private int blockSize = 0;
+
+	/**
+	 * @param table the table the ids are for
+	 * @param column the key column of the table
+	 * @param blockSize the number of ids reserved per sequence call; it is
+	 *                  only used when this allocator creates the sequence
+	 */
+	public HiLoIdAllocator(String table, String column, int blockSize){
+		if(blockSize <= 0) throw new IllegalArgumentException("block size must be positive");
+		this.table = table;
+		this.column = column;
+		this.sequence = (table + "_" + column + "_hilo").toLowerCase();
+		this.requestedBlockSize = blockSize;
+	}
+
+	public int next(MechanicShop esql) throws SQLException {
+		while(true){
+			Block b = this.block;
+			if(b != null){
+				long id = b.next.getAndIncrement();
+				if(id < b.end) return (int) id;
+			}
+			synchronized(this){
+				//another thread may have refilled while we waited
+				if(this.block == b) this.block = reserve(esql);
+			}
+		}//end while
+	}//end next
+
+	private Block reserve(MechanicShop esql) throws SQLException {
+		if(this.blockSize == 0) setup(esql);
+		long start = esql.getNextSeqVal(this.sequence);
+		//a safety net for rows inserted without the sequence; the load command advances it past them
+		while(start <= this.floor)
+			start = esql.getNextSeqVal(this.sequence);
+		return new Block(start, start + this.blockSize);
+	}
+
+	/**
+	 * Method to learn the increment of the sequence, which is the block
+	 * size every allocator of this table must use, creating the sequence
+	 * first when it is missing and the connection is in autocommit.
+	 *
+	 * @throws java.sql.SQLException when the sequence is missing and the
+	 *         connection is in a transaction
+	 */
+	private void setup(MechanicShop esql) throws SQLException {
+		long floor = max(esql);
+		List<List<String>> increment = increment(esql);
+		if(increment.isEmpty()){
+			if(!esql.getConnection().getAutoCommit())
+				throw new SQLException("The sequence " + this.sequence + " is missing; run migrate");
+			create(esql);
+			increment = increment(esql);
+		}
+		this.floor = floor;
+		this.blockSize = increment.isEmpty() ? this.requestedBlockSize : Integer.parseInt(increment.get(0).get(0).trim());
+	}
+
+	/**
+	 * Method to create the sequence, starting past the largest id in the
+	 * table, unless it exists.  Run it where a rollback cannot leave this
+	 * allocator without its sequence: in autocommit or in a migration.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.sql.SQLException when the sequence cannot be created
+	 */
+	public void create(MechanicShop esql) throws SQLException {
+		esql.executeUpdate("CREATE SEQUENCE IF NOT EXISTS " + this.sequence +
+			" INCREMENT BY " + this.requestedBlockSize + " START WITH " + (max(esql) + 1));
+	}
+
+	/**
+	 * Method to move the sequence past the largest id in the table, e.g.
+	 * after a bulk load, or to create it when it is missing.  Run it while
+	 * no other process takes ids of this table.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.sql.SQLException when the sequence cannot be moved
+	 */
+	public synchronized void advance(MechanicShop esql) throws SQLException {
+		long max = max(esql);
+		if(increment(esql).isEmpty()) create(esql);
+		else if(esql.getNextSeqVal(this.sequence) <= max)
+			esql.executeUpdate("ALTER SEQUENCE " + this.sequence + " RESTART WITH " + (max + 1));
+		//set up again, with the new floor, on the next id
+		this.block = null;
+		this.blockSize = 0;
+	}
+
+	//the largest id in the table, archived rows included, -1 when it is empty
+	private long max(MechanicShop esql) throws SQLException {
+		List<List<String>> max = esql.executeQueryAndReturnResult(esql.allHistory("SELECT MAX(" + this.column + ") FROM " + this.table), MechanicShop.NO_ARGS);
+		String value = max.isEmpty() ? null : max.get(0).get(0);
+		return value == null ? -1 : Long.parseLong(value.trim());
+	}
+
+	private List<List<String>> increment(MechanicShop esql) throws SQLException {
+		return esql.executeQueryAndReturnResult(
+			"SELECT increment FROM information_schema.sequences WHERE LOWER(sequence_name) = ?", this.sequence);
+	}
+
+	public String getSequence(){
+		return this.sequence;
+	}
+
+	private static class Block{
+		final AtomicLong next;
+		final long end;
+
+		Block(long start, long end){
+			this.next = new AtomicLong(start);
+			this.end = end;
+		}
+	}
+}
@@ -0,0 +1,29 @@
+/*
+ * Primary key allocation for the MechanicShop database
+ * ====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * This interface hands out the primary keys of the tables whose ids the shop
+ * assigns itself (Customer, Mechanic, Owns and Service_Request).
+ * Implementations must be safe to share between threads.
+ *
+ */
+public interface IdAllocator{
+
+	/**
+	 * Method to allocate the next unused id.
+	 *
+	 * @param esql the connection to use if the allocator has to reach the
+	 *             database
+	 * @return a key no other caller has been or will be given
+	 * @throws java.sql.SQLException when the database could not be reached
+	 */
+	int next(MechanicShop esql) throws SQLException;
+}
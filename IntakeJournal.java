@@ -0,0 +1,596 @@
+/*
+ * Write-behind service request intake
+ * ===================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * This class takes service requests and ownerships at the front desk
+ * without waiting for the database.  Each one is validated against the
+ * cached reference rows, given its id, appended to a local journal file
+ * and acknowledged as soon as the journal is on disk; a background thread
+ * then writes the journal to the database in large batches.
+ *
+ * Appends are made durable by group commit: one fsync covers every record
+ * appended while the previous fsync ran, so a rush of clerks shares a few
+ * fsyncs instead of paying one each.
+ *
+ * A batch is written in one transaction together with the sequence number
+ * of its last record in intake_checkpoint, under the id the journal was
+ * given when created, so journals of the same name on other hosts or in
+ * other directories never share a checkpoint.  After a crash the journal is
+ * read back, a torn last record is cut off, and the records past the
+ * checkpoint are written again: each record reaches the database exactly
+ * once however often the drain is retried or the process restarted.
+ *
+ * While the database is unreachable, intake goes on as long as the rows
+ * it validates against are cached and reserved ids remain (RESERVE_IDS of
+ * each kind, topped up after every batch); the drain retries with a
+ * growing backoff.  A record the database rejects when it is drained
+ * (e.g. the ownership was removed meanwhile) is skipped and reported.
+ *
+ * Line format, one record per line, fields escaped and tab separated:
+ *
+ *	seq	S	journal_id					start of a journal
+ *	seq	O	ownership_id	customer_id	vin		an ownership
+ *	seq	R	rid	customer_id	vin	date	odometer	complain	a service request
+ *
+ * each followed by the CRC32 of the line before it, in hex.
+ *
+ */
+public class IntakeJournal{
+	static final int BATCH_SIZE = 1000;
+	//how long a record may wait for a fuller batch
+	static final long DRAIN_INTERVAL_MILLIS = 200;
+	static final long MAX_BACKOFF_MILLIS = 10000;
+	static final int RESERVE_IDS = 1024;
+	//a fully drained journal larger than this is started over
+	static final long COMPACT_BYTES = 1 << 20;
+	static final String INSERT_OWNS = "INSERT INTO Owns SELECT ?, ?, ? WHERE EXISTS (SELECT 1 FROM Customer WHERE id = ?) AND EXISTS (SELECT 1 FROM Car WHERE vin = ?)";
+
+	private final ConnectionPool pool;
+	private final File file;
+	//the key of the journal in intake_checkpoint
+	private final String id;
+	private final FileChannel channel;
+	private final Object lock = new Object();
+	//records appended and not yet drained, in journal order
+	private final ArrayDeque<Record> pending = new ArrayDeque<Record>();
+	//customer_id + "\t" + vin of the ownerships among them
+	private final Set<String> pendingOwns = new HashSet<String>();
+	private final ArrayDeque<Integer> requestIds = new ArrayDeque<Integer>();
+	private final ArrayDeque<Integer> ownsIds = new ArrayDeque<Integer>();
+	private long lastSeq;
+	private long durableSeq;
+	//the journal length up to the last durable record
+	private long durableBytes;
+	private boolean syncing = false;
+	private boolean closing = false;
+	private final Thread drainer;
+	private long appended = 0;
+	private long fsyncs = 0;
+	private long drained = 0;
+	private long batches = 0;
+	private long rejected = 0;
+	private long retries = 0;
+
+	/**
+	 * One journaled row.
+	 */
+	static final class Record{
+		final long seq;
+		final char type;
+		final String[] fields;
+		final long appendedAt = System.currentTimeMillis();
+		//dropped by a failed fsync, guarded by the journal lock
+		boolean lost = false;
+
+		Record(long seq, char type, String[] fields){
+			this.seq = seq;
+			this.type = type;
+			this.fields = fields;
+		}
+	}
+
+	/**
+	 * Opens a journal, recovers the records it holds that the database has
+	 * not seen and starts draining them.
+	 *
+	 * @param pool the connections to validate and drain with
+	 * @param file the journal file; created with a new id when missing
+	 * @throws java.io.IOException when the journal cannot be read or written
+	 */
+	public IntakeJournal(ConnectionPool pool, File file) throws IOException {
+		this.pool = pool;
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		String id = recover();
+		if(id == null){
+			//a new journal, or one torn before its start marker was on disk
+			id = UUID.randomUUID().toString();
+			this.lastSeq = 0;
+			this.channel.truncate(0);
+			this.channel.position(0);
+			write(line(0, 'S', new String[]{ id }));
+			this.channel.force(false);
+		}
+		this.id = id;
+		this.durableSeq = this.lastSeq;
+		this.durableBytes = this.channel.position();
+		try{
+			refillIds();
+		}catch(SQLException e){
+			System.err.println("intake: cannot reserve ids yet: " + e.getMessage());
+		}
+		this.drainer = new Thread(new Runnable(){
+			public void run(){
+				drainLoop();
+			}
+		}, "intake-drain");
+		this.drainer.setDaemon(true);
+		this.drainer.start();
+	}
+
+	/**
+	 * Method to read the journal back: the records past a start marker are
+	 * queued again; the drain skips those the database already has.
+	 *
+	 * @return the id of the journal, null when it has no start marker
+	 * @throws java.io.IOException when records come without a start marker
+	 */
+	private String recover() throws IOException {
+		if(this.channel.size() == 0) return null;
+		ByteBuffer buf = ByteBuffer.allocate((int) this.channel.size());
+		this.channel.read(buf, 0);
+		String text = new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+		String id = null;
+		long valid = 0;
+		int at = 0;
+		while(at < text.length()){
+			int end = text.indexOf('\n', at);
+			if(end < 0) break;
+			String line = text.substring(at, end);
+			int tab = line.lastIndexOf('\t');
+			if(tab < 0 || !crc(line.substring(0, tab)).equals(line.substring(tab + 1))) break;
+			String[] fields = line.substring(0, tab).split("\t", -1);
+			for(int i = 0; i < fields.length; ++i) fields[i] = unescape(fields[i]);
+			long seq = Long.parseLong(fields[0]);
+			char type = fields[1].charAt(0);
+			if(type == 'S'){
+				if(fields.length > 2) id = fields[2];
+			}else{
+				String[] values = new String[fields.length - 2];
+				System.arraycopy(fields, 2, values, 0, values.length);
+				queue(new Record(seq, type, values));
+			}
+			this.lastSeq = seq;
+			at = end + 1;
+			valid += line.getBytes(StandardCharsets.UTF_8).length + 1;
+		}//end while
+		if(valid < this.channel.size()){
+			System.err.println("intake: cutting a torn record off " + this.file + " at byte " + valid);
+			this.channel.truncate(valid);
+		}
+		this.channel.position(valid);
+		if(id == null){
+			if(!this.pending.isEmpty()) throw new IOException(this.file + " has records but no journal id");
+			return null;
+		}
+		System.out.println("intake: read back " + this.pending.size() + " record(s) from " + this.file + "; those already written are skipped");
+		return id;
+	}
+
+	/**
+	 * Method to take a service request.
+	 *
+	 * @return the rid of the request, final once this returns
+	 * @throws java.lang.Exception when the request is invalid or cannot
+	 *         be validated or journaled
+	 */
+	public int openRequest(int customerID, String carVin, String date, int od, String complain) throws Exception {
+		long start = System.nanoTime();
+		try{
+			LocalDate opened = ShopDates.parse(date);
+			String vin = carVin.trim();
+			MechanicShop esql = this.pool.acquire();
+			int rid;
+			try{
+				if(!owns(esql, customerID, vin)) throw new Exception("Customer doesn't own this car.\n");
+				rid = nextId(esql, this.requestIds, MechanicShop.requestIds);
+			}finally{
+				this.pool.release(esql);
+			}
+			append('R', new String[]{ String.valueOf(rid), String.valueOf(customerID), vin, opened.toString(), String.valueOf(od), complain == null ? "" : complain });
+			return rid;
+		}finally{
+			Metrics.operation("IntakeServiceRequest", start);
+		}
+	}
+
+	/**
+	 * Method to take an ownership.
+	 *
+	 * @return the ownership id, final once this returns
+	 * @throws java.lang.Exception when the customer or car does not exist
+	 *         or cannot be validated or journaled
+	 */
+	public int addOwnership(int customerID, String carVin) throws Exception {
+		long start = System.nanoTime();
+		try{
+			String vin = carVin.trim();
+			MechanicShop esql = this.pool.acquire();
+			int id;
+			try{
+				if(MechanicShop.customers.get(esql, customerID) == null) throw new Exception("Customer does not exist.\n");
+				if(MechanicShop.cars.get(esql, vin) == null) throw new Exception("Car does not exist.\n");
+				id = nextId(esql, this.ownsIds, MechanicShop.ownsIds);
+			}finally{
+				this.pool.release(esql);
+			}
+			append('O', new String[]{ String.valueOf(id), String.valueOf(customerID), vin });
+			return id;
+		}finally{
+			Metrics.operation("IntakeOwnership", start);
+		}
+	}
+
+	private boolean owns(MechanicShop esql, int customerID, String vin) throws SQLException {
+		synchronized(this.lock){
+			if(this.pendingOwns.contains(customerID + "\t" + vin)) return true;
+		}
+		List<List<String>> cars = MechanicShop.ownedCars.get(esql, customerID);
+		if(cars != null){
+			for(List<String> car : cars)
+				if(car.get(0) != null && car.get(0).trim().equals(vin)) return true;
+		}
+		return false;
+	}
+
+	//an id from the reserve, or from the allocator once it is used up
+	private int nextId(MechanicShop esql, ArrayDeque<Integer> reserve, IdAllocator ids) throws SQLException {
+		synchronized(this.lock){
+			Integer id = reserve.poll();
+			if(id != null) return id;
+		}
+		return ids.next(esql);
+	}
+
+	private void refillIds() throws SQLException {
+		MechanicShop esql = this.pool.acquire();
+		try{
+			refill(esql, this.requestIds, MechanicShop.requestIds);
+			refill(esql, this.ownsIds, MechanicShop.ownsIds);
+		}finally{
+			this.pool.release(esql);
+		}
+	}
+
+	private void refill(MechanicShop esql, ArrayDeque<Integer> reserve, IdAllocator ids) throws SQLException {
+		int missing;
+		synchronized(this.lock){
+			missing = RESERVE_IDS - reserve.size();
+		}
+		List<Integer> fresh = new ArrayList<Integer>(Math.max(0, missing));
+		for(int i = 0; i < missing; ++i) fresh.add(ids.next(esql));
+		synchronized(this.lock){
+			reserve.addAll(fresh);
+		}
+	}
+
+	/**
+	 * Method to journal a record and wait until it is on disk.  The first
+	 * waiter to find no fsync running runs one for everybody appended so
+	 * far; appends carry on while it runs and join the next one.
+	 *
+	 * When an fsync fails, every record past the last durable one is
+	 * dropped from the queue and cut off the journal, and each of their
+	 * clerks gets the error: a request that was refused is never written
+	 * later.
+	 */
+	private void append(char type, String[] fields) throws IOException {
+		Record record;
+		synchronized(this.lock){
+			if(this.closing) throw new IOException("The intake journal is closed");
+			record = new Record(++this.lastSeq, type, fields);
+			write(line(record.seq, type, fields));
+			queue(record);
+			++this.appended;
+		}
+		while(true){
+			long upTo, upToBytes;
+			synchronized(this.lock){
+				while(this.durableSeq < record.seq && !record.lost && this.syncing){
+					try{
+						this.lock.wait();
+					}catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for the journal");
+					}
+				}
+				if(record.lost) throw new IOException("The intake journal could not be written to disk");
+				if(this.durableSeq >= record.seq) return;
+				this.syncing = true;
+				upTo = this.lastSeq;
+				upToBytes = this.channel.position();
+			}
+			boolean ok = false;
+			try{
+				this.channel.force(false);
+				ok = true;
+			}finally{
+				synchronized(this.lock){
+					this.syncing = false;
+					++this.fsyncs;
+					if(ok){
+						this.durableSeq = Math.max(this.durableSeq, upTo);
+						this.durableBytes = Math.max(this.durableBytes, upToBytes);
+					}else{
+						dropUndurable();
+					}
+					this.lock.notifyAll();
+				}
+			}
+		}//end while
+	}
+
+	//drops the records a failed fsync may not have written; called holding the lock
+	private void dropUndurable() throws IOException {
+		while(!this.pending.isEmpty() && this.pending.peekLast().seq > this.durableSeq){
+			Record r = this.pending.pollLast();
+			r.lost = true;
+			if(r.type == 'O') this.pendingOwns.remove(r.fields[1] + "\t" + r.fields[2]);
+		}
+		this.channel.truncate(this.durableBytes);
+		this.channel.position(this.durableBytes);
+	}
+
+	private void write(String line) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+		while(buf.hasRemaining()) this.channel.write(buf);
+	}
+
+	private void queue(Record record){
+		this.pending.add(record);
+		if(record.type == 'O') this.pendingOwns.add(record.fields[1] + "\t" + record.fields[2]);
+	}
+
+	/**
+	 * Method run by the drain thread: write the durable records in
+	 * batches until closed and empty, backing off while the database is
+	 * unreachable.  A record whose fsync is still running is waited for.
+	 */
+	private void drainLoop(){
+		long backoff = 100;
+		while(true){
+			List<Record> batch;
+			synchronized(this.lock){
+				while(true){
+					Record oldest = this.pending.peek();
+					if(oldest == null && this.closing) return;
+					if(oldest != null && oldest.seq <= this.durableSeq && (this.closing || due())) break;
+					try{
+						this.lock.wait(DRAIN_INTERVAL_MILLIS);
+					}catch(InterruptedException e){
+						return;
+					}
+				}//end while
+				batch = new ArrayList<Record>(Math.min(BATCH_SIZE, this.pending.size()));
+				for(Record r : this.pending){
+					if(r.seq > this.durableSeq || batch.size() >= BATCH_SIZE) break;
+					batch.add(r);
+				}
+			}
+			try{
+				drain(batch);
+				backoff = 100;
+				refillIds();
+			}catch(Exception e){
+				++this.retries;
+				System.err.println("intake: drain of " + batch.size() + " record(s) failed, retrying in " + backoff + "ms: " + e.getMessage());
+				try{
+					Thread.sleep(backoff);
+				}catch(InterruptedException ie){
+					return;
+				}
+				backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+			}
+		}//end while
+	}
+
+	//a full batch is waiting, or the oldest record has waited long enough
+	private boolean due(){
+		Record oldest = this.pending.peek();
+		if(oldest == null) return false;
+		return this.pending.size() >= BATCH_SIZE || System.currentTimeMillis() - oldest.appendedAt >= DRAIN_INTERVAL_MILLIS;
+	}
+
+	/**
+	 * Method to write a batch and its checkpoint in one transaction, then
+	 * drop it from the queue.
+	 */
+	private void drain(final List<Record> batch) throws Exception {
+		final MechanicShop esql = this.pool.acquire();
+		final long last = batch.get(batch.size() - 1).seq;
+		int skipped;
+		try{
+			skipped = UnitOfWork.run(esql, new UnitOfWork.Work<Integer>(){
+				public Integer run(MechanicShop esql) throws Exception {
+					//locks the checkpoint, so two drains of the same journal cannot both write
+					List<List<String>> rows = esql.executeQueryAndReturnResult("SELECT seq FROM intake_checkpoint WHERE journal = ? FOR UPDATE", id);
+					long done = rows.isEmpty() ? 0 : Long.parseLong(rows.get(0).get(0).trim());
+					List<Record> owns = new ArrayList<Record>();
+					List<Record> requests = new ArrayList<Record>();
+					for(Record r : batch){
+						if(r.seq <= done) continue;
+						(r.type == 'O' ? owns : requests).add(r);
+					}
+					//ownerships first: the requests of the batch may need them
+					List<Record> ownsAdded = insert(esql, INSERT_OWNS, owns);
+					List<Record> requestsAdded = insert(esql, MechanicShop.INSERT_OWNED_REQUEST, requests);
+					int skipped = owns.size() - ownsAdded.size() + requests.size() - requestsAdded.size();
+					if(esql.hasSummaryTables()) summarize(esql, requestsAdded);
+					if(rows.isEmpty())
+						esql.executeUpdate("INSERT INTO intake_checkpoint VALUES(?, ?)", id, last);
+					else if(last > done)
+						esql.executeUpdate("UPDATE intake_checkpoint SET seq = ? WHERE journal = ?", last, id);
+					return skipped;
+				}
+			});
+		}finally{
+			this.pool.release(esql);
+		}
+		synchronized(this.lock){
+			for(int i = 0; i < batch.size(); ++i){
+				Record r = this.pending.poll();
+				if(r.type == 'O'){
+					//invalidated before the key goes, so owns() always finds the car in one of the two
+					MechanicShop.ownedCars.invalidate(Integer.parseInt(r.fields[1]));
+					this.pendingOwns.remove(r.fields[1] + "\t" + r.fields[2]);
+				}
+			}
+			this.drained += batch.size();
+			this.rejected += skipped;
+			++this.batches;
+			if(this.pending.isEmpty() && !this.closing && this.channel.size() > COMPACT_BYTES){
+				//start over, keeping the sequence going
+				this.channel.truncate(0);
+				this.channel.position(0);
+				write(line(this.lastSeq, 'S', new String[]{ this.id }));
+				this.channel.force(false);
+				this.durableBytes = this.channel.position();
+			}
+		}
+	}//end drain
+
+	/**
+	 * Method to batch insert records whose inserts add nothing when the
+	 * row is no longer valid.
+	 *
+	 * @return the records the database inserted
+	 */
+	private List<Record> insert(MechanicShop esql, String sql, List<Record> records) throws SQLException {
+		List<Record> inserted = new ArrayList<Record>(records.size());
+		if(records.isEmpty()) return inserted;
+		List<Object[]> rows = new ArrayList<Object[]>(records.size());
+		for(Record r : records) rows.add(args(r));
+		int[] counts = esql.executeBatch(sql, rows);
+		for(int i = 0; i < counts.length; ++i){
+			Record r = records.get(i);
+			if(counts[i] == 1){
+				inserted.add(r);
+				continue;
+			}
+			System.err.println("intake: record " + r.seq + " rejected by the database: " + (r.type == 'O'
+				? "customer " + r.fields[1] + " or car " + r.fields[2] + " does not exist"
+				: "customer " + r.fields[1] + " does not own car " + r.fields[2] + " (rid " + r.fields[0] + ")"));
+		}
+		return inserted;
+	}
+
+	//the arguments of INSERT_OWNS or INSERT_OWNED_REQUEST
+	private static Object[] args(Record r){
+		String[] f = r.fields;
+		int customerID = Integer.parseInt(f[1]);
+		if(r.type == 'O') return new Object[]{ Integer.parseInt(f[0]), customerID, f[2], customerID, f[2] };
+		return new Object[]{ Integer.parseInt(f[0]), customerID, f[2], LocalDate.parse(f[3]), Integer.parseInt(f[4]), f[5], customerID, f[2] };
+	}
+
+	//counts the requests the database inserted into the summary tables
+	private static void summarize(MechanicShop esql, List<Record> requests) throws SQLException {
+		Map<String, Integer> byCar = new HashMap<String, Integer>();
+		Map<LocalDate, Integer> byMonth = new HashMap<LocalDate, Integer>();
+		for(Record r : requests){
+			Integer n = byCar.get(r.fields[2]);
+			byCar.put(r.fields[2], n == null ? 1 : n + 1);
+			LocalDate month = ShopDates.month(LocalDate.parse(r.fields[3]));
+			n = byMonth.get(month);
+			byMonth.put(month, n == null ? 1 : n + 1);
+		}
+		SummaryTables.requestsOpened(esql, byCar, byMonth);
+	}
+
+	/**
+	 * Method to stop taking records, drain what is left and close the
+	 * journal.
+	 *
+	 * @param timeoutMillis how long to wait for the database; the records
+	 *        left stay in the journal for the next start
+	 * @return whether everything was drained
+	 */
+	public boolean close(long timeoutMillis) throws IOException, InterruptedException {
+		synchronized(this.lock){
+			this.closing = true;
+			this.lock.notifyAll();
+		}
+		this.drainer.join(timeoutMillis);
+		this.drainer.interrupt();
+		boolean empty;
+		synchronized(this.lock){
+			empty = this.pending.isEmpty();
+		}
+		this.channel.close();
+		System.out.println(this);
+		return empty;
+	}
+
+	@Override
+	public String toString(){
+		synchronized(this.lock){
+			return String.format("intake %s: %d appended in %d fsync(s), %d drained in %d batch(es), %d rejected, %d retried batch(es), %d pending",
+				this.file, this.appended, this.fsyncs, this.drained, this.batches, this.rejected, this.retries, this.pending.size());
+		}
+	}
+
+	private static String line(long seq, char type, String[] fields){
+		StringBuilder line = new StringBuilder().append(seq).append('\t').append(type);
+		for(String field : fields) line.append('\t').append(escape(field));
+		String text = line.toString();
+		return text + '\t' + crc(text) + '\n';
+	}
+
+	private static String crc(String text){
+		CRC32 crc = new CRC32();
+		crc.update(text.getBytes(StandardCharsets.UTF_8));
+		return Long.toHexString(crc.getValue());
+	}
+
+	private static String escape(String value){
+		return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(String value){
+		if(value.indexOf('\\') < 0) return value;
+		StringBuilder out = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); ++i){
+			char c = value.charAt(i);
+			if(c == '\\' && i + 1 < value.length()){
+				char n = value.charAt(++i);
+				out.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+			}else{
+				out.append(c);
+			}
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,383 @@
+/*
+ * Parallel memory mapped CSV reader
+ * =================================
+ *
+ * Reads the data/*.csv layout: comma separated, unquoted, CR LF or LF line
+ * ends, with the odd blank after a comma (e.g. "Toyota, Prius").
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class memory maps a csv file, splits it into newline aligned chunks
+ * and parses the chunks in parallel on a fork/join pool.  Fields are read
+ * straight from the mapped bytes: ints, seed file dates and fixed width
+ * values never go through an intermediate String.
+ *
+ * A ChunkParser builds one accumulator per chunk and merges them pairwise
+ * in file order, so the result does not depend on how the file was split.
+ *
+ */
+public class MappedCsvReader{
+	//chunks below this size are not split further
+	static final int MIN_CHUNK = 1 << 20;
+
+	/**
+	 * This interface turns the rows of a chunk into an accumulator.
+	 */
+	public interface ChunkParser<R>{
+		R newChunk();
+		void row(R acc, Row row);
+		/**
+		 * @return the accumulator of left followed by right
+		 */
+		R merge(R left, R right);
+	}
+
+	/**
+	 * Method to parse a file on the common fork/join pool.
+	 *
+	 * @param file the csv file
+	 * @param numCol the number of fields per row
+	 * @param parser builds and merges the per chunk results
+	 * @return the merged result
+	 * @throws java.io.IOException when the file could not be mapped
+	 */
+	public static <R> R read(File file, int numCol, ChunkParser<R> parser) throws IOException {
+		return read(file, numCol, parser, ForkJoinPool.commonPool(), MIN_CHUNK);
+	}
+
+	public static <R> R read(File file, int numCol, ChunkParser<R> parser, ForkJoinPool pool, int minChunk) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			FileChannel channel = raf.getChannel();
+			return pool.invoke(new ChunkTask<R>(channel, 0, channel.size(), numCol, parser, minChunk));
+		}catch(RuntimeException e){
+			if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw e;
+		}finally{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Method to measure parsing throughput on a synthetic service request
+	 * file scale times the size of the seed file, once on a single thread
+	 * and once on every core.
+	 *
+	 * @param dataDir the directory holding service_request.csv
+	 * @param scale how many copies of the seed rows the synthetic file holds
+	 * @throws java.io.IOException when the file could not be written or read
+	 */
+	public static void benchmark(File dataDir, int scale) throws IOException {
+		File seed = new File(dataDir, "service_request.csv");
+		File synthetic = File.createTempFile("service_request_x" + scale + "_", ".csv");
+		synthetic.deleteOnExit();
+		int seedRows = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(seed));
+		List<String> lines = new ArrayList<String>();
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				if(!line.trim().isEmpty()) lines.add(line.substring(line.indexOf(',')));
+			}
+		}finally{
+			reader.close();
+		}
+		seedRows = lines.size();
+		Writer writer = new BufferedWriter(new FileWriter(synthetic), 1 << 20);
+		try{
+			//same rows with fresh rids, keeping the seed file's CR LF endings
+			long rid = 0;
+			for(int copy = 0; copy < scale; copy++){
+				for(String rest : lines){
+					writer.write(Long.toString(rid++));
+					writer.write(rest);
+					writer.write("\r\n");
+				}
+			}
+		}finally{
+			writer.close();
+		}
+		double mb = synthetic.length() / (1024.0 * 1024.0);
+		System.out.println(String.format("%s: %.1f MB, %d rows", synthetic.getName(), mb, (long) seedRows * scale));
+
+		ChunkParser<long[]> checksum = new ChunkParser<long[]>(){
+			public long[] newChunk(){
+				return new long[4];
+			}
+			public void row(long[] acc, Row row){
+				acc[0]++;
+				acc[1] += row.getInt(0) + row.getInt(1) + row.getInt(4);
+				acc[2] += row.getDate(3);
+				acc[3] += row.hash(2);
+			}
+			public long[] merge(long[] left, long[] right){
+				for(int i = 0; i < left.length; i++) left[i] += right[i];
+				return left;
+			}
+		};
+		ForkJoinPool single = new ForkJoinPool(1);
+		ForkJoinPool all = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try{
+			for(int round = 0; round < 3; round++){
+				//the first round warms up the JIT and the page cache
+				time(round == 0 ? "warm up (1 thread)" : "1 thread", synthetic, checksum, single, mb);
+				time(round == 0 ? "warm up (" + all.getParallelism() + " thread(s), parallel)" : all.getParallelism() + " thread(s), parallel", synthetic, checksum, all, mb);
+			}
+		}finally{
+			single.shutdown();
+			all.shutdown();
+			synthetic.delete();
+		}
+	}//end benchmark
+
+	private static void time(String label, File file, ChunkParser<long[]> parser, ForkJoinPool pool, double mb) throws IOException {
+		long start = System.nanoTime();
+		long[] result = read(file, 6, parser, pool, MIN_CHUNK);
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%-24s %8.3fs %9.1f MB/s %12.0f rows/s (checksum %d)",
+			label, secs, mb / secs, result[0] / secs, result[1] ^ result[2] ^ result[3]));
+	}
+
+	/**
+	 * Fork/join task over the byte range [start, end), which always begins
+	 * at the start of a line and ends just after a newline (or at EOF).
+	 */
+	private static class ChunkTask<R> extends RecursiveTask<R>{
+		private static final long serialVersionUID = 1L;
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final int numCol;
+		private final ChunkParser<R> parser;
+		private final int minChunk;
+
+		ChunkTask(FileChannel channel, long start, long end, int numCol, ChunkParser<R> parser, int minChunk){
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.numCol = numCol;
+			this.parser = parser;
+			this.minChunk = minChunk;
+		}
+
+		@Override
+		protected R compute(){
+			try{
+				//a single mapping holds at most 2GB, so large ranges are always split
+				if(this.end - this.start > Math.max(this.minChunk, 1) * 2L || this.end - this.start > Integer.MAX_VALUE){
+					long split = nextLine(this.start + (this.end - this.start) / 2);
+					if(split > this.start && split < this.end){
+						ChunkTask<R> left = new ChunkTask<R>(this.channel, this.start, split, this.numCol, this.parser, this.minChunk);
+						ChunkTask<R> right = new ChunkTask<R>(this.channel, split, this.end, this.numCol, this.parser, this.minChunk);
+						right.fork();
+						R l = left.compute();
+						return this.parser.merge(l, right.join());
+					}
+				}
+				return parse();
+			}catch(IOException e){
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Method to find the offset just past the first newline at or after pos.
+		 */
+		private long nextLine(long pos) throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(4096);
+			while(pos < this.end){
+				buf.clear();
+				int n = this.channel.read(buf, pos);
+				if(n <= 0) break;
+				for(int i = 0; i < n; i++){
+					if(buf.get(i) == '\n') return pos + i + 1;
+				}
+				pos += n;
+			}
+			return this.end;
+		}
+
+		private R parse() throws IOException {
+			R acc = this.parser.newChunk();
+			if(this.end <= this.start) return acc;
+			MappedByteBuffer buf = this.channel.map(FileChannel.MapMode.READ_ONLY, this.start, this.end - this.start);
+			Row row = new Row(buf, this.numCol);
+			int limit = buf.limit();
+			int pos = 0;
+			while(pos < limit){
+				int eol = pos;
+				while(eol < limit && buf.get(eol) != '\n') ++eol;
+				if(row.split(pos, eol)) this.parser.row(acc, row);
+				pos = eol + 1;
+			}//end while
+			return acc;
+		}
+	}
+
+	/**
+	 * This class is the view of the current row.  It only records where the
+	 * fields start and end; values are parsed on demand.  It is reused for
+	 * every row of a chunk.
+	 */
+	public static class Row{
+		private final ByteBuffer buf;
+		private final int[] from;
+		private final int[] to;
+
+		Row(ByteBuffer buf, int numCol){
+			this.buf = buf;
+			this.from = new int[numCol];
+			this.to = new int[numCol];
+		}
+
+		/**
+		 * Method to locate the trimmed fields of the line [pos, eol).
+		 *
+		 * @return false for a blank line
+		 */
+		boolean split(int pos, int eol){
+			if(eol > pos && this.buf.get(eol - 1) == '\r') --eol;
+			int blank = pos;
+			while(blank < eol && this.buf.get(blank) == ' ') ++blank;
+			if(blank == eol) return false;
+			int numCol = this.from.length;
+			int start = pos;
+			for(int i = 0; i < numCol; i++){
+				int end = start;
+				if(i < numCol - 1){
+					while(end < eol && this.buf.get(end) != ',') ++end;
+					if(end == eol) return fail(pos, eol, numCol);
+				}else{
+					end = eol;
+				}
+				int a = start, b = end;
+				while(a < b && this.buf.get(a) == ' ') ++a;
+				while(b > a && this.buf.get(b - 1) == ' ') --b;
+				this.from[i] = a;
+				this.to[i] = b;
+				start = end + 1;
+			}
+			return true;
+		}
+
+		private boolean fail(int pos, int eol, int numCol){
+			byte[] line = new byte[eol - pos];
+			for(int i = 0; i < line.length; i++) line[i] = this.buf.get(pos + i);
+			throw new IllegalArgumentException("Expected " + numCol + " fields: " + new String(line, StandardCharsets.UTF_8));
+		}
+
+		public int length(int field){
+			return this.to[field] - this.from[field];
+		}
+
+		public byte byteAt(int field, int i){
+			return this.buf.get(this.from[field] + i);
+		}
+
+		/**
+		 * @return the field parsed as a (possibly negative) decimal int
+		 */
+		public int getInt(int field){
+			int p = this.from[field], e = this.to[field];
+			boolean negative = p < e && this.buf.get(p) == '-';
+			if(negative) ++p;
+			if(p == e) throw new NumberFormatException("Empty number in field " + field);
+			int value = 0;
+			for(; p < e; p++){
+				int d = this.buf.get(p) - '0';
+				if(d < 0 || d > 9) throw new NumberFormatException("Not a number in field " + field);
+				value = value * 10 + d;
+			}
+			return negative ? -value : value;
+		}
+
+		/**
+		 * @return a seed file date such as "5/20/2016 00:00" as the int 20160520
+		 */
+		public int getDate(int field){
+			int p = this.from[field], e = this.to[field];
+			int first = 0, second = 0, third = 0;
+			int part = 0;
+			for(; p < e; p++){
+				byte b = this.buf.get(p);
+				if(b == '/' || b == '-'){
+					if(++part > 2) break;
+				}else if(b == ' ' || b == 'T'){
+					break;
+				}else if(part == 0){
+					first = first * 10 + (b - '0');
+				}else if(part == 1){
+					second = second * 10 + (b - '0');
+				}else{
+					third = third * 10 + (b - '0');
+				}
+			}
+			//M/D/YYYY as in the seed files, or YYYY-MM-DD
+			if(first > 31) return first * 10000 + second * 100 + third;
+			return third * 10000 + first * 100 + second;
+		}
+
+		/**
+		 * @return the digits of a phone such as "(473)259-5186" as 4732595186
+		 */
+		public long getPhoneDigits(int field){
+			long value = 0;
+			for(int p = this.from[field]; p < this.to[field]; p++){
+				int d = this.buf.get(p) - '0';
+				if(d >= 0 && d <= 9) value = value * 10 + d;
+			}
+			return value;
+		}
+
+		/**
+		 * Method to copy a fixed width field (e.g. a 16 character VIN) into
+		 * a caller owned array, blank padded.
+		 */
+		public void copyFixed(int field, byte[] dst, int offset, int width){
+			int n = Math.min(width, length(field));
+			for(int i = 0; i < n; i++) dst[offset + i] = this.buf.get(this.from[field] + i);
+			for(int i = n; i < width; i++) dst[offset + i] = ' ';
+		}
+
+		/**
+		 * @return a 64 bit hash of the field bytes, for dictionaries keyed
+		 *         without building Strings
+		 */
+		public long hash(int field){
+			long h = 0xcbf29ce484222325L;
+			for(int p = this.from[field]; p < this.to[field]; p++){
+				h ^= this.buf.get(p);
+				h *= 0x100000001b3L;
+			}
+			return h;
+		}
+
+		/**
+		 * @return the field as a String; this is the only allocating accessor
+		 */
+		public String getString(int field){
+			byte[] bytes = new byte[length(field)];
+			for(int i = 0; i < bytes.length; i++) bytes[i] = this.buf.get(this.from[field] + i);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -14,15 +14,20 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.time.LocalDate;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -30,20 +35,71 @@ import java.util.ArrayList;
  *
  */
 
-public class MechanicShop{
+//not public: javac only accepts a public class from a file named MechanicShop.java
+class MechanicShop{
 	//reference to physical database connection
 	private Connection _connection = null;
+	//prepared statements of _connection, reused across calls
+	private StatementCache _statements = null;
+	//number of statements issued on _connection, to catch round trips that grow with the data
+	private long _statementCount = 0;
+	//whether the report summary tables exist, looked up on first use
+	private Boolean _summaryTables = null;
+	private Boolean _archive = null;
+	//actions waiting for the commit of the current transaction, see UnitOfWork.afterCommit
+	private final List<Runnable> _afterCommit = new ArrayList<Runnable>();
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	static final int STATEMENT_CACHE_SIZE = 64;
+	//rows fetched per round trip by the streaming cursors
+	static final int FETCH_SIZE = 256;
+	//forces the cached, parameterized helpers for queries without arguments
+	static final Object[] NO_ARGS = new Object[0];
+	static final int ID_BLOCK_SIZE = 64;
+	//-Dmechanicshop.commit=async: commits do not wait for the log flush (see setAsynchronousCommit)
+	static final boolean ASYNC_COMMIT = "async".equalsIgnoreCase(System.getProperty("mechanicshop.commit"));
+	//key generators of the tables whose ids the shop assigns itself
+	static IdAllocator customerIds = new HiLoIdAllocator("Customer", "id", ID_BLOCK_SIZE);
+	static IdAllocator mechanicIds = new HiLoIdAllocator("Mechanic", "id", ID_BLOCK_SIZE);
+	static IdAllocator ownsIds = new HiLoIdAllocator("Owns", "ownership_id", ID_BLOCK_SIZE);
+	static IdAllocator requestIds = new HiLoIdAllocator("Service_Request", "rid", ID_BLOCK_SIZE);
+	//reference rows the validation paths read over and over; writes of this process invalidate them
+	static final RefCache<Integer, List<String>> mechanics = new RefCache<Integer, List<String>>("mechanic", new RefCache.Loader<Integer, List<String>>(){
+		public List<String> load(MechanicShop esql, Integer id) throws SQLException {
+			return firstRow(esql.executeQueryAndReturnResult("SELECT * FROM Mechanic WHERE id = ?", id));
+		}
+	});
+	static final RefCache<Integer, List<String>> customers = new RefCache<Integer, List<String>>("customer", new RefCache.Loader<Integer, List<String>>(){
+		public List<String> load(MechanicShop esql, Integer id) throws SQLException {
+			return firstRow(esql.executeQueryAndReturnResult("SELECT * FROM Customer WHERE id = ?", id));
+		}
+	});
+	static final RefCache<String, List<String>> cars = new RefCache<String, List<String>>("car", new RefCache.Loader<String, List<String>>(){
+		public List<String> load(MechanicShop esql, String vin) throws SQLException {
+			return firstRow(esql.executeQueryAndReturnResult("SELECT * FROM Car WHERE vin = ?", vin));
+		}
+	});
+	//the cars of a customer, OWNED_CARS rows; a customer without cars is cached as an empty list
+	static final RefCache<Integer, List<List<String>>> ownedCars = new RefCache<Integer, List<List<String>>>("owned cars", new RefCache.Loader<Integer, List<List<String>>>(){
+		public List<List<String>> load(MechanicShop esql, Integer customerID) throws SQLException {
+			return esql.executeQueryAndReturnResult(OWNED_CARS, customerID);
+		}
+	});
 	
+	private static List<String> firstRow(List<List<String>> rows){
+		return rows.isEmpty() ? null : rows.get(0);
+	}
+
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			String url = url(dbname, dbport);
 			System.out.println ("Connection URL: " + url + "\n");
 			
 			// obtain a physical connection
 	        this._connection = DriverManager.getConnection(url, user, passwd);
+	        this._statements = new StatementCache(this._connection, STATEMENT_CACHE_SIZE);
+	        if(ASYNC_COMMIT) setAsynchronousCommit(true);
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -51,6 +107,49 @@ public class MechanicShop{
 	        System.exit(-1);
 		}
 	}
+
+	/**
+	 * Constructs a MechanicShop around an already open connection, e.g. one
+	 * opened by the connection pool.
+	 *
+	 * @param connection the physical connection this instance will use
+	 */
+	public MechanicShop(Connection connection) throws SQLException {
+		this._connection = connection;
+		this._statements = new StatementCache(connection, STATEMENT_CACHE_SIZE);
+		if(ASYNC_COMMIT) setAsynchronousCommit(true);
+	}
+
+	/**
+	 * Method to choose whether a commit waits for the write-ahead log to
+	 * reach disk.  Without the wait PostgreSQL flushes the log of many
+	 * concurrent commits together (a group commit), so a unit of work no
+	 * longer pays a disk flush each; a crash can lose the last fraction of
+	 * a second of committed work but never corrupts the database.  Other
+	 * databases keep their default.
+	 *
+	 * @param async true to stop waiting for the flush
+	 * @throws java.sql.SQLException when the setting cannot be changed
+	 */
+	public void setAsynchronousCommit(boolean async) throws SQLException {
+		if(!"PostgreSQL".equals(this._connection.getMetaData().getDatabaseProductName())) return;
+		executeUpdate("SET synchronous_commit TO " + (async ? "OFF" : "ON"));
+	}
+
+	/**
+	 * Method to build the JDBC url of the shop database.  A dbname that is
+	 * already a JDBC url (e.g. an embedded stand-in database) is used as is.
+	 *
+	 * @param dbname the database name or a full JDBC url
+	 * @param dbport the port postgres listens on
+	 * @return the JDBC url
+	 */
+	public static String url(String dbname, String dbport){
+		if(dbname.startsWith("jdbc:")) return dbname;
+		// stringtype=unspecified lets bound strings be typed by the server,
+		// just as the quoted literals of the concatenated queries were
+		return "jdbc:postgresql://localhost:" + dbport + "/" + dbname + "?stringtype=unspecified";
+	}
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
@@ -60,14 +159,17 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException { 
+		long start = System.nanoTime ();
 		// creates a statement object
 		Statement stmt = this._connection.createStatement ();
+		countStatement();
 
 		// issues the update instruction
 		stmt.executeUpdate (sql);
 
 		// close the instruction
 	    stmt.close ();
+		Metrics.query ("executeUpdate", Metrics.UNPREPARED, start, 0);
 	}//end executeUpdate
 
 	/**
@@ -80,36 +182,18 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
+		long start = System.nanoTime ();
 		//creates a statement object
 		Statement stmt = this._connection.createStatement ();
+		countStatement();
 
 		//issues the query instruction
 		ResultSet rs = stmt.executeQuery (query);
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
 		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
+		int rowCount = printResult (rs);
 		stmt.close ();
+		Metrics.query ("executeQueryAndPrintResult", Metrics.UNPREPARED, start, rowCount);
 		return rowCount;
 	}
 	
@@ -123,8 +207,10 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
+		long start = System.nanoTime ();
 		//creates a statement object 
 		Statement stmt = this._connection.createStatement (); 
+		countStatement();
 		
 		//issues the query instruction 
 		ResultSet rs = stmt.executeQuery (query); 
@@ -147,6 +233,7 @@ public class MechanicShop{
 			result.add(record); 
 		}//end while 
 		stmt.close (); 
+		Metrics.query ("executeQueryAndReturnResult", Metrics.UNPREPARED, start, result.size ());
 		return result; 
 	}//end executeQueryAndReturnResult
 	
@@ -159,8 +246,10 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
+		long start = System.nanoTime ();
 		//creates a statement object
 		Statement stmt = this._connection.createStatement ();
+		countStatement();
 
 		//issues the query instruction
 		ResultSet rs = stmt.executeQuery (query);
@@ -172,9 +261,303 @@ public class MechanicShop{
 			rowCount++;
 		}//end while
 		stmt.close ();
+		Metrics.query ("executeQuery", Metrics.UNPREPARED, start, rowCount);
 		return rowCount;
 	}
 	
+	/**
+	 * Method to execute a parameterized update SQL statement.  The statement
+	 * is taken from the per-connection cache and the arguments are bound to
+	 * its ? placeholders in order.
+	 *
+	 * @param sql the input SQL string with ? placeholders
+	 * @param args the values bound to the placeholders
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public int executeUpdate (String sql, Object... args) throws SQLException {
+		long start = System.nanoTime ();
+		int rowCount = 0;
+		try{
+			PreparedStatement stmt = prepare (sql, args);
+			return rowCount = stmt.executeUpdate ();
+		}finally{
+			Metrics.query ("executeUpdate", sql, start, rowCount);
+		}
+	}//end executeUpdate
+
+	/**
+	 * Method to execute a parameterized update SQL statement once per row of
+	 * arguments, sent as one batch.  The statement is taken from the
+	 * per-connection cache and the batch counts as one statement.
+	 *
+	 * @param sql the input SQL string with ? placeholders
+	 * @param rows the values bound to the placeholders, one array per execution
+	 * @return the number of rows affected by each execution
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+		long start = System.nanoTime ();
+		long rowCount = 0;
+		PreparedStatement stmt = this._statements.prepare (sql);
+		countStatement();
+		try{
+			for (Object[] args : rows){
+				bind (stmt, args);
+				stmt.addBatch ();
+			}
+			int[] counts = stmt.executeBatch ();
+			for (int count : counts) if (count > 0) rowCount += count;
+			return counts;
+		}finally{
+			//the statement stays cached, so a failed batch must not linger on it
+			stmt.clearBatch ();
+			Metrics.query ("executeBatch", sql, start, rowCount);
+		}
+	}//end executeBatch
+
+	/**
+	 * Method to execute a parameterized query and output the results to
+	 * standard out.
+	 *
+	 * @param query the input query string with ? placeholders
+	 * @param args the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query, Object... args) throws SQLException {
+		long start = System.nanoTime ();
+		int rowCount = 0;
+		PreparedStatement stmt = prepare (query, args);
+		ResultSet rs = stmt.executeQuery ();
+		try{
+			return rowCount = printResult (rs);
+		}finally{
+			rs.close ();
+			Metrics.query ("executeQueryAndPrintResult", query, start, rowCount);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query and return the results as a
+	 * list of records.
+	 *
+	 * @param query the input query string with ? placeholders
+	 * @param args the values bound to the placeholders
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... args) throws SQLException {
+		long start = System.nanoTime ();
+		List<List<String>> result  = new ArrayList<List<String>>();
+		PreparedStatement stmt = prepare (query, args);
+		ResultSet rs = stmt.executeQuery ();
+		try{
+			int numCol = rs.getMetaData ().getColumnCount ();
+			while (rs.next()){
+				List<String> record = new ArrayList<String>();
+				for (int i=1; i<=numCol; ++i)
+					record.add(rs.getString (i));
+				result.add(record);
+			}//end while
+			return result;
+		}finally{
+			rs.close ();
+			Metrics.query ("executeQueryAndReturnResult", query, start, result.size ());
+		}
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a parameterized query and return whether it
+	 * produced at least one row.
+	 *
+	 * @param query the input query string with ? placeholders
+	 * @param args the values bound to the placeholders
+	 * @return 1 if the query returned a row, 0 otherwise
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query, Object... args) throws SQLException {
+		long start = System.nanoTime ();
+		int rowCount = 0;
+		PreparedStatement stmt = prepare (query, args);
+		ResultSet rs = stmt.executeQuery ();
+		try{
+			return rowCount = rs.next() ? 1 : 0;
+		}finally{
+			rs.close ();
+			Metrics.query ("executeQuery", query, start, rowCount);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query and return a cursor over its
+	 * rows.  The rows are fetched FETCH_SIZE at a time instead of being
+	 * materialized; the caller must close the cursor.
+	 *
+	 * PostgreSQL only honours the fetch size inside a transaction, so in
+	 * autocommit the query runs in a read-only transaction of its own,
+	 * which closing the cursor ends before autocommit is turned back on.
+	 *
+	 * @param query the input query string with ? placeholders
+	 * @param args the values bound to the placeholders
+	 * @return the open cursor
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ResultCursor executeQueryForCursor (String query, Object... args) throws SQLException {
+		Connection transaction = this._connection.getAutoCommit () ? this._connection : null;
+		if (transaction != null){
+			transaction.setReadOnly (true);
+			transaction.setAutoCommit (false);
+		}
+		try{
+			PreparedStatement stmt = prepare (query, args);
+			stmt.setFetchSize (FETCH_SIZE);
+			return new ResultCursor (stmt.executeQuery (), transaction);
+		}catch (SQLException e){
+			if (transaction != null) ResultCursor.endTransaction (transaction);
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query and stream its rows to a
+	 * result writer, header first.
+	 *
+	 * @param query the input query string with ? placeholders
+	 * @param out the writer receiving the rows; the caller closes it
+	 * @param args the values bound to the placeholders
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when failed to execute the query
+	 * @throws java.io.IOException when failed to write the rows
+	 */
+	public int executeQueryAndWriteResult (String query, ResultWriter out, Object... args) throws SQLException, IOException {
+		long start = System.nanoTime ();
+		int rowCount = 0;
+		ResultCursor cursor = executeQueryForCursor (query, args);
+		try{
+			return rowCount = out.writeAll (cursor);
+		}finally{
+			cursor.close ();
+			Metrics.query ("executeQueryAndWriteResult", query, start, rowCount);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query and hand its rows to a
+	 * callback one at a time.
+	 *
+	 * @param query the input query string with ? placeholders
+	 * @param handler the callback receiving each row
+	 * @param args the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryForEach (String query, RowHandler handler, Object... args) throws SQLException {
+		long start = System.nanoTime ();
+		int rowCount = 0;
+		ResultCursor cursor = executeQueryForCursor (query, args);
+		try{
+			while (cursor.advance ()){
+				handler.handle (cursor);
+				++rowCount;
+			}//end while
+			return rowCount;
+		}finally{
+			cursor.close ();
+			Metrics.query ("executeQueryForEach", query, start, rowCount);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query returning a single integer,
+	 * such as a COUNT(*).
+	 *
+	 * @param query the input query string with ? placeholders
+	 * @param args the values bound to the placeholders
+	 * @return the first column of the first row, or 0 when there is no row
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryForInt (String query, Object... args) throws SQLException {
+		long start = System.nanoTime ();
+		int rowCount = 0;
+		PreparedStatement stmt = prepare (query, args);
+		ResultSet rs = stmt.executeQuery ();
+		try{
+			if (!rs.next ()) return 0;
+			rowCount = 1;
+			return rs.getInt (1);
+		}finally{
+			rs.close ();
+			Metrics.query ("executeQueryForInt", query, start, rowCount);
+		}
+	}
+
+	/**
+	 * Method to fetch a prepared statement from the cache and bind the
+	 * arguments to it.
+	 */
+	private PreparedStatement prepare (String sql, Object[] args) throws SQLException {
+		PreparedStatement stmt = this._statements.prepare (sql);
+		countStatement();
+		bind (stmt, args);
+		return stmt;
+	}
+
+	//binds the arguments to the ? placeholders in order
+	private static void bind (PreparedStatement stmt, Object[] args) throws SQLException {
+		stmt.clearParameters ();
+		for (int i = 0; i < args.length; ++i){
+			if (args[i] == null)
+				stmt.setNull (i + 1, Types.NULL);
+			else
+				stmt.setObject (i + 1, args[i]);
+		}
+	}
+
+	/**
+	 * Method to write a result set to standard out, header first.
+	 */
+	private static int printResult (ResultSet rs) throws SQLException {
+		long start = System.nanoTime ();
+		//one buffered write instead of a synchronized print per cell
+		try{
+			ResultWriter out = ResultWriter.open("tab", null);
+			int rowCount = out.writeAll(new ResultCursor(rs));
+			out.flush();
+			return rowCount;
+		}catch(IOException e){
+			throw new SQLException("Unable to print the result: " + e.getMessage(), e);
+		}finally{
+			Metrics.CONSOLE.record (System.nanoTime () - start);
+		}
+	}
+
+	//counts a statement for getStatementCount and the process-wide metrics
+	private void countStatement(){
+		++this._statementCount;
+		Metrics.STATEMENTS.increment ();
+	}
+
+	/**
+	 * Method to return the number of statements this instance has sent to
+	 * the database so far.
+	 *
+	 * @return the statement count
+	 */
+	public long getStatementCount(){
+		return this._statementCount;
+	}
+
+	/**
+	 * Method to expose the prepared statement cache of this connection,
+	 * e.g. to read its hit and miss counters.
+	 *
+	 * @return the statement cache
+	 */
+	public StatementCache getStatementCache(){
+		return this._statements;
+	}
+
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
@@ -187,17 +570,100 @@ public class MechanicShop{
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
 		Statement stmt = this._connection.createStatement ();
+		countStatement();
 		
 		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
 		if (rs.next()) return rs.getInt(1);
 		return -1;
 	}
 
+	/**
+	 * Method to advance a sequence and return its new value.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return next value of the sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long getNextSeqVal(String sequence) throws SQLException {
+		long start = System.nanoTime ();
+		PreparedStatement stmt = prepare ("SELECT nextval(?)", new Object[]{ sequence });
+		ResultSet rs = stmt.executeQuery ();
+		try{
+			if (rs.next()) return rs.getLong(1);
+			return -1;
+		}finally{
+			rs.close ();
+			Metrics.query ("getNextSeqVal", sequence, start, 1);
+		}
+	}
+
+	/**
+	 * Method to tell whether the report summary tables are installed.  The
+	 * catalog is read once per connection.
+	 *
+	 * @return true when the summary tables must be maintained and read
+	 * @throws java.sql.SQLException when the catalog cannot be read
+	 */
+	public boolean hasSummaryTables() throws SQLException {
+		if(this._summaryTables == null){
+			this._summaryTables = SummaryTables.isInstalled(this);
+		}
+		return this._summaryTables;
+	}
+
+	void setSummaryTables(boolean installed){
+		this._summaryTables = installed;
+	}
+
+	/**
+	 * Method to tell whether the request archive tables exist.  The catalog
+	 * is read once per connection, so migrate before starting the server.
+	 *
+	 * @return true when reports must read the archived requests too
+	 * @throws java.sql.SQLException when the catalog cannot be read
+	 */
+	public boolean hasArchive() throws SQLException {
+		if(this._archive == null){
+			this._archive = RequestArchive.isInstalled(this);
+		}
+		return this._archive;
+	}
+
+	/**
+	 * Method to make a query over the request history read the archived
+	 * requests too, once the archive tables exist.
+	 *
+	 * @param query a query of Service_Request and Closed_Request
+	 * @return the query to run on this connection
+	 * @throws java.sql.SQLException when the catalog cannot be read
+	 */
+	public String allHistory(String query) throws SQLException {
+		return hasArchive() ? RequestArchive.allHistory(query) : query;
+	}
+
+	//the actions UnitOfWork runs once the current transaction commits
+	List<Runnable> afterCommitActions(){
+		return this._afterCommit;
+	}
+
+	/**
+	 * Method to expose the physical connection to the helpers that need
+	 * direct JDBC access (e.g. the bulk loader).
+	 *
+	 * @return the connection opened by the constructor
+	 */
+	public Connection getConnection(){
+		return this._connection;
+	}
+
 	/**
 	 * Method to close the physical connection if it is open.
 	 */
 	public void cleanup(){
 		try{
+			if (this._statements != null){
+				this._statements.clear ();
+			}//end if
 			if (this._connection != null){
 				this._connection.close ();
 			}//end if
@@ -210,22 +676,68 @@ public class MechanicShop{
 	 * The main execution method
 	 * 
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+	 *             optionally followed by a command (e.g. load <dataDir>)
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length >= 2 && args[0].equals("offline")) {
+			runOffline(args);
+			return;
+		}//end if
+		if (args.length >= 2 && args[0].equals("csvbench")) {
+			try{
+				MappedCsvReader.benchmark(new File(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 100);
+			}catch(Exception e){
+				System.err.println(e.getMessage());
+			}
+			return;
+		}//end if
+		if (args.length < 3) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [command]\n" +
+				"   or: java [-classpath <classpath>] " + MechanicShop.class.getName () +
+				" offline <dataDir> <report 6-10> [k]\n" +
+				"   or: java [-classpath <classpath>] " + MechanicShop.class.getName () +
+				" csvbench <dataDir> [scale]\n" +
+				"Commands:\n" +
+				"\tload <dataDir> [batchSize] [commitInterval] [nocopy]\n" +
+				"\tserve <listenPort> [poolSize] [acquireTimeoutMs]\n" +
+				"\tdashboard [partitions] [poolSize] [k]\n" +
+				"\tintake <journalFile> [poolSize]\n" +
+				"\tworkload <dataDir> <seconds> <sessions> <opsPerSecond> [op=weight,...]\n" +
+				"\tbatch <script|-> [groupSize]\n" +
+				"\timport <customer|mechanic|car> <csv|-> [groupSize]\n" +
+				"\tcheckroundtrips\n" +
+				"\texport <report 6,7,8,10> [tab|csv|json] [file]\n" +
+				"\tpages <pageSize> [tab|csv|json]\n" +
+				"\tinstallaggregates | dropaggregates | checkaggregates\n" +
+				"\tmigrate | schemaversion\n" +
+				"\tcheckplans\n" +
+				"\tsnapshot <file>\n" +
+				"\tarchive [monthsToKeep] [asOf]\n" +
+				"\tverifyoffline <dataDir> [k]\n" +
+				"Set -Dmechanicshop.commit=async to commit without waiting for the log flush (group commit)\n" +
+				"Set -Dmechanicshop.metrics.file=<path> to export metrics every mechanicshop.metrics.period seconds\n" +
+				"Set -Dmechanicshop.snapshot=<file> to warm up from it at startup and write it on exit, except for the maintenance commands (serve: every mechanicshop.snapshot.period seconds too)\n" +
+				"<dbname> may also be a full JDBC url, e.g. an embedded stand-in database");
 			return;
 		}//end if
 		
 		MechanicShop esql = null;
+		//non-zero when a command failed, so scripts and CI can check it
+		int status = 0;
+		//the session and serving commands warm up from the snapshot and write it again on exit
+		boolean warm = args.length <= 3 || !COLD_COMMANDS.contains(args[3]);
 		
 		try{
 			System.out.println("(1)");
 			
+			String dbname = args[0];
+			String dbport = args[1];
+			String user = args[2];
+
 			try {
-				Class.forName("org.postgresql.Driver");
+				if(!dbname.startsWith("jdbc:")) Class.forName("org.postgresql.Driver");
 			}catch(Exception e){
 
 				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
@@ -234,11 +746,15 @@ public class MechanicShop{
 			}
 			
 			System.out.println("(2)");
-			String dbname = args[0];
-			String dbport = args[1];
-			String user = args[2];
 			
 			esql = new MechanicShop (dbname, dbport, user, "");
+			Metrics.startExport ();
+			if (warm) ReferenceSnapshot.startup (esql);
+
+			if(args.length > 3){
+				runCommand(esql, args);
+				return;
+			}
 			
 			boolean keepon = true;
 			while(keepon){
@@ -255,6 +771,9 @@ public class MechanicShop{
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
 				System.out.println("11. < EXIT");
+				System.out.println("12. Metrics");
+				System.out.println("13. ListRequestsOpenedBetween");
+				System.out.println("14. ListMonthlyBills");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
@@ -271,13 +790,18 @@ public class MechanicShop{
 					case 9: ListKCarsWithTheMostServices(esql); break;
 					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
 					case 11: keepon = false; break;
+					case 12: Metrics.print(); break;
+					case 13: ListRequestsOpenedBetween(esql); break;
+					case 14: ListMonthlyBills(esql); break;
 				}
 			}
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
+			status = 1;
 		}finally{
 			try{
 				if(esql != null) {
+					if (warm) ReferenceSnapshot.shutdown (esql);
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -286,8 +810,195 @@ public class MechanicShop{
 				// ignored.
 			}
 		}
+		if (status != 0) System.exit (status);
 	}
 
+	//schema and maintenance commands; they may run before the tables exist and do not use the reference caches
+	static final List<String> COLD_COMMANDS = Arrays.asList("load", "import", "installaggregates", "dropaggregates", "checkaggregates",
+		"migrate", "schemaversion", "checkplans", "checkroundtrips", "archive", "snapshot");
+
+	/**
+	 * Method to run a non-interactive command given after the connection
+	 * arguments instead of showing the menu.
+	 *
+	 * @param esql the connected shop
+	 * @param args the full command line; args[3] is the command name
+	 * @throws java.lang.Exception when the command fails or is unknown
+	 */
+	public static void runCommand(MechanicShop esql, String[] args) throws Exception {
+		String command = args[3];
+		if(command.equals("load")){
+			String dataDir = args.length > 4 ? args[4] : "data";
+			BulkLoader loader = new BulkLoader(esql.getConnection());
+			if(args.length > 5) loader.setBatchSize(Integer.parseInt(args[5]));
+			if(args.length > 6) loader.setCommitInterval(Integer.parseInt(args[6]));
+			if(args.length > 7 && args[7].equals("nocopy")) loader.setUseCopy(false);
+			loader.loadAll(new File(dataDir));
+			SchemaMigrations.advanceIdSequences(esql);
+			//the loader writes behind the summary tables' back, so rebuild them
+			if(esql.hasSummaryTables()) SummaryTables.install(esql);
+		}else if(command.equals("verifyoffline")){
+			ColumnarReports offline = ColumnarReports.load(new File(args.length > 4 ? args[4] : "data"));
+			if(!offline.verify(esql, args.length > 5 ? Integer.parseInt(args[5]) : 10))
+				throw new Exception("Offline reports differ from the database");
+		}else if(command.equals("checkroundtrips")){
+			if(!RoundTripCheck.run(esql))
+				throw new Exception("Statement count grows with the result size");
+		}else if(command.equals("batch")){
+			BatchRunner batch = new BatchRunner(esql, args.length > 5 ? Integer.parseInt(args[5]) : 100);
+			if(!batch.run(args.length > 4 ? args[4] : "-"))
+				throw new Exception(batch.getFailed() + " operation(s) failed");
+		}else if(command.equals("import")){
+			BulkImport bulk = new BulkImport(esql, args.length > 4 ? args[4] : "customer", args.length > 6 ? Integer.parseInt(args[6]) : 1000);
+			bulk.run(args.length > 5 ? args[5] : "-");
+		}else if(command.equals("export")){
+			int report = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+			ResultWriter out = ResultWriter.open(args.length > 5 ? args[5] : "tab", args.length > 6 ? args[6] : null);
+			try{
+				esql.executeQueryAndWriteResult(reportQuery(esql, report), out, NO_ARGS);
+			}finally{
+				out.close();
+			}
+		}else if(command.equals("pages")){
+			ReportPager pager = new ReportPager(esql, args.length > 4 ? Integer.parseInt(args[4]) : 20);
+			ResultWriter out = ResultWriter.open(args.length > 5 ? args[5] : "tab", null);
+			while(pager.next(out) > 0 && pager.hasMore()){
+				out.println("-- Enter for the next page, q to quit --");
+				out.flush();
+				String answer = in.readLine();
+				if(answer == null || answer.trim().equalsIgnoreCase("q")) break;
+			}
+			out.close();
+		}else if(command.equals("installaggregates")){
+			SummaryTables.install(esql);
+		}else if(command.equals("dropaggregates")){
+			SummaryTables.drop(esql);
+		}else if(command.equals("migrate")){
+			SchemaMigrations.migrate(esql);
+			System.out.println("schema version " + SchemaMigrations.currentVersion(esql));
+		}else if(command.equals("schemaversion")){
+			System.out.println("schema version " + SchemaMigrations.currentVersion(esql) + " of " + SchemaMigrations.latestVersion());
+		}else if(command.equals("checkplans")){
+			if(!PlanCheck.run(esql))
+				throw new Exception("A query reads all of Service_Request or Closed_Request");
+		}else if(command.equals("archive")){
+			int monthsToKeep = args.length > 4 ? Integer.parseInt(args[4]) : RequestArchive.DEFAULT_KEEP_MONTHS;
+			LocalDate asOf = args.length > 5 ? ShopDates.parse(args[5]) : LocalDate.now();
+			RequestArchive.archive(esql, RequestArchive.cutoff(monthsToKeep, asOf));
+			RequestArchive.print(esql);
+		}else if(command.equals("snapshot")){
+			if(args.length < 5) throw new Exception("snapshot needs the file to write");
+			long start = System.nanoTime();
+			ReferenceSnapshot snapshot = ReferenceSnapshot.read(esql);
+			long bytes = snapshot.write(new File(args[4]));
+			int[] rows = snapshot.getRowCounts();
+			System.out.println(String.format("%d customers, %d mechanics, %d cars and %d ownerships written to %s (%d bytes) in %.1f ms",
+				rows[0], rows[1], rows[2], rows[3], args[4], bytes, (System.nanoTime() - start) / 1e6));
+		}else if(command.equals("checkaggregates")){
+			if(!SummaryTables.check(esql))
+				throw new Exception("Summary tables differ from the base tables");
+		}else if(command.equals("serve")){
+			int listenPort = args.length > 4 ? Integer.parseInt(args[4]) : 5166;
+			int poolSize = args.length > 5 ? Integer.parseInt(args[5]) : 8;
+			long acquireTimeout = args.length > 6 ? Long.parseLong(args[6]) : 5000;
+			ConnectionPool pool = new ConnectionPool(url(args[0], args[1]), args[2], "", poolSize, acquireTimeout);
+			ShopServer server = new ShopServer(pool);
+			ReferenceSnapshot.startPeriodic(pool);
+			try{
+				server.listen(listenPort);
+			}finally{
+				ReferenceSnapshot.stopPeriodic();
+				server.shutdown();
+				pool.close();
+			}
+		}else if(command.equals("intake")){
+			int poolSize = args.length > 5 ? Integer.parseInt(args[5]) : 4;
+			ConnectionPool pool = new ConnectionPool(url(args[0], args[1]), args[2], "", poolSize, 5000);
+			try{
+				runIntake(new IntakeJournal(pool, new File(args.length > 4 ? args[4] : "intake.journal")));
+			}finally{
+				pool.close();
+			}
+		}else if(command.equals("dashboard")){
+			int partitions = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+			int poolSize = args.length > 5 ? Integer.parseInt(args[5]) : 8;
+			ConnectionPool pool = new ConnectionPool(url(args[0], args[1]), args[2], "", poolSize, 60000);
+			try{
+				new Dashboard(pool, partitions, args.length > 6 ? Integer.parseInt(args[6]) : 10).run();
+			}finally{
+				pool.close();
+			}
+		}else if(command.equals("workload")){
+			int sessions = args.length > 6 ? Integer.parseInt(args[6]) : 8;
+			ConnectionPool pool = new ConnectionPool(url(args[0], args[1]), args[2], "", sessions, 60000);
+			try{
+				WorkloadDriver driver = new WorkloadDriver(pool, new File(args.length > 4 ? args[4] : "data"), args.length > 8 ? args[8] : WorkloadDriver.DEFAULT_MIX);
+				if(!driver.run(args.length > 5 ? Integer.parseInt(args[5]) : 60, sessions, args.length > 7 ? Double.parseDouble(args[7]) : 50))
+					throw new Exception("Operations failed or were abandoned");
+			}finally{
+				pool.close();
+			}
+		}else{
+			throw new Exception("Unknown command: " + command);
+		}
+	}//end runCommand
+
+	/**
+	 * Method to take service requests and ownerships from standard in, one
+	 * ShopCommands line each, through the write-behind journal.  Every
+	 * line is answered with "OK <id>" once journaled, or "ERR <message>".
+	 *
+	 * @param journal the opened journal; closed once standard in ends
+	 */
+	static void runIntake(IntakeJournal journal) throws Exception {
+		String line;
+		try{
+			while((line = in.readLine()) != null){
+				if(line.trim().isEmpty() || line.startsWith("#")) continue;
+				String[] op = ShopCommands.parse(line);
+				try{
+					String name = op[0].trim();
+					int id;
+					if(name.equalsIgnoreCase("InsertServiceRequest") && op.length == 6){
+						id = journal.openRequest(Integer.parseInt(op[1].trim()), op[2], op[3], Integer.parseInt(op[4].trim()), op[5]);
+					}else if(name.equalsIgnoreCase("AddOwnership") && op.length == 3){
+						id = journal.addOwnership(Integer.parseInt(op[1].trim()), op[2]);
+					}else{
+						throw new Exception("Intake takes InsertServiceRequest and AddOwnership lines only");
+					}
+					System.out.println("OK " + id);
+				}catch(Exception e){
+					System.out.println("ERR " + String.valueOf(e.getMessage()).trim());
+				}
+			}//end while
+		}finally{
+			if(!journal.close(60000))
+				System.err.println("Records left in the journal are written on the next start");
+		}
+	}
+
+	/**
+	 * Method to answer one of the reports 6 to 10 from the csv files alone,
+	 * for when the database is down or overloaded.
+	 *
+	 * @param args offline <dataDir> <report> [k]
+	 */
+	public static void runOffline(String[] args){
+		try{
+			long start = System.nanoTime();
+			ColumnarReports offline = ColumnarReports.load(new File(args[1]));
+			long loaded = System.nanoTime();
+			int report = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+			int k = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+			List<List<String>> rows = offline.run(report, k);
+			long done = System.nanoTime();
+			System.out.println(ShopCommands.format(rows) + "\n");
+			System.err.println(String.format("loaded in %.1fms, report in %.3fms", (loaded - start) / 1e6, (done - loaded) / 1e6));
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}//end runOffline
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -306,8 +1017,6 @@ public class MechanicShop{
 	
 	public static void AddCustomer(MechanicShop esql){//1
 		 try {
-                        String query1 = "INSERT INTO Customer\n";
-                        String cCount = esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Customer").get(0).get(0);
                         System.out.print("\tEnter First Name: ");
                         String fname = in.readLine();
                         System.out.print("\tEnter Last Name: ");
@@ -316,249 +1025,413 @@ public class MechanicShop{
                         String address = in.readLine();
                         System.out.print("\tEnter Phone Number: ");
                         String phone = in.readLine();
-			
-			String check = "SELECT * FROM Customer WHERE fname='"+fname+"' AND lname='"+lname+ "'AND phone='"+ phone+"' AND address='" + address+"'";
-			//if "!" removed it throws error message no matter what
-			//with "!" does not throw error message no matter what
-			if(!esql.executeQueryAndReturnResult(check).isEmpty()){
-				throw new Exception("Customer already exists.\n");
-			}
 
+                        int id = AddCustomer(esql, fname, lname, phone, address);
 
-                        String query = query1 + "VALUES("+Integer.parseInt(cCount)+",'"+ fname +"','"+ lname +"','"+ phone +"','"+address+"')";
-                        esql.executeUpdate(query);
-                
-			query = "SELECT * FROM Customer WHERE id=" + Integer.parseInt(cCount);
-                        esql.executeQueryAndPrintResult(query);
+                        esql.executeQueryAndPrintResult("SELECT * FROM Customer WHERE id=?", id);
 
                 }catch(Exception e){
                         System.err.println(e.getMessage());
                 }
 
 	}
-	
+
+	/**
+	 * Non-interactive part of AddCustomer, shared by the menu and the server
+	 * sessions.
+	 *
+	 * @return the id of the new customer
+	 * @throws java.lang.Exception when the customer already exists
+	 */
+	public static int AddCustomer(MechanicShop esql, final String fname, final String lname, final String phone, final String address) throws Exception {
+		long start = System.nanoTime();
+		try{
+			//serializable: no unique constraint backs the duplicate check
+			int id = UnitOfWork.run(esql, Connection.TRANSACTION_SERIALIZABLE, new UnitOfWork.Work<Integer>(){
+				public Integer run(MechanicShop esql) throws Exception {
+					String check = "SELECT * FROM Customer WHERE fname=? AND lname=? AND phone=? AND address=?";
+					if(esql.executeQuery(check, fname, lname, phone, address) > 0){
+						throw new Exception("Customer already exists.\n");
+					}
+					int id = customerIds.next(esql);
+					esql.executeUpdate("INSERT INTO Customer VALUES(?,?,?,?,?)", id, fname, lname, phone, address);
+					customers.invalidateAfterCommit(esql, id);
+					CustomerIndex.addedAfterCommit(esql, id, fname, lname, phone, address);
+					return id;
+				}
+			});
+			return id;
+		}finally{
+			Metrics.operation("AddCustomer", start);
+		}
+	}
+
 	public static void AddMechanic(MechanicShop esql){//2
 
 		try{
-                        String query1 = "INSERT INTO Mechanic\n";
-                        String cCount = esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Mechanic").get(0).get(0);
                         System.out.print("\tEnter First Name: ");
                         String fname = in.readLine();
                         System.out.print("\tEnter Last Name: ");
                         String lname = in.readLine();
                         System.out.print("\tEnter Experience(Years): ");
-                        String exp = in.readLine();
- 			
-			String check = "SELECT * FROM Mechanic WHERE fname='"+fname+"' AND lname='"+lname+ "'AND experience = "+exp;
-                        if(!esql.executeQueryAndReturnResult(check).isEmpty()){
-                                throw new Exception("Mechanic already exists.\n");
-                        }
-
+                        int exp = Integer.parseInt(in.readLine());
 
-                        String query = query1 + "VALUES("+Integer.parseInt(cCount)+",'"+ fname +"','"+ lname +"',"+ exp +")";
-                        esql.executeUpdate(query);
+                        int id = AddMechanic(esql, fname, lname, exp);
 
-			query = "SELECT * FROM Mechanic WHERE id=" + Integer.parseInt(cCount);
-                        esql.executeQueryAndPrintResult(query);
+                        esql.executeQueryAndPrintResult("SELECT * FROM Mechanic WHERE id=?", id);
 
                 }catch(Exception e){
                         System.err.println(e.getMessage());
                 }
 
 	}
-	
+
+	/**
+	 * Non-interactive part of AddMechanic.
+	 *
+	 * @return the id of the new mechanic
+	 * @throws java.lang.Exception when the mechanic already exists
+	 */
+	public static int AddMechanic(MechanicShop esql, final String fname, final String lname, final int exp) throws Exception {
+		long start = System.nanoTime();
+		try{
+			//serializable: no unique constraint backs the duplicate check
+			int id = UnitOfWork.run(esql, Connection.TRANSACTION_SERIALIZABLE, new UnitOfWork.Work<Integer>(){
+				public Integer run(MechanicShop esql) throws Exception {
+					String check = "SELECT * FROM Mechanic WHERE fname=? AND lname=? AND experience=?";
+					if(esql.executeQuery(check, fname, lname, exp) > 0){
+						throw new Exception("Mechanic already exists.\n");
+					}
+					int id = mechanicIds.next(esql);
+					esql.executeUpdate("INSERT INTO Mechanic VALUES(?,?,?,?)", id, fname, lname, exp);
+					mechanics.invalidateAfterCommit(esql, id);
+					return id;
+				}
+			});
+			return id;
+		}finally{
+			Metrics.operation("AddMechanic", start);
+		}
+	}
+
 	public static void AddCar(MechanicShop esql){//3
 		try{
-                        String query1 = "INSERT INTO Car\n";
-                        System.out.print("\tEnter vin: ");
-                        String vin = in.readLine();
-                        System.out.print("\tEnter make: ");
-                        String make = in.readLine();
-                        System.out.print("\tEnter model: ");
-                        String model = in.readLine();
-                        System.out.print("\tEnter year: ");
-                        String year = in.readLine();
-
-                        String check = "SELECT * FROM Car WHERE vin = '" + vin + "'";
-                        if(!esql.executeQueryAndReturnResult(check).isEmpty()){
-                                throw new Exception("Car VIN already exists.\n");
-                        }
+                        String[] car = readCar();
 
-                        String query = query1 + "VALUES('"+ vin +"','"+ make +"','"+ model +"',"+ year +")";
-                        esql.executeUpdate(query);
+                        AddCar(esql, car[0], car[1], car[2], Integer.parseInt(car[3]));
 
-                        query = "SELECT * FROM Car WHERE vin= '" + vin + "'\n";
-                        esql.executeQueryAndPrintResult(query);
+                        esql.executeQueryAndPrintResult("SELECT * FROM Car WHERE vin=?", car[0]);
 
                 }catch(Exception e){
                         System.err.println(e.getMessage());
                 }
 
 	}
-	
-	public static void InsertServiceRequest(MechanicShop esql){//4
+
+	/**
+	 * Method to prompt for the fields of a car.
+	 *
+	 * @return vin, make, model and year
+	 */
+	static String[] readCar() throws Exception {
+		System.out.print("\tEnter vin: ");
+		String vin = in.readLine();
+		System.out.print("\tEnter make: ");
+		String make = in.readLine();
+		System.out.print("\tEnter model: ");
+		String model = in.readLine();
+		System.out.print("\tEnter year: ");
+		String year = in.readLine();
+		Integer.parseInt(year);
+		return new String[]{ vin, make, model, year };
+	}
+
+	/**
+	 * Non-interactive part of AddCar.
+	 *
+	 * @throws java.lang.Exception when a car with that VIN already exists
+	 */
+	public static void AddCar(MechanicShop esql, final String vin, final String make, final String model, final int year) throws Exception {
+		long start = System.nanoTime();
 		try{
-			System.out.print("\tEnter last name: ");
-                        String lname = in.readLine();
-                        String existCustomer = "SELECT * FROM Customer WHERE lname='"+lname+"'";
-                        int cnt = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Customer WHERE lname='"+lname+"'").get(0).get(0));
+			//the primary key on vin backs the duplicate check, so read committed is enough
+			UnitOfWork.run(esql, new UnitOfWork.Work<Void>(){
+				public Void run(MechanicShop esql) throws Exception {
+					if(cars.get(esql, vin) != null){
+						throw new Exception("Car VIN already exists.\n");
+					}
+					esql.executeUpdate("INSERT INTO Car VALUES(?,?,?,?)", vin, make, model, year);
+					cars.invalidateAfterCommit(esql, vin);
+					return null;
+				}
+			});
+		}finally{
+			Metrics.operation("AddCar", start);
+		}
+	}
 
-                        List<List<String>> customer = esql.executeQueryAndReturnResult(existCustomer);
+	public static void InsertServiceRequest(MechanicShop esql){//4
+		try{
+			System.out.print("\tSearch customers by last name, phone or address: ");
+                        String search = in.readLine();
+                        int cnt = printCustomers(FindCustomers(esql, search));
 
                         if(cnt == 0){
                                 System.out.print("\tCustomer does not exist. Would you like to add a new customer?(0 = yes/1 = no) ");
                                 String newC = in.readLine();
                                 if(Integer.parseInt(newC) == 0){
                                         AddCustomer(esql);
+                                        printCustomers(FindCustomers(esql, search));
                                 }else if(Integer.parseInt(newC) == 1){
                                         throw new Exception("Returning to main menu.");
                                 }
 
 			}
 
-                                esql.executeQueryAndPrintResult(existCustomer);
                                 System.out.print("\tEnter Customer ID, from above, of desired customer: ");
-                                String customerID = in.readLine();
+                                int customerID = Integer.parseInt(in.readLine());
 
-                                int cnt1 = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Customer WHERE lname='"+lname+"' AND id="+customerID).get(0).get(0));
-                                if(cnt1 == 0){
+                                //the index only suggests; the database has the final word
+                                if(customers.get(esql, customerID) == null){
                                         throw new Exception("The customer ID provided was incorrect.");
                                 }
 
-                                String customerCars = "SELECT car_vin FROM Owns WHERE customer_id=" + customerID;
-                                List<List<String>> ownedCars = esql.executeQueryAndReturnResult(customerCars);
-                                int cnt2 = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Owns WHERE customer_id="+customerID).get(0).get(0));
+                                //prints the customer's cars, if any, with a single join
+                                int cnt2 = ListOwnedCars(esql, customerID);
 
+                                //a new car is only read here; it is added with its ownership and the request in one transaction
+                                String[] car = null;
                                 if(cnt2 == 0){
                                         System.out.print("\tNo cars found. Would you like to add a car?(0 = yes/1 = no)");
                                         int addCar = Integer.parseInt(in.readLine());
-                                        if(addCar == 0){
-                                                AddCar(esql);
-                                                int cntOwns = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Owns").get(0).get(0));
-
-                                                System.out.print("\tEnter the VIN of the car needing service: ");
-                                                String carVin = in.readLine();
-
-                                                String updateOwns = "INSERT INTO Owns\nVALUES("+cntOwns+","+customerID+",'"+carVin+"')";
-                                                esql.executeUpdate(updateOwns);
-                                                String rid = esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Service_Request").get(0).get(0);
-                                                System.out.print("\tEnter Date (MM/DD/YYYY): ");
-                                                String date = in.readLine();
-                                                System.out.print("\tEnter odometer value: ");
-                                                String od = in.readLine();
-                                                System.out.print("\tEnter complaint/issue with car: ");
-                                                String complain = in.readLine();
-
-                                                String query = "INSERT INTO Service_Request\nVALUES("+rid+","+customerID+",'"+carVin+"','"+date+"',"+od+",'"+complain+"')";
-                                                esql.executeUpdate(query);
-
-                                                query = "SELECT * FROM Service_Request WHERE rid="+rid;
-                                                esql.executeQueryAndPrintResult(query);
-                                        }
-
-			   		else if(addCar == 1){
+                                        if(addCar == 1){
                                                 throw new Exception("Returning to main menu.");
                                         }
-                                }else if(cnt2 > 0){
-                                        for(int i = 0;i < ownedCars.size();i++){
-                                                for(int x = 0; x < ownedCars.get(i).size();x++){
-                                                        String vins = "SELECT * FROM Car WHERE vin='"+ownedCars.get(i).get(x)+"'";
-                                                        esql.executeQueryAndPrintResult(vins);
-                                                }
-                                        }
-
+                                        car = readCar();
+                                }else{
                                         System.out.print("\tIs the car you wish to service shown above?(0 = yes/1 = no)");
                                         int carShown = Integer.parseInt(in.readLine());
                                         if(carShown == 1){
                                                 System.out.print("\tPlease fill out information on the car you wish to be serviced.");
-                                                AddCar(esql);
-
+                                                car = readCar();
                                         }
+                                }
+
+                                String carVin;
+                                if(car == null){
                                         System.out.print("\tEnter the VIN of the car needing service: ");
-                                        String carVin = in.readLine();
+                                        carVin = in.readLine();
+                                }else{
+                                        carVin = car[0];
+                                }
+                                System.out.print("\tEnter Date (MM/DD/YYYY): ");
+                                String date = in.readLine();
+                                System.out.print("\tEnter odometer value: ");
+                                int od = Integer.parseInt(in.readLine());
+                                System.out.print("\tEnter complaint/issue with car: ");
+                                String complain = in.readLine();
 
-                                        if(carShown == 1){
-                                                int cntOwns = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Owns").get(0).get(0));
-                                                String updateOwns = "INSERT INTO Owns\nVALUES("+cntOwns+","+customerID+",'"+carVin+"')";
-                                                esql.executeUpdate(updateOwns);
-                                        }
-					String check10 = "SELECT * FROM Owns WHERE customer_ID = " + customerID + " AND car_vin = '" + carVin + "'";
+                                int rid = car == null
+                                        ? InsertServiceRequest(esql, customerID, carVin, date, od, complain)
+                                        : InsertServiceRequestForNewCar(esql, customerID, car[0], car[1], car[2], Integer.parseInt(car[3]), date, od, complain);
 
-					if(esql.executeQueryAndReturnResult(check10).isEmpty()){
-                               			throw new Exception("Customer doesn't own this car.\n");
-                        		}					
+                                esql.executeQueryAndPrintResult("SELECT * FROM Service_Request WHERE rid=?", rid);
 
-                                        String rid = esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Service_Request").get(0).get(0);
-                                        System.out.print("\tEnter Date: ");
-                                        String date = in.readLine();
-                                        System.out.print("\tEnter odometer value: ");
-                                        String od = in.readLine();
-                                        System.out.print("\tEnter complaint/issue with car: ");
-                                        String complain = in.readLine();
+		}catch(Exception e){
+                        System.err.println(e.getMessage());
+                }
+	}
 
-                                        String query = "INSERT INTO Service_Request\nVALUES("+rid+","+customerID+",'"+carVin+"','"+date+"',"+od+",'"+complain+"')";
-                                        esql.executeUpdate(query);
+	/**
+	 * Method to find customers in the in-process index, reloading it once
+	 * when it finds nothing and may be missing customers added elsewhere.
+	 *
+	 * @param text a last name prefix, a phone number or address words
+	 * @return up to CUSTOMER_SEARCH_LIMIT customers
+	 */
+	public static List<CustomerIndex.Customer> FindCustomers(MechanicShop esql, String text) throws SQLException {
+		long start = System.nanoTime();
+		try{
+			CustomerIndex index = CustomerIndex.get(esql);
+			List<CustomerIndex.Customer> found = index.search(text, CUSTOMER_SEARCH_LIMIT);
+			if(found.isEmpty() && index.isStale()) found = CustomerIndex.reload(esql).search(text, CUSTOMER_SEARCH_LIMIT);
+			return found;
+		}finally{
+			Metrics.operation("FindCustomers", start);
+		}
+	}
 
-                                        query = "SELECT * FROM Service_Request WHERE rid="+rid;
-                                        esql.executeQueryAndPrintResult(query);
+	private static int printCustomers(List<CustomerIndex.Customer> customers){
+		if(customers.isEmpty()) return 0;
+		System.out.println("id\tfname\tlname\tphone\taddress\t");
+		for(CustomerIndex.Customer c : customers)
+			System.out.println(c.id + "\t" + c.fname + "\t" + c.lname + "\t" + c.phone + "\t" + c.address + "\t");
+		return customers.size();
+	}
 
-                                }
-                        
+	/**
+	 * Method to print every car a customer owns.
+	 *
+	 * @return the number of cars printed
+	 */
+	public static int ListOwnedCars(MechanicShop esql, int customerID) throws SQLException {
+		List<List<String>> rows = ownedCars.get(esql, customerID);
+		if(rows.isEmpty()) return 0;
+		System.out.println("vin\tmake\tmodel\tyear\t");
+		for(List<String> row : rows){
+			for(String value : row) System.out.print(value + "\t");
+			System.out.println();
+		}
+		return rows.size();
+	}
 
+	/**
+	 * Method to record that a customer owns a car.
+	 *
+	 * @return the ownership id of the new Owns row
+	 */
+	public static int AddOwnership(MechanicShop esql, int customerID, String carVin) throws Exception {
+		long start = System.nanoTime();
+		try{
+			int ownershipID = ownsIds.next(esql);
+			esql.executeUpdate("INSERT INTO Owns VALUES(?,?,?)", ownershipID, customerID, carVin);
+			//the caller's transaction may still be open, e.g. InsertServiceRequestForNewCar
+			ownedCars.invalidateAfterCommit(esql, customerID);
+			return ownershipID;
+		}finally{
+			Metrics.operation("AddOwnership", start);
+		}
+	}
 
-		}catch(Exception e){
-                        System.err.println(e.getMessage());
-                }
+	/**
+	 * Non-interactive part of InsertServiceRequest: opens a request for a
+	 * car the customer owns.
+	 *
+	 * @return the rid of the new service request
+	 * @throws java.lang.Exception when the customer does not own the car
+	 */
+	public static int InsertServiceRequest(MechanicShop esql, final int customerID, final String carVin, final String date, final int od, final String complain) throws Exception {
+		long start = System.nanoTime();
+		try{
+			final LocalDate opened = ShopDates.parse(date);
+			return UnitOfWork.run(esql, new UnitOfWork.Work<Integer>(){
+				public Integer run(MechanicShop esql) throws Exception {
+					int rid = requestIds.next(esql);
+					if(esql.executeUpdate(INSERT_OWNED_REQUEST, rid, customerID, carVin, opened, od, complain, customerID, carVin) == 0){
+						throw new Exception("Customer doesn't own this car.\n");
+					}
+					if(esql.hasSummaryTables()) SummaryTables.requestOpened(esql, carVin, opened);
+					return rid;
+				}
+			});
+		}finally{
+			Metrics.operation("InsertServiceRequest", start);
+		}
 	}
-	
+
+	/**
+	 * Non-interactive part of InsertServiceRequest for a car the customer
+	 * brings in for the first time: adds the car, the ownership and the
+	 * request in one transaction, so a failure leaves no orphan car or
+	 * Owns row behind.
+	 *
+	 * @return the rid of the new service request
+	 * @throws java.lang.Exception when the car already exists or the request is invalid
+	 */
+	public static int InsertServiceRequestForNewCar(MechanicShop esql, final int customerID, final String vin, final String make, final String model, final int year, final String date, final int od, final String complain) throws Exception {
+		return UnitOfWork.run(esql, new UnitOfWork.Work<Integer>(){
+			public Integer run(MechanicShop esql) throws Exception {
+				AddCar(esql, vin, make, model, year);
+				AddOwnership(esql, customerID, vin);
+				return InsertServiceRequest(esql, customerID, vin, date, od, complain);
+			}
+		});
+	}
+
 	public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
 		try{
 			System.out.print("\tEnter service request number: ");
-			String rid = in.readLine();
-			
-			String check = "SELECT * FROM Service_Request WHERE rid = " + rid ;
-                        if(esql.executeQueryAndReturnResult(check).isEmpty()){
-                                throw new Exception("Service Request with that record id does not exist.\n");
-                        }
-			String check3 = "SELECT * FROM Closed_Request WHERE rid = " + rid ;
-                        if(!esql.executeQueryAndReturnResult(check3).isEmpty()){
-                                throw new Exception("Closed Request with that record id already exists.\n");
-                        }
+			int rid = Integer.parseInt(in.readLine());
 			System.out.print("\tEnter employee id: ");
-			String empid = in.readLine();
-			
-			String check1 = "SELECT * FROM Mechanic WHERE id = " + empid ;
-                        if(esql.executeQueryAndReturnResult(check1).isEmpty()){
-                                throw new Exception("Mechanic with that id does not exist.\n");
-                        }
+			int empid = Integer.parseInt(in.readLine());
 			System.out.print("\tEnter closing date (MM/DD/YYYY): ");
 			String cdate = in.readLine();
-
-			String check2 = "SELECT * FROM Service_Request WHERE rid = " + rid + " AND date < '" + cdate +"'" ;
-                        if(esql.executeQueryAndReturnResult(check2).isEmpty()){
-                                throw new Exception("Closing date is not after open date.\n");
-                        }
 			System.out.print("\tEnter comment: ");
 			String comm = in.readLine();
 			System.out.print("\tEnter bill amount: ");
-			String bill = in.readLine();
-			//int wid = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Closed_Request).get(0).get(0));
-			
-			String query = "INSERT INTO Closed_Request VALUES (" +rid+ ", "+ rid + ", " + empid + ", '" + cdate + "', '" + comm + "', " + bill + ")";
-			esql.executeUpdate(query);
-                
-			query = "SELECT * FROM Closed_Request WHERE rid=" + rid;
-                        esql.executeQueryAndPrintResult(query);
+			int bill = Integer.parseInt(in.readLine());
+
+			CloseServiceRequest(esql, rid, empid, cdate, comm, bill);
+
+                        esql.executeQueryAndPrintResult("SELECT * FROM Closed_Request WHERE rid=?", rid);
 
 		}catch(Exception e){
                         System.err.println(e.getMessage());
-                }	
+                }
 	}
 
+	/**
+	 * Non-interactive part of CloseServiceRequest.
+	 *
+	 * @throws java.lang.Exception when the request, the mechanic or the
+	 *         closing date is invalid
+	 */
+	public static void CloseServiceRequest(MechanicShop esql, final int rid, final int empid, final String cdate, final String comm, final int bill) throws Exception {
+		long start = System.nanoTime();
+		try{
+			final LocalDate closed = ShopDates.parse(cdate);
+			//the checks and the insert see one snapshot of the request; wid = rid keeps a request from closing twice
+			UnitOfWork.run(esql, new UnitOfWork.Work<Void>(){
+				public Void run(MechanicShop esql) throws Exception {
+					//the checks in one round trip; the opening date is compared here
+					List<String> row = esql.executeQueryAndReturnResult(esql.allHistory(CLOSE_REQUEST_CHECKS), rid, rid, rid).get(0);
+					LocalDate opened = row.get(2) == null ? null : ShopDates.parse(row.get(2));
+					//mechanics are reference rows: usually no round trip at all
+					String error = closeRequestError(Long.parseLong(row.get(0).trim()), Long.parseLong(row.get(1).trim()), mechanics.get(esql, empid) == null ? 0 : 1,
+						opened != null && opened.isBefore(closed) ? 1 : 0);
+					if(error != null) throw new Exception(error);
+					esql.executeUpdate("INSERT INTO Closed_Request VALUES (?, ?, ?, ?, ?, ?)", rid, rid, empid, closed, comm, bill);
+					if(esql.hasSummaryTables()) SummaryTables.requestClosed(esql, rid, bill, opened, closed);
+					return null;
+				}
+			});
+		}finally{
+			Metrics.operation("CloseServiceRequest", start);
+		}
+	}
+
+	/**
+	 * @return the first check of CloseServiceRequest the matching row counts
+	 *         fail, or null when the request can be closed
+	 */
+	static String closeRequestError(long requests, long closed, long mechanics, long dated){
+		if(requests == 0) return "Service Request with that record id does not exist.\n";
+		if(closed > 0) return "Closed Request with that record id already exists.\n";
+		if(mechanics == 0) return "Mechanic with that id does not exist.\n";
+		if(dated == 0) return "Closing date is not after open date.\n";
+		return null;
+	}
+
+	static final String REPORT_BILL_LESS_THAN_100 = "SELECT c1.fname, c1.lname, c.date, c.comment, c.bill FROM Closed_Request c, Service_Request s, Customer c1 WHERE c.rid = s.rid AND s.customer_id = c1.id AND c.bill < 100";
+	static final String REPORT_MORE_THAN_20_CARS = "SELECT DISTINCT fname, lname FROM Customer, Owns WHERE id = customer_id AND customer_id IN (SELECT COUNT(*) FROM Owns GROUP BY customer_id HAVING COUNT(*) > 20)";
+	static final String REPORT_CARS_BEFORE_1995 = " SELECT make, model, year FROM Car, Service_Request WHERE vin = car_vin AND year < 1995 AND odometer < 50000";
+	//the k most serviced cars with their make and model in one statement; groups is the number of distinct cars serviced
+	static final String REPORT_TOP_K_CARS = "SELECT c.make, c.model, s.cnt, s.groups FROM (SELECT car_vin, COUNT(*) AS cnt, COUNT(*) OVER () AS groups FROM Service_Request GROUP BY car_vin ORDER BY COUNT(*) DESC LIMIT ?) s JOIN Car c ON c.vin = s.car_vin ORDER BY s.cnt DESC";
+	//for CloseServiceRequest: matching row counts of the request and its closed request, then the opening date
+	static final String CLOSE_REQUEST_CHECKS = "SELECT (SELECT COUNT(*) FROM Service_Request WHERE rid = ?), (SELECT COUNT(*) FROM Closed_Request WHERE rid = ?), (SELECT date FROM Service_Request WHERE rid = ?)";
+	static final String REQUESTS_OPENED_BETWEEN = "SELECT rid, customer_id, car_vin, date, odometer, complain FROM Service_Request WHERE date >= ? AND date < ? ORDER BY date, rid";
+	//inserts nothing unless the customer owns the car, so the check costs no round trip of its own
+	static final String INSERT_OWNED_REQUEST = "INSERT INTO Service_Request SELECT ?, ?, ?, ?, ?, ? WHERE EXISTS (SELECT 1 FROM Owns WHERE customer_id = ? AND car_vin = ?)";
+	static final int CUSTOMER_SEARCH_LIMIT = 50;
+	static final String OWNED_CARS = "SELECT c.* FROM Owns o JOIN Car c ON c.vin = o.car_vin WHERE o.customer_id = ?";
+	static final String REPORT_TOTAL_BILL = "SELECT fname, lname, SUM(bill) FROM ((Service_Request INNER JOIN Closed_Request ON Service_Request.rid = Closed_Request.rid) INNER JOIN Customer ON Service_Request.customer_id = Customer.id) GROUP BY Customer.id ORDER BY SUM(bill) DESC";
+
 	 public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
                 try{
-                        String query = "SELECT c1.fname, c1.lname, c.date, c.comment, c.bill FROM Closed_Request c, Service_Request s, Customer c1 WHERE c.rid = s.rid AND s.customer_id = c1.id AND c.bill < 100";
-                        int rowCount = esql.executeQueryAndPrintResult(query);
+                        long start = System.nanoTime();
+                        String query = esql.allHistory(REPORT_BILL_LESS_THAN_100);
+                        int rowCount = esql.executeQueryAndPrintResult(query, NO_ARGS);
+                        Metrics.operation("ListCustomersWithBillLessThan100", start);
                         System.out.println ("total row(s): " + rowCount + "\n");
                 }catch(Exception e){
                 System.err.println (e.getMessage());
@@ -567,8 +1440,10 @@ public class MechanicShop{
 
         public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
                 try{
-                        String query = "SELECT DISTINCT fname, lname FROM Customer, Owns WHERE id = customer_id AND customer_id IN (SELECT COUNT(*) FROM Owns GROUP BY customer_id HAVING COUNT(*) > 20)";
-                        int rowCount = esql.executeQueryAndPrintResult(query);
+                        long start = System.nanoTime();
+                        String query = REPORT_MORE_THAN_20_CARS;
+                        int rowCount = esql.executeQueryAndPrintResult(query, NO_ARGS);
+                        Metrics.operation("ListCustomersWithMoreThan20Cars", start);
                         System.out.println ("total row(s): " + rowCount + "\n");
                 }catch(Exception e){
                         System.err.println(e.getMessage());
@@ -577,55 +1452,197 @@ public class MechanicShop{
 
         public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
                 try{
-                        String query = " SELECT make, model, year FROM Car, Service_Request WHERE vin = car_vin AND year < 1995 AND odometer < 50000";
+                        long start = System.nanoTime();
+                        String query = esql.allHistory(REPORT_CARS_BEFORE_1995);
 
-                        int rowCount = esql.executeQueryAndPrintResult(query);
+                        int rowCount = esql.executeQueryAndPrintResult(query, NO_ARGS);
+                        Metrics.operation("ListCarsBefore1995With50000Milles", start);
                         System.out.println ("total row(s): " + rowCount + "\n");
                 }catch(Exception e){ //will print 'exception' from the database
                         System.err.println (e.getMessage());
                 }
         }
 
-	
+
 	public static void ListKCarsWithTheMostServices(MechanicShop esql){//9
 		//
 		try{
-			String query = "SELECT COUNT(*),car_vin\nFROM Service_Request\nGROUP BY car_vin\nORDER BY COUNT(*) DESC";
                         System.out.print("\tEnter a postive non-zero number: ");
                         int k = Integer.parseInt(in.readLine());
 
-                        List<List<String>> cntVin = esql.executeQueryAndReturnResult(query);
-                        if(k > cntVin.size()){
-                                throw new Exception("K value must be smaller than "+cntVin.size());
-                        }else if(k <= 0){
-                                throw new Exception("K value must be greater than 0.");
-                        }
-                        for(int i = 0; i < k;i++ ){
-                                int key = Integer.parseInt(cntVin.get(i).get(0));
-                                String vin = cntVin.get(i).get(1);
-
-                                String getCar = "SELECT make,model FROM Car WHERE vin='"+vin+"'";
-                                List<List<String>> getCarStuff = esql.executeQueryAndReturnResult(getCar);
-                                for(int x = 0; x < getCarStuff.size();x++){
-                                        System.out.print(getCarStuff.get(x).get(0)+"\t"+getCarStuff.get(x).get(1)+"\t"+key+"\n");
-                                }
+                        List<List<String>> top = ListKCarsWithTheMostServices(esql, k);
+                        for(int x = 0; x < top.size();x++){
+                                System.out.print(top.get(x).get(0)+"\t"+top.get(x).get(1)+"\t"+top.get(x).get(2)+"\n");
                         }
 
 		}catch(Exception e){
                         System.err.println(e.getMessage());
-                }	
+                }
 	}
-	
+
+	/**
+	 * Non-interactive part of ListKCarsWithTheMostServices.
+	 *
+	 * @return make, model and number of services of the k most serviced cars
+	 * @throws java.lang.Exception when k is out of range
+	 */
+	public static List<List<String>> ListKCarsWithTheMostServices(MechanicShop esql, int k) throws Exception {
+		long start = System.nanoTime();
+		try{
+			if(k <= 0){
+				throw new Exception("K value must be greater than 0.");
+			}
+			final List<List<String>> result = new ArrayList<List<String>>();
+			final int[] groups = new int[1];
+			if(esql.hasSummaryTables()){
+				//fewer than k rows at the top of the index means fewer than k cars were serviced
+				esql.executeQueryForEach(SummaryTables.REPORT_TOP_K_CARS, new RowHandler(){
+					public void handle(ResultCursor row) throws SQLException {
+						List<String> car = new ArrayList<String>(3);
+						car.add(row.getString(1));
+						car.add(row.getString(2));
+						car.add(String.valueOf(row.getInt(3)));
+						result.add(car);
+					}
+				}, k);
+				if(result.size() < k){
+					throw new Exception("K value must be smaller than "+result.size());
+				}
+				return result;
+			}
+			esql.executeQueryForEach(esql.allHistory(REPORT_TOP_K_CARS), new RowHandler(){
+				public void handle(ResultCursor row) throws SQLException {
+					List<String> car = new ArrayList<String>(3);
+					car.add(row.getString(1));
+					car.add(row.getString(2));
+					car.add(String.valueOf(row.getInt(3)));
+					result.add(car);
+					groups[0] = row.getInt(4);
+				}
+			}, k);
+			if(k > groups[0]){
+				throw new Exception("K value must be smaller than "+groups[0]);
+			}
+			return result;
+		}finally{
+			Metrics.operation("ListKCarsWithTheMostServices", start);
+		}
+	}
+
+	/**
+	 * Method to look up the query of a report that takes no arguments.
+	 *
+	 * @param report 6, 7, 8 or 10
+	 * @return the report query
+	 * @throws java.lang.Exception when the report needs arguments or does not exist
+	 */
+	static String reportQuery(MechanicShop esql, int report) throws Exception {
+		switch(report){
+			case 6: return esql.allHistory(REPORT_BILL_LESS_THAN_100);
+			case 7: return REPORT_MORE_THAN_20_CARS;
+			case 8: return esql.allHistory(REPORT_CARS_BEFORE_1995);
+			case 10: return totalBillQuery(esql);
+			default: throw new Exception("Report " + report + " cannot be exported; expected 6, 7, 8 or 10");
+		}
+	}
+
+	/**
+	 * Method to pick the query of report 10: the summary table when it is
+	 * installed, the full aggregation otherwise.
+	 *
+	 * @return the query listing customers by total bill
+	 */
+	static String totalBillQuery(MechanicShop esql) throws SQLException {
+		return esql.hasSummaryTables() ? SummaryTables.REPORT_TOTAL_BILL : esql.allHistory(REPORT_TOTAL_BILL);
+	}
+
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//10
 		//
 		 try{
-                        String query = "SELECT fname, lname, SUM(bill) FROM ((Service_Request INNER JOIN Closed_Request ON Service_Request.rid = Closed_Request.rid) INNER JOIN Customer ON Service_Request.customer_id = Customer.id) GROUP BY Customer.id ORDER BY SUM(bill) DESC";
-                        int rowCount = esql.executeQueryAndPrintResult(query);
+                        long start = System.nanoTime();
+                        String query = totalBillQuery(esql);
+                        int rowCount = esql.executeQueryAndPrintResult(query, NO_ARGS);
+                        Metrics.operation("ListCustomersInDescendingOrderOfTheirTotalBill", start);
                         System.out.println("total row(s): " + rowCount + "\n");
                   }catch(Exception e){ //will print 'exception' from the database
                         System.err.println (e.getMessage());
                 }
 
 	}
-	
-}
\ No newline at end of file
+
+	public static void ListRequestsOpenedBetween(MechanicShop esql){//13
+		try{
+			System.out.print("\tEnter first date (MM/DD/YYYY): ");
+			String from = in.readLine();
+			System.out.print("\tEnter last date (MM/DD/YYYY): ");
+			String to = in.readLine();
+			long start = System.nanoTime();
+			int rowCount = esql.executeQueryAndPrintResult(openedBetweenQuery(esql), openedBetween(from, to));
+			Metrics.operation("ListRequestsOpenedBetween", start);
+			System.out.println("total row(s): " + rowCount + "\n");
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ListMonthlyBills(MechanicShop esql){//14
+		try{
+			System.out.print("\tEnter first month (MM/YYYY): ");
+			String from = in.readLine();
+			System.out.print("\tEnter last month (MM/YYYY): ");
+			String to = in.readLine();
+			long start = System.nanoTime();
+			int rowCount = esql.executeQueryAndPrintResult(monthlyQuery(esql), monthlyWindow(firstOfMonth(from), firstOfMonth(to)));
+			Metrics.operation("ListMonthlyBills", start);
+			System.out.println("total row(s): " + rowCount + "\n");
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}
+
+	//"MM/YYYY" as the date of the first day of that month
+	private static String firstOfMonth(String month){
+		int slash = month.indexOf('/');
+		return slash < 0 ? month : month.substring(0, slash) + "/1" + month.substring(slash);
+	}
+
+	/**
+	 * Method to pick the query of ListRequestsOpenedBetween: the hot table
+	 * and, once there is an archive, the archived months the window
+	 * reaches.
+	 */
+	static String openedBetweenQuery(MechanicShop esql) throws SQLException {
+		return esql.hasArchive() ? RequestArchive.REQUESTS_OPENED_BETWEEN : REQUESTS_OPENED_BETWEEN;
+	}
+
+	/**
+	 * Method to turn the first and last day of a window, both included,
+	 * into the arguments of openedBetweenQuery, which every variant takes
+	 * once: the first day and the day after the last.
+	 */
+	static Object[] openedBetween(String from, String to){
+		return new Object[]{ ShopDates.parse(from), ShopDates.parse(to).plusDays(1) };
+	}
+
+	/**
+	 * Method to pick the monthly report query: Request_Month when the
+	 * summary tables are installed, grouping the base tables otherwise.
+	 */
+	static String monthlyQuery(MechanicShop esql) throws SQLException {
+		if(esql.hasSummaryTables()) return SummaryTables.REPORT_MONTHS;
+		return esql.hasArchive() ? RequestArchive.REPORT_MONTHS_SCAN : SummaryTables.REPORT_MONTHS_SCAN;
+	}
+
+	/**
+	 * Method to turn a window of months into the arguments of monthlyQuery,
+	 * which every variant takes once: the first month and the month after
+	 * the last.
+	 *
+	 * @param from a date in the first month of the window
+	 * @param to a date in the last month of the window
+	 */
+	static Object[] monthlyWindow(String from, String to){
+		return new Object[]{ ShopDates.month(ShopDates.parse(from)), ShopDates.month(ShopDates.parse(to)).plusMonths(1) };
+	}
+
+}
@@ -0,0 +1,379 @@
+/*
+ * Process-wide latency and volume metrics
+ * =======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class collects, for the whole process:
+ *
+ *	operation	latency of every menu operation, keyed by its name
+ *	query		latency and rows of every query helper call, keyed by
+ *			helper and SQL text (raw, unprepared SQL is not keyed
+ *			by its text to keep the number of series bounded)
+ *	statements	number of statements sent to the database
+ *	pool wait	time spent waiting for a pooled connection
+ *	console		time spent printing results
+ *	cache		hits, misses and evictions of every RefCache
+ *
+ * Recording is lock free: a histogram is an array of atomic bucket
+ * counters, so readers take a snapshot while the operations carry on.
+ * Latencies land in log-linear buckets, 16 per power of two, which bounds
+ * the error of a percentile to about 6%.
+ *
+ * Setting -Dmechanicshop.metrics.file=<path> exports every
+ * mechanicshop.metrics.period seconds (10 by default) in the Prometheus
+ * text format, replacing the file atomically, and once more on exit.
+ *
+ */
+public class Metrics{
+	static final Family OPERATIONS = new Family("mechanicshop_operation", "Latency of the menu operations", "op", null);
+	static final Family QUERIES = new Family("mechanicshop_query", "Latency of the query helpers", "helper", "sql");
+	static final Histogram POOL_WAIT = new Histogram();
+	static final Histogram CONSOLE = new Histogram();
+	static final LongAdder STATEMENTS = new LongAdder();
+
+	//label of the raw helpers, whose SQL is built by concatenation
+	static final String UNPREPARED = "(unprepared)";
+
+	private static ScheduledExecutorService exporter = null;
+
+	/**
+	 * Method to record a menu operation.
+	 *
+	 * @param op the operation name
+	 * @param start the System.nanoTime() the operation started at
+	 */
+	public static void operation(String op, long start){
+		OPERATIONS.get(op, null).record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Method to record a query helper call.
+	 *
+	 * @param helper the helper name
+	 * @param sql the statement text, or UNPREPARED
+	 * @param start the System.nanoTime() the call started at
+	 * @param rows the rows returned or affected
+	 */
+	public static void query(String helper, String sql, long start, long rows){
+		Histogram h = QUERIES.get(helper, sql);
+		h.record(System.nanoTime() - start);
+		h.rows.add(rows);
+	}
+
+	/**
+	 * A latency histogram with count, sum, max and a row counter.
+	 */
+	static class Histogram{
+		static final int SUB_BITS = 4;
+		static final int SUB_BUCKETS = 1 << SUB_BITS;
+		//exact below SUB_BUCKETS, then SUB_BUCKETS per power of two up to 2^63
+		static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+		final LongAdder rows = new LongAdder();
+
+		void record(long nanos){
+			if(nanos < 0) nanos = 0;
+			this.counts.incrementAndGet(bucket(nanos));
+			this.count.increment();
+			this.sum.add(nanos);
+			long cur;
+			while(nanos > (cur = this.max.get()) && !this.max.compareAndSet(cur, nanos));
+		}
+
+		static int bucket(long value){
+			if(value < SUB_BUCKETS) return (int) value;
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		//the largest value that falls in the bucket
+		static long upperBound(int bucket){
+			if(bucket < SUB_BUCKETS) return bucket;
+			int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+			long sub = bucket % SUB_BUCKETS;
+			return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+		}
+
+		/**
+		 * @param q the quantile, between 0 and 1
+		 * @return the value in nanoseconds below which a fraction q of the
+		 *         recorded values fall, at most the maximum recorded
+		 */
+		long percentile(double q){
+			long[] snapshot = new long[BUCKETS];
+			long total = 0;
+			for(int i = 0; i < BUCKETS; ++i){
+				snapshot[i] = this.counts.get(i);
+				total += snapshot[i];
+			}
+			if(total == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(q * total));
+			long seen = 0;
+			for(int i = 0; i < BUCKETS; ++i){
+				seen += snapshot[i];
+				if(seen >= rank) return Math.min(upperBound(i), this.max.get());
+			}
+			return this.max.get();
+		}
+
+		long getCount(){
+			return this.count.sum();
+		}
+
+		long getSum(){
+			return this.sum.sum();
+		}
+
+		long getMax(){
+			return this.max.get();
+		}
+	}
+
+	/**
+	 * Histograms of one metric, keyed by up to two label values.
+	 */
+	static class Family{
+		final String name;
+		final String help;
+		final String label1;
+		final String label2;
+		private final ConcurrentMap<String, ConcurrentMap<String, Histogram>> series = new ConcurrentHashMap<String, ConcurrentMap<String, Histogram>>();
+
+		Family(String name, String help, String label1, String label2){
+			this.name = name;
+			this.help = help;
+			this.label1 = label1;
+			this.label2 = label2;
+		}
+
+		Histogram get(String value1, String value2){
+			ConcurrentMap<String, Histogram> inner = this.series.get(value1);
+			if(inner == null){
+				ConcurrentMap<String, Histogram> created = new ConcurrentHashMap<String, Histogram>();
+				inner = this.series.putIfAbsent(value1, created);
+				if(inner == null) inner = created;
+			}
+			String key = value2 == null ? "" : value2;
+			Histogram h = inner.get(key);
+			if(h == null){
+				Histogram created = new Histogram();
+				h = inner.putIfAbsent(key, created);
+				if(h == null) h = created;
+			}
+			return h;
+		}
+
+		//label string -> histogram, sorted for stable output
+		Map<String, Histogram> snapshot(){
+			Map<String, Histogram> result = new TreeMap<String, Histogram>();
+			for(Map.Entry<String, ConcurrentMap<String, Histogram>> outer : this.series.entrySet()){
+				for(Map.Entry<String, Histogram> inner : outer.getValue().entrySet()){
+					String labels = this.label1 + "=\"" + escape(outer.getKey()) + "\"";
+					if(this.label2 != null) labels += "," + this.label2 + "=\"" + escape(inner.getKey()) + "\"";
+					result.put(labels, inner.getValue());
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Method to render every metric in the Prometheus text format.
+	 *
+	 * @return the exposition text
+	 */
+	public static String prometheus(){
+		StringBuilder out = new StringBuilder();
+		summary(out, OPERATIONS.name, OPERATIONS.help, OPERATIONS.snapshot(), false);
+		summary(out, QUERIES.name, QUERIES.help, QUERIES.snapshot(), true);
+		summary(out, "mechanicshop_pool_wait", "Time spent waiting for a pooled connection", single(POOL_WAIT), false);
+		summary(out, "mechanicshop_console", "Time spent printing results", single(CONSOLE), false);
+		out.append("# HELP mechanicshop_statements_total Statements sent to the database\n");
+		out.append("# TYPE mechanicshop_statements_total counter\n");
+		out.append("mechanicshop_statements_total ").append(STATEMENTS.sum()).append('\n');
+		caches(out);
+		return out.toString();
+	}
+
+	private static void caches(StringBuilder out){
+		String[] names = { "hits", "misses", "evictions", "expirations", "invalidations" };
+		for(int i = 0; i < names.length; ++i){
+			out.append("# HELP mechanicshop_cache_").append(names[i]).append("_total Reference cache ").append(names[i]).append('\n');
+			out.append("# TYPE mechanicshop_cache_").append(names[i]).append("_total counter\n");
+			for(RefCache<?, ?> cache : RefCache.all())
+				out.append("mechanicshop_cache_").append(names[i]).append("_total{cache=\"").append(escape(cache.getName())).append("\"} ").append(cache.getStats()[i]).append('\n');
+		}
+		out.append("# HELP mechanicshop_cache_entries Reference cache entries\n");
+		out.append("# TYPE mechanicshop_cache_entries gauge\n");
+		for(RefCache<?, ?> cache : RefCache.all())
+			out.append("mechanicshop_cache_entries{cache=\"").append(escape(cache.getName())).append("\"} ").append(cache.size()).append('\n');
+	}
+
+	private static Map<String, Histogram> single(Histogram h){
+		Map<String, Histogram> result = new TreeMap<String, Histogram>();
+		result.put("", h);
+		return result;
+	}
+
+	private static void summary(StringBuilder out, String name, String help, Map<String, Histogram> series, boolean rows){
+		out.append("# HELP ").append(name).append("_seconds ").append(help).append('\n');
+		out.append("# TYPE ").append(name).append("_seconds summary\n");
+		for(Map.Entry<String, Histogram> e : series.entrySet()){
+			Histogram h = e.getValue();
+			String labels = e.getKey();
+			String sep = labels.isEmpty() ? "" : ",";
+			out.append(name).append("_seconds{").append(labels).append(sep).append("quantile=\"0.5\"} ").append(seconds(h.percentile(0.5))).append('\n');
+			out.append(name).append("_seconds{").append(labels).append(sep).append("quantile=\"0.99\"} ").append(seconds(h.percentile(0.99))).append('\n');
+			out.append(name).append("_seconds_sum").append(braces(labels)).append(' ').append(seconds(h.getSum())).append('\n');
+			out.append(name).append("_seconds_count").append(braces(labels)).append(' ').append(h.getCount()).append('\n');
+		}
+		out.append("# HELP ").append(name).append("_max_seconds Slowest call so far\n");
+		out.append("# TYPE ").append(name).append("_max_seconds gauge\n");
+		for(Map.Entry<String, Histogram> e : series.entrySet())
+			out.append(name).append("_max_seconds").append(braces(e.getKey())).append(' ').append(seconds(e.getValue().getMax())).append('\n');
+		if(!rows) return;
+		out.append("# HELP ").append(name).append("_rows_total Rows returned or affected\n");
+		out.append("# TYPE ").append(name).append("_rows_total counter\n");
+		for(Map.Entry<String, Histogram> e : series.entrySet())
+			out.append(name).append("_rows_total").append(braces(e.getKey())).append(' ').append(e.getValue().rows.sum()).append('\n');
+	}
+
+	private static String braces(String labels){
+		return labels.isEmpty() ? "" : "{" + labels + "}";
+	}
+
+	private static String seconds(long nanos){
+		return Double.toString(nanos / 1e9);
+	}
+
+	private static String escape(String value){
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Method to print a readable table of every metric.
+	 */
+	public static void print(){
+		StringBuilder out = new StringBuilder();
+		table(out, "operation", OPERATIONS.snapshot());
+		table(out, "query", QUERIES.snapshot());
+		table(out, "pool wait", single(POOL_WAIT));
+		table(out, "console", single(CONSOLE));
+		out.append("statements: ").append(STATEMENTS.sum()).append('\n');
+		for(RefCache<?, ?> cache : RefCache.all())
+			out.append(cache).append('\n');
+		System.out.print(out);
+		System.out.flush();
+	}
+
+	private static void table(StringBuilder out, String title, Map<String, Histogram> series){
+		out.append(String.format("%-10s %10s %10s %10s %10s %12s %10s  %s%n", title, "count", "p50 ms", "p99 ms", "max ms", "total ms", "rows", "labels"));
+		for(Map.Entry<String, Histogram> e : series.entrySet()){
+			Histogram h = e.getValue();
+			if(h.getCount() == 0) continue;
+			out.append(String.format("%-10s %10d %10.3f %10.3f %10.3f %12.3f %10d  %s%n", "", h.getCount(),
+				h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6, h.getMax() / 1e6, h.getSum() / 1e6, h.rows.sum(), e.getKey()));
+		}
+	}
+
+	/**
+	 * Method to start the periodic export when mechanicshop.metrics.file
+	 * is set.  The export runs on a daemon thread and never blocks the
+	 * operations.
+	 */
+	public static synchronized void startExport(){
+		String file = System.getProperty("mechanicshop.metrics.file");
+		if(file == null || exporter != null) return;
+		long period = Long.getLong("mechanicshop.metrics.period", 10);
+		startExport(new File(file), period);
+	}
+
+	/**
+	 * Method to write the Prometheus text to a file every period seconds.
+	 *
+	 * @param file the file to replace
+	 * @param period the export period in seconds
+	 */
+	public static synchronized void startExport(final File file, long period){
+		if(exporter != null){
+			exporter.shutdownNow();
+		}else{
+			//a last export on exit, so short runs leave their numbers behind too
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+				public void run(){
+					try{
+						export(file);
+					}catch(IOException e){
+						// ignored.
+					}
+				}
+			}, "metrics-final-export"));
+		}
+		exporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "metrics-export");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		exporter.scheduleAtFixedRate(new Runnable(){
+			public void run(){
+				try{
+					export(file);
+				}catch(IOException e){
+					System.err.println("Unable to export metrics: " + e.getMessage());
+				}
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Method to write the Prometheus text to a file through a temporary
+	 * file, so a scraper never reads a half written export.
+	 */
+	public static void export(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try{
+			Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8);
+			try{
+				out.write(prometheus());
+			}finally{
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}finally{
+			tmp.delete();
+		}
+	}
+}
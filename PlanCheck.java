@@ -0,0 +1,81 @@
+/*
+ * Query plan regression check
+ * ===========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class asks the database for the plan of every report and
+ * validation query the shop runs and fails the ones that read all of
+ * Service_Request or Closed_Request, the two tables that grow with the
+ * business.  A missing index or a rewritten query that defeats one shows
+ * up here instead of in production latency.
+ *
+ * Run it on the seeded dataset after migrate and installaggregates: the
+ * statistics are refreshed first so the planner sees the real table
+ * sizes.  Reports 9 and 10 can only avoid a full read through the summary
+ * tables, so the check refuses to run without them rather than fail those
+ * two by design.  The checkplans command exits non-zero when a plan fails
+ * or a precondition is missing, so it can gate a CI build.
+ *
+ */
+public class PlanCheck{
+	//a sequential scan in a PostgreSQL plan, a table scan in an embedded H2 one, of the hot or the archived requests
+	static final Pattern FULL_SCAN = Pattern.compile(
+		"Seq Scan on ((?:service_request|closed_request)(?:_archive)?)\\b|\\b((?:SERVICE_REQUEST|CLOSED_REQUEST)(?:_ARCHIVE)?)\\.tableScan\\b", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Method to check the plan of every query and print the verdicts.
+	 *
+	 * @param esql a connection to a seeded, migrated database with the
+	 *             summary tables installed
+	 * @return true when no plan reads a whole large table
+	 * @throws java.lang.Exception when a precondition is missing or a
+	 *         query cannot be explained
+	 */
+	public static boolean run(MechanicShop esql) throws Exception {
+		if(SchemaMigrations.currentVersion(esql) < SchemaMigrations.latestVersion())
+			throw new Exception("checkplans needs the latest schema; run migrate first");
+		if(!esql.hasSummaryTables())
+			throw new Exception("checkplans needs the summary tables for reports 9 and 10; run installaggregates first");
+		esql.executeUpdate("ANALYZE");
+		int rid = esql.executeQueryForInt("SELECT MIN(rid) FROM Service_Request", MechanicShop.NO_ARGS);
+		int customerID = esql.executeQueryForInt("SELECT MIN(customer_id) FROM Owns", MechanicShop.NO_ARGS);
+		boolean ok = true;
+		for(int report : new int[]{ 6, 7, 8, 10 })
+			ok &= check(esql, "report " + report, MechanicShop.reportQuery(esql, report));
+		ok &= check(esql, "report 9", SummaryTables.REPORT_TOP_K_CARS, 10);
+		ok &= check(esql, "report 10 page", ReportPager.query(esql), Long.MAX_VALUE, Long.MAX_VALUE, Integer.MIN_VALUE, 20);
+		ok &= check(esql, "requests opened between", MechanicShop.openedBetweenQuery(esql), MechanicShop.openedBetween("1/1/2016", "1/31/2016"));
+		ok &= check(esql, "monthly bills", MechanicShop.monthlyQuery(esql), MechanicShop.monthlyWindow("1/1/2016", "12/1/2016"));
+		ok &= check(esql, "owned cars", MechanicShop.OWNED_CARS, customerID);
+		ok &= check(esql, "close request checks", esql.allHistory(MechanicShop.CLOSE_REQUEST_CHECKS), rid, rid, rid);
+		return ok;
+	}//end run
+
+	private static boolean check(MechanicShop esql, String name, String query, Object... args) throws SQLException {
+		List<List<String>> plan = esql.executeQueryAndReturnResult("EXPLAIN " + query, args);
+		String scan = null;
+		for(List<String> line : plan){
+			Matcher m = FULL_SCAN.matcher(String.valueOf(line.get(0)));
+			if(m.find()){
+				scan = m.group(1) != null ? m.group(1) : m.group(2);
+				break;
+			}
+		}//end for
+		boolean ok = scan == null;
+		System.out.println(String.format("%-28s %s%s", name, ok ? "ok  " : "FAIL", ok ? "" : ": reads all of " + scan.toLowerCase()));
+		if(!ok){
+			for(List<String> line : plan) System.out.println("\t" + line.get(0));
+		}
+		return ok;
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Read-through cache of reference rows
+ * ====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class keeps recently read reference rows (a mechanic, a customer,
+ * a car, the cars of a customer) in memory so the validation paths do not
+ * read them again on every operation.
+ *
+ * The cache holds at most maxSize entries and drops the least recently
+ * used one beyond that; an entry older than the time to live is read
+ * again, which bounds how long a change made by another process can go
+ * unseen.  Writes made by this process invalidate the entries they touch
+ * once their transaction commits (see invalidateAfterCommit).
+ * A key the loader does not find is not cached, so a row added elsewhere
+ * is seen on the next lookup; a row read inside a transaction is only
+ * cached once that transaction commits.
+ *
+ * Sizes and the time to live come from -Dmechanicshop.cache.size (entries
+ * per cache, 10000 by default; 0 turns caching off) and
+ * -Dmechanicshop.cache.ttl (seconds, 300 by default).
+ *
+ */
+public class RefCache<K, V>{
+	static final int DEFAULT_SIZE = Integer.getInteger("mechanicshop.cache.size", 10000);
+	static final long DEFAULT_TTL_SECONDS = Long.getLong("mechanicshop.cache.ttl", 300);
+
+	//every cache of the process, for the metrics
+	private static final List<RefCache<?, ?>> ALL = new CopyOnWriteArrayList<RefCache<?, ?>>();
+
+	/**
+	 * Reads the value of a key from the database.
+	 */
+	public interface Loader<K, V>{
+		/**
+		 * @return the value, or null when the key does not exist
+		 */
+		V load(MechanicShop esql, K key) throws SQLException;
+	}
+
+	private final String name;
+	private final int maxSize;
+	private final long ttlNanos;
+	private final Loader<K, V> loader;
+	private final LinkedHashMap<K, Cached<V>> entries;
+	//bumped by every invalidation, so a load that raced one is not stored
+	private long generation = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long expirations = 0;
+	private long invalidations = 0;
+
+	/**
+	 * Constructs a cache with the default size and time to live.
+	 *
+	 * @param name the name the statistics are reported under
+	 * @param loader reads a missing key
+	 */
+	public RefCache(String name, Loader<K, V> loader){
+		this(name, DEFAULT_SIZE, DEFAULT_TTL_SECONDS * 1000000000L, loader);
+	}
+
+	/**
+	 * @param name the name the statistics are reported under
+	 * @param maxSize the most entries kept
+	 * @param ttlNanos how long an entry is used before it is read again
+	 * @param loader reads a missing key
+	 */
+	public RefCache(String name, final int maxSize, long ttlNanos, Loader<K, V> loader){
+		this.name = name;
+		this.maxSize = maxSize;
+		this.ttlNanos = ttlNanos;
+		this.loader = loader;
+		this.entries = new LinkedHashMap<K, Cached<V>>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<K, Cached<V>> eldest){
+				if(size() <= maxSize) return false;
+				++RefCache.this.evictions;
+				return true;
+			}
+		};
+		ALL.add(this);
+	}
+
+	/**
+	 * Method to get the value of a key, reading it from the database when
+	 * it is not cached or has expired.
+	 *
+	 * @param esql the connection to read a missing key with
+	 * @param key the key
+	 * @return the value, or null when the key does not exist
+	 * @throws java.sql.SQLException when the read failed
+	 */
+	public V get(MechanicShop esql, K key) throws SQLException {
+		long now = System.nanoTime();
+		long loadGeneration;
+		synchronized(this){
+			Cached<V> entry = this.entries.get(key);
+			if(entry != null){
+				if(now - entry.loaded < this.ttlNanos){
+					++this.hits;
+					return entry.value;
+				}
+				this.entries.remove(key);
+				++this.expirations;
+			}
+			++this.misses;
+			loadGeneration = this.generation;
+		}
+		//read outside the lock so one slow read does not hold up the hits
+		V value = this.loader.load(esql, key);
+		if(value != null && this.maxSize > 0) storeAfterCommit(esql, key, value, now, loadGeneration);
+		return value;
+	}
+
+	/**
+	 * Method to store a loaded value once the transaction it was read in
+	 * commits, or at once in autocommit: a row the transaction wrote itself
+	 * must not stay cached when it rolls back.
+	 */
+	private void storeAfterCommit(MechanicShop esql, final K key, final V value, final long loaded, final long loadGeneration) throws SQLException {
+		UnitOfWork.afterCommit(esql, new Runnable(){
+			public void run(){
+				synchronized(RefCache.this){
+					if(RefCache.this.generation == loadGeneration) RefCache.this.entries.put(key, new Cached<V>(value, loaded));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Method to store a value read elsewhere, e.g. from a snapshot, as if
+	 * it had just been loaded.
+	 *
+	 * @return false when the cache is full or turned off, so nothing is
+	 *         evicted to make room
+	 */
+	public synchronized boolean preload(K key, V value){
+		if(value == null || (this.entries.size() >= this.maxSize && !this.entries.containsKey(key))) return false;
+		this.entries.put(key, new Cached<V>(value, System.nanoTime()));
+		return true;
+	}
+
+	/**
+	 * Method to drop a key after this process changed its row.
+	 */
+	public synchronized void invalidate(K key){
+		++this.generation;
+		if(this.entries.remove(key) != null) ++this.invalidations;
+	}
+
+	/**
+	 * Method to drop a key once the transaction that changed its row
+	 * commits.  Dropped earlier, a reader loading the key before the commit
+	 * would cache the old row for the whole time to live.
+	 *
+	 * @throws java.sql.SQLException when the connection cannot be read
+	 */
+	public void invalidateAfterCommit(MechanicShop esql, final K key) throws SQLException {
+		UnitOfWork.afterCommit(esql, new Runnable(){
+			public void run(){
+				invalidate(key);
+			}
+		});
+	}
+
+	/**
+	 * Method to drop every entry, e.g. after rows were changed in bulk.
+	 */
+	public synchronized void clear(){
+		++this.generation;
+		this.invalidations += this.entries.size();
+		this.entries.clear();
+	}
+
+	/**
+	 * Method to drop every entry of every cache of the process.
+	 */
+	public static void clearAll(){
+		for(RefCache<?, ?> cache : ALL) cache.clear();
+	}
+
+	/**
+	 * @return every cache of the process
+	 */
+	static Iterable<RefCache<?, ?>> all(){
+		return ALL;
+	}
+
+	public String getName(){
+		return this.name;
+	}
+
+	public synchronized int size(){
+		return this.entries.size();
+	}
+
+	/**
+	 * @return hits, misses, evictions, expirations and invalidations so far
+	 */
+	public synchronized long[] getStats(){
+		return new long[]{ this.hits, this.misses, this.evictions, this.expirations, this.invalidations };
+	}
+
+	public synchronized double getHitRate(){
+		long lookups = this.hits + this.misses;
+		return lookups == 0 ? 0 : (double) this.hits / lookups;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return String.format("%s cache: %d/%d entries, hit rate %.1f%% (%d hits, %d misses), %d evicted, %d expired, %d invalidated",
+			this.name, this.entries.size(), this.maxSize, 100 * getHitRate(), this.hits, this.misses, this.evictions, this.expirations, this.invalidations);
+	}
+
+	private static final class Cached<V>{
+		final V value;
+		final long loaded;
+
+		Cached(V value, long loaded){
+			this.value = value;
+			this.loaded = loaded;
+		}
+	}
+}
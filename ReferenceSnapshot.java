@@ -0,0 +1,404 @@
+/*
+ * Binary snapshot of the reference tables
+ * =======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * This class saves Customer, Mechanic, Car and Owns to a file, so a
+ * restarted process fills its reference caches and the customer search
+ * index from the file in milliseconds instead of warming them up one
+ * query at a time.
+ *
+ * The file is a header (magic, version, CRC32 of the rest, creation time)
+ * followed by the high-water marks the rows were read at, one dictionary
+ * of every distinct string and then each table column by column: an int
+ * column as ints, a string column as dictionary codes.  Both NULL
+ * sentinels are outside the range of real values.  It is written through a
+ * temporary file and renamed, and memory mapped when read back.
+ *
+ * The marks are the row count and the largest key of each table, read in
+ * one query.  A table whose marks still match is taken from the file,
+ * the others are left to the read-through caches.  Rows of these tables
+ * are only inserted by the application, never updated, and the keys only
+ * grow, so a new or deleted row always moves a mark.
+ *
+ * -Dmechanicshop.snapshot=<file> warms up from the file at startup and
+ * writes it again on exit; serve also rewrites it every
+ * -Dmechanicshop.snapshot.period seconds (0, the default, for never).
+ * The schema and maintenance commands (MechanicShop.COLD_COMMANDS) do
+ * neither, since they may run before the tables exist.
+ *
+ */
+public class ReferenceSnapshot{
+	static final long MAGIC = 0x4d53534e41505348L;
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 28;
+	static final int NULL_INT = Integer.MIN_VALUE;
+	static final int NULL_CODE = -1;
+
+	//one row: the count and largest key of every table, in TABLES order
+	static final String MARKS =
+		"SELECT (SELECT COUNT(*) FROM Customer), (SELECT MAX(id) FROM Customer), " +
+		"(SELECT COUNT(*) FROM Mechanic), (SELECT MAX(id) FROM Mechanic), " +
+		"(SELECT COUNT(*) FROM Car), (SELECT MAX(vin) FROM Car), " +
+		"(SELECT COUNT(*) FROM Owns), (SELECT MAX(ownership_id) FROM Owns)";
+
+	//the columns of SELECT * of every table, 'i' for int and 's' for string
+	static final String[] TABLES = { "Customer", "Mechanic", "Car", "Owns" };
+	static final String[] SELECTS = {
+		"SELECT id, fname, lname, phone, address FROM Customer",
+		"SELECT id, fname, lname, experience FROM Mechanic",
+		"SELECT vin, make, model, year FROM Car",
+		"SELECT ownership_id, customer_id, car_vin FROM Owns"
+	};
+	static final String[] KINDS = { "issss", "issi", "sssi", "iis" };
+	static final int CUSTOMER = 0, MECHANIC = 1, CAR = 2, OWNS = 3;
+
+	private static ScheduledExecutorService writer = null;
+
+	private final long created;
+	private final String[] marks;
+	//the rows of every table, as getString reads them
+	private final List<List<List<String>>> tables;
+
+	private ReferenceSnapshot(long created, String[] marks, List<List<List<String>>> tables){
+		this.created = created;
+		this.marks = marks;
+		this.tables = tables;
+	}
+
+	/**
+	 * Method to read the tables and their marks in one transaction, so the
+	 * marks describe exactly the rows read.
+	 *
+	 * @param esql the connection to read with
+	 * @return the snapshot
+	 * @throws java.lang.Exception when the tables cannot be read
+	 */
+	public static ReferenceSnapshot read(MechanicShop esql) throws Exception {
+		return UnitOfWork.run(esql, Connection.TRANSACTION_REPEATABLE_READ, new UnitOfWork.Work<ReferenceSnapshot>(){
+			public ReferenceSnapshot run(MechanicShop esql) throws Exception {
+				String[] marks = marks(esql);
+				List<List<List<String>>> tables = new ArrayList<List<List<String>>>(TABLES.length);
+				for(String select : SELECTS) tables.add(esql.executeQueryAndReturnResult(select, MechanicShop.NO_ARGS));
+				return new ReferenceSnapshot(System.currentTimeMillis(), marks, tables);
+			}
+		});
+	}
+
+	/**
+	 * Method to read the current high-water marks.
+	 */
+	public static String[] marks(MechanicShop esql) throws SQLException {
+		List<String> row = esql.executeQueryAndReturnResult(MARKS, MechanicShop.NO_ARGS).get(0);
+		return row.toArray(new String[row.size()]);
+	}
+
+	/**
+	 * Method to write the snapshot to a file through a temporary file, so a
+	 * reader never maps a half written one.
+	 *
+	 * @return the size of the file in bytes
+	 */
+	public long write(File file) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(TABLES.length);
+		for(String mark : this.marks) writeString(out, mark);
+
+		//codes first, so the dictionary is complete before it is written
+		ColumnarReports.Dictionary dictionary = new ColumnarReports.Dictionary();
+		List<int[][]> columns = new ArrayList<int[][]>(TABLES.length);
+		for(int t = 0; t < TABLES.length; ++t){
+			List<List<String>> rows = this.tables.get(t);
+			int[][] table = new int[KINDS[t].length()][rows.size()];
+			for(int c = 0; c < table.length; ++c){
+				boolean isInt = KINDS[t].charAt(c) == 'i';
+				for(int r = 0; r < rows.size(); ++r){
+					String value = rows.get(r).get(c);
+					if(value == null) table[c][r] = isInt ? NULL_INT : NULL_CODE;
+					else table[c][r] = isInt ? Integer.parseInt(value.trim()) : dictionary.encode(value);
+				}
+			}//end for
+			columns.add(table);
+		}//end for
+		out.writeInt(dictionary.size());
+		for(int code = 0; code < dictionary.size(); ++code) writeString(out, dictionary.decode(code));
+		for(int[][] table : columns){
+			out.writeInt(table[0].length);
+			for(int[] column : table)
+				for(int value : column) out.writeInt(value);
+		}//end for
+		out.flush();
+		byte[] payload = bytes.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putLong(MAGIC).putInt(VERSION).putInt((int) crc.getValue()).putLong(this.created).putInt(payload.length);
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try{
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try{
+				fos.write(header.array());
+				fos.write(payload);
+				fos.getChannel().force(true);
+			}finally{
+				fos.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}finally{
+			tmp.delete();
+		}
+		return HEADER_BYTES + payload.length;
+	}
+
+	/**
+	 * Method to map a snapshot file and decode it.
+	 *
+	 * @param file the file written by write
+	 * @return the snapshot
+	 * @throws java.io.IOException when the file cannot be read, is not a
+	 *         snapshot of this version or fails its checksum
+	 */
+	public static ReferenceSnapshot map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buf;
+		try{
+			if(raf.length() < HEADER_BYTES) throw new IOException(file + " is not a reference snapshot");
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}finally{
+			raf.close();
+		}
+		if(buf.getLong() != MAGIC) throw new IOException(file + " is not a reference snapshot");
+		int version = buf.getInt();
+		if(version != VERSION) throw new IOException(file + " is a version " + version + " snapshot, expected " + VERSION);
+		int expectedCrc = buf.getInt();
+		long created = buf.getLong();
+		int length = buf.getInt();
+		if(length != buf.remaining()) throw new IOException(file + " is truncated");
+		CRC32 crc = new CRC32();
+		crc.update(buf.duplicate());
+		if((int) crc.getValue() != expectedCrc) throw new IOException(file + " fails its checksum");
+
+		int numTables = buf.getInt();
+		if(numTables != TABLES.length) throw new IOException(file + " holds " + numTables + " tables, expected " + TABLES.length);
+		String[] marks = new String[2 * TABLES.length];
+		for(int i = 0; i < marks.length; ++i) marks[i] = readString(buf);
+		String[] dictionary = new String[buf.getInt()];
+		for(int code = 0; code < dictionary.length; ++code) dictionary[code] = readString(buf);
+		List<List<List<String>>> tables = new ArrayList<List<List<String>>>(TABLES.length);
+		for(int t = 0; t < TABLES.length; ++t){
+			String kinds = KINDS[t];
+			int numRows = buf.getInt();
+			String[][] rows = new String[numRows][kinds.length()];
+			for(int c = 0; c < kinds.length(); ++c){
+				boolean isInt = kinds.charAt(c) == 'i';
+				for(int r = 0; r < numRows; ++r){
+					int value = buf.getInt();
+					if(isInt) rows[r][c] = value == NULL_INT ? null : Integer.toString(value);
+					else rows[r][c] = value == NULL_CODE ? null : dictionary[value];
+				}
+			}//end for
+			List<List<String>> table = new ArrayList<List<String>>(numRows);
+			for(String[] row : rows) table.add(Arrays.asList(row));
+			tables.add(table);
+		}//end for
+		return new ReferenceSnapshot(created, marks, tables);
+	}
+
+	/**
+	 * Method to fill the reference caches and the customer search index
+	 * with the tables whose marks still match the database.
+	 *
+	 * @param esql the connection to read the marks with
+	 * @return a line saying what was warmed up
+	 * @throws java.sql.SQLException when the marks cannot be read
+	 */
+	public String warm(MechanicShop esql) throws SQLException {
+		String[] current = marks(esql);
+		boolean[] fresh = new boolean[TABLES.length];
+		StringBuilder stale = new StringBuilder();
+		for(int t = 0; t < TABLES.length; ++t){
+			fresh[t] = same(current[2 * t], this.marks[2 * t]) && same(current[2 * t + 1], this.marks[2 * t + 1]);
+			if(!fresh[t]) stale.append(stale.length() == 0 ? "" : ", ").append(TABLES[t]);
+		}
+		int preloaded = 0;
+		if(fresh[CUSTOMER]){
+			List<CustomerIndex.Customer> customers = new ArrayList<CustomerIndex.Customer>();
+			for(List<String> row : this.tables.get(CUSTOMER)){
+				int id = Integer.parseInt(row.get(0));
+				if(MechanicShop.customers.preload(id, row)) ++preloaded;
+				customers.add(new CustomerIndex.Customer(id, row.get(1), row.get(2), row.get(3), row.get(4)));
+			}
+			CustomerIndex.install(CustomerIndex.of(customers));
+		}
+		if(fresh[MECHANIC]){
+			for(List<String> row : this.tables.get(MECHANIC))
+				if(MechanicShop.mechanics.preload(Integer.valueOf(row.get(0)), row)) ++preloaded;
+		}
+		if(fresh[CAR]){
+			for(List<String> row : this.tables.get(CAR))
+				if(MechanicShop.cars.preload(row.get(0), row)) ++preloaded;
+		}
+		if(fresh[CAR] && fresh[OWNS]){
+			//OWNED_CARS of every customer, an empty list for one without cars
+			Map<String, List<String>> carsByVin = new HashMap<String, List<String>>();
+			for(List<String> row : this.tables.get(CAR)) carsByVin.put(row.get(0), row);
+			Map<Integer, List<List<String>>> owned = new HashMap<Integer, List<List<String>>>();
+			if(fresh[CUSTOMER])
+				for(List<String> row : this.tables.get(CUSTOMER)) owned.put(Integer.valueOf(row.get(0)), new ArrayList<List<String>>());
+			for(List<String> row : this.tables.get(OWNS)){
+				List<String> car = carsByVin.get(row.get(2));
+				if(row.get(1) == null || car == null) continue;
+				Integer customerID = Integer.valueOf(row.get(1));
+				List<List<String>> cars = owned.get(customerID);
+				if(cars == null) owned.put(customerID, cars = new ArrayList<List<String>>());
+				cars.add(car);
+			}
+			for(Map.Entry<Integer, List<List<String>>> e : owned.entrySet())
+				if(MechanicShop.ownedCars.preload(e.getKey(), e.getValue())) ++preloaded;
+		}
+		return String.format("%d cache entries warmed up from a snapshot of %tF %<tT%s", preloaded, this.created,
+			stale.length() == 0 ? "" : "; changed since: " + stale);
+	}
+
+	/**
+	 * Method to warm up from the file named by -Dmechanicshop.snapshot,
+	 * when there is one.  A missing, damaged or stale file only means a
+	 * cold start.
+	 */
+	public static void startup(MechanicShop esql){
+		String file = System.getProperty("mechanicshop.snapshot");
+		if(file == null || !new File(file).exists()) return;
+		try{
+			long start = System.nanoTime();
+			String warmed = map(new File(file)).warm(esql);
+			System.out.println(String.format("%s in %.1f ms", warmed, (System.nanoTime() - start) / 1e6));
+		}catch(Exception e){
+			System.err.println("Unable to warm up from " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to write the file named by -Dmechanicshop.snapshot, when set,
+	 * before the connection is closed.
+	 */
+	public static void shutdown(MechanicShop esql){
+		String file = System.getProperty("mechanicshop.snapshot");
+		if(file == null) return;
+		try{
+			read(esql).write(new File(file));
+		}catch(Exception e){
+			System.err.println("Unable to write " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to rewrite the file named by -Dmechanicshop.snapshot every
+	 * -Dmechanicshop.snapshot.period seconds, with a connection of the pool.
+	 */
+	public static synchronized void startPeriodic(final ConnectionPool pool){
+		final String file = System.getProperty("mechanicshop.snapshot");
+		long period = Long.getLong("mechanicshop.snapshot.period", 0);
+		if(file == null || period <= 0 || writer != null) return;
+		writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "snapshot-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		writer.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try{
+					MechanicShop esql = pool.acquire();
+					try{
+						read(esql).write(new File(file));
+					}finally{
+						pool.release(esql);
+					}
+				}catch(Exception e){
+					System.err.println("Unable to write " + file + ": " + e.getMessage());
+				}
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Method to stop the periodic writes.
+	 */
+	public static synchronized void stopPeriodic(){
+		if(writer != null){
+			writer.shutdownNow();
+			writer = null;
+		}
+	}
+
+	/**
+	 * @return the number of rows of each table, in TABLES order
+	 */
+	public int[] getRowCounts(){
+		int[] counts = new int[TABLES.length];
+		for(int t = 0; t < counts.length; ++t) counts[t] = this.tables.get(t).size();
+		return counts;
+	}
+
+	public long getCreated(){
+		return this.created;
+	}
+
+	private static boolean same(String a, String b){
+		return a == null ? b == null : a.equals(b);
+	}
+
+	//a null string has length -1
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if(value == null){
+			out.writeInt(-1);
+			return;
+		}
+		byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(utf8.length);
+		out.write(utf8);
+	}
+
+	private static String readString(ByteBuffer buf){
+		int length = buf.getInt();
+		if(length < 0) return null;
+		byte[] utf8 = new byte[length];
+		buf.get(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+}
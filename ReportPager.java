@@ -0,0 +1,109 @@
+/*
+ * Keyset pagination of the total bill ranking
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * This class pages through report 10, customers in descending order of
+ * their total bill, ties broken by customer id.  Each page starts right
+ * after the (total, id) key of the last row of the previous page, so a
+ * page costs the same whatever its position and the database never sorts
+ * and sends the whole ranking.  With the summary tables installed a page
+ * is a range read of the Customer_Bill_Total index.
+ *
+ * The key is the first (id) and last (total) column of every row, so a
+ * stateless client can resume from the last row it received.
+ *
+ */
+public class ReportPager{
+	static final String PAGE = "SELECT Customer.id, fname, lname, SUM(bill) AS total FROM ((Service_Request INNER JOIN Closed_Request ON Service_Request.rid = Closed_Request.rid) INNER JOIN Customer ON Service_Request.customer_id = Customer.id) GROUP BY Customer.id, fname, lname HAVING SUM(bill) < ? OR (SUM(bill) = ? AND Customer.id > ?) ORDER BY SUM(bill) DESC, Customer.id LIMIT ?";
+	static final String SUMMARY_PAGE = "SELECT t.customer_id AS id, c.fname, c.lname, t.total FROM Customer_Bill_Total t JOIN Customer c ON c.id = t.customer_id WHERE t.requests > 0 AND (t.total < ? OR (t.total = ? AND t.customer_id > ?)) ORDER BY t.total DESC, t.customer_id LIMIT ?";
+
+	private final MechanicShop esql;
+	private final int pageSize;
+	private long lastTotal;
+	private int lastId;
+	private boolean more = true;
+
+	/**
+	 * @param esql the connection to read the pages from
+	 * @param pageSize the number of customers per page
+	 */
+	public ReportPager(MechanicShop esql, int pageSize){
+		this(esql, pageSize, Long.MAX_VALUE, Integer.MIN_VALUE);
+	}
+
+	/**
+	 * Constructs a pager resuming after a row a previous page ended with.
+	 *
+	 * @param esql the connection to read the pages from
+	 * @param pageSize the number of customers per page
+	 * @param afterTotal the total bill of the last row already seen
+	 * @param afterId the customer id of the last row already seen
+	 */
+	public ReportPager(MechanicShop esql, int pageSize, long afterTotal, int afterId){
+		if(pageSize <= 0) throw new IllegalArgumentException("page size must be positive");
+		this.esql = esql;
+		this.pageSize = pageSize;
+		this.lastTotal = afterTotal;
+		this.lastId = afterId;
+	}
+
+	/**
+	 * Method to write the next page.
+	 *
+	 * @param out where the rows go
+	 * @return the number of rows written, 0 past the last page
+	 * @throws java.sql.SQLException when the query failed
+	 * @throws java.io.IOException when the output failed
+	 */
+	public int next(ResultWriter out) throws SQLException, IOException {
+		if(!this.more) return 0;
+		ResultCursor cursor = this.esql.executeQueryForCursor(query(this.esql), this.lastTotal, this.lastTotal, this.lastId, this.pageSize);
+		int rowCount = 0;
+		try{
+			while(cursor.advance()){
+				if(rowCount == 0) out.begin(cursor);
+				out.row(cursor);
+				this.lastId = cursor.getInt(1);
+				this.lastTotal = cursor.getLong(4);
+				++rowCount;
+			}//end while
+		}finally{
+			cursor.close();
+		}
+		this.more = rowCount == this.pageSize;
+		return rowCount;
+	}//end next
+
+	/**
+	 * Method to pick the page query: a range of the summary table index
+	 * when it is installed, the full aggregation otherwise.  Its arguments
+	 * are the last total (twice), the last id and the page size.
+	 */
+	static String query(MechanicShop esql) throws SQLException {
+		return esql.hasSummaryTables() ? SUMMARY_PAGE : esql.allHistory(PAGE);
+	}
+
+	/**
+	 * @return false once a page came back short
+	 */
+	public boolean hasMore(){
+		return this.more;
+	}
+
+	public long getLastTotal(){
+		return this.lastTotal;
+	}
+
+	public int getLastId(){
+		return this.lastId;
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Hot and archived request history
+ * ================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * This class splits Service_Request and Closed_Request by month into a hot
+ * part, the tables themselves, and an archived part, the tables
+ * Service_Request_Archive and Closed_Request_Archive (see migration 6 of
+ * SchemaMigrations).  The operations of the front desk only ever touch
+ * recent requests, so they work on the hot tables, whose size stays that
+ * of the last few months however long the history gets.
+ *
+ * The archival job moves a month once every request opened in it is
+ * closed, and closed before the cutoff, together with the closing rows,
+ * in one transaction per month.  Archived_Month records every month moved
+ * with the day after it and the last closing date of its requests:
+ *
+ *	month_end	no archived request was opened on or after the latest one
+ *	last_closed	no archived request was closed after the latest one
+ *
+ * Reports over the whole history read the views Service_Request_All and
+ * Closed_Request_All (see allHistory).  The date window queries instead
+ * read the archive only behind a guard on those two bounds, which the
+ * database evaluates once before the scan, so a window that starts after
+ * the archive never touches it; this is the partition pruning.
+ *
+ * A month is the unit of the archive only for the job: a request entered
+ * later with a date in an archived month stays hot until the job runs
+ * again, which is all the bounds rely on.
+ *
+ */
+public class RequestArchive{
+	static final String CATALOG = "archived_month";
+	static final int DEFAULT_KEEP_MONTHS = 12;
+
+	//the two hot tables as names in a query, not as prefixes of another name
+	private static final Pattern HOT_TABLES = Pattern.compile("\\b(Service_Request|Closed_Request)\\b");
+	//every query rewritten by allHistory, so the statement cache sees one text per query
+	private static final Map<String, String> REWRITTEN = new ConcurrentHashMap<String, String>();
+
+	//the window of ListRequestsOpenedBetween over both parts; takes the first day and the day after the last
+	static final String REQUESTS_OPENED_BETWEEN = ShopDates.WINDOW +
+		"SELECT rid, customer_id, car_vin, date, odometer, complain FROM Service_Request WHERE " + String.format(ShopDates.IN_WINDOW, "date") +
+		" UNION ALL SELECT rid, customer_id, car_vin, date, odometer, complain FROM Service_Request_Archive WHERE " + String.format(ShopDates.IN_WINDOW, "date") +
+		" AND (SELECT first_day FROM w) < (SELECT MAX(month_end) FROM Archived_Month)" +
+		" ORDER BY date, rid";
+
+	//the monthly report grouped from both parts; takes the first month and the month after the last
+	static final String REPORT_MONTHS_SCAN = ShopDates.WINDOW + "SELECT month_start, SUM(opened) AS opened, SUM(closed) AS closed, SUM(billed) AS billed, ROUND(CAST(SUM(close_days) AS NUMERIC) / NULLIF(SUM(closed), 0), 1) AS avg_days_to_close FROM (" +
+		"SELECT CAST(DATE_TRUNC('MONTH', date) AS DATE) AS month_start, 1 AS opened, 0 AS closed, 0 AS billed, 0 AS close_days FROM Service_Request WHERE " + String.format(ShopDates.IN_WINDOW, "date") +
+		" UNION ALL SELECT CAST(DATE_TRUNC('MONTH', c.date) AS DATE), 0, 1, c.bill, CAST(c.date - s.date AS INTEGER) FROM Closed_Request c JOIN Service_Request s ON s.rid = c.rid WHERE " + String.format(ShopDates.IN_WINDOW, "c.date") +
+		" UNION ALL SELECT CAST(DATE_TRUNC('MONTH', date) AS DATE), 1, 0, 0, 0 FROM Service_Request_Archive WHERE " + String.format(ShopDates.IN_WINDOW, "date") +
+		" AND (SELECT first_day FROM w) < (SELECT MAX(month_end) FROM Archived_Month)" +
+		" UNION ALL SELECT CAST(DATE_TRUNC('MONTH', c.date) AS DATE), 0, 1, c.bill, CAST(c.date - s.date AS INTEGER) FROM Closed_Request_Archive c JOIN Service_Request_Archive s ON s.rid = c.rid WHERE " + String.format(ShopDates.IN_WINDOW, "c.date") +
+		" AND (SELECT first_day FROM w) <= (SELECT MAX(last_closed) FROM Archived_Month)" +
+		") m GROUP BY month_start ORDER BY month_start";
+
+	//the months with requests opened before the cutoff, oldest first
+	static final String CANDIDATE_MONTHS = "SELECT DISTINCT CAST(DATE_TRUNC('MONTH', date) AS DATE) FROM Service_Request WHERE date < ? ORDER BY 1";
+	//requests of a month, those still open and the last closing date
+	static final String MONTH_STATE = "SELECT COUNT(*), COUNT(*) - COUNT(c.rid), MAX(c.date) FROM Service_Request s LEFT JOIN Closed_Request c ON c.rid = s.rid WHERE s.date >= ? AND s.date < ?";
+	static final String MONTH_REQUESTS = "SELECT rid FROM Service_Request WHERE date >= ? AND date < ?";
+
+	/**
+	 * Method to tell whether the archive tables exist in the database of
+	 * the given connection.
+	 *
+	 * @param esql the connected shop
+	 * @return true once migration 6 is applied
+	 * @throws java.sql.SQLException when the catalog cannot be read
+	 */
+	public static boolean isInstalled(MechanicShop esql) throws SQLException {
+		return esql.executeQueryForInt("SELECT COUNT(*) FROM information_schema.tables WHERE LOWER(table_name) = ?", CATALOG) == 1;
+	}
+
+	/**
+	 * Method to make a query read the whole request history: every
+	 * Service_Request and Closed_Request becomes the view of the hot and
+	 * the archived rows.
+	 */
+	static String allHistory(String query){
+		String rewritten = REWRITTEN.get(query);
+		if(rewritten == null){
+			rewritten = HOT_TABLES.matcher(query).replaceAll("$1_All");
+			REWRITTEN.put(query, rewritten);
+		}
+		return rewritten;
+	}
+
+	/**
+	 * Method to archive every month that ends on or before a cutoff and
+	 * whose requests are all closed before it.
+	 *
+	 * @param esql the connected shop
+	 * @param cutoff the first day that stays hot
+	 * @return the number of requests archived
+	 * @throws java.lang.Exception when a month cannot be moved; the months
+	 *         before it stay archived
+	 */
+	public static int archive(MechanicShop esql, LocalDate cutoff) throws Exception {
+		if(!esql.hasArchive()) throw new Exception("The archive tables are missing; run migrate first");
+		List<LocalDate> months = new ArrayList<LocalDate>();
+		for(List<String> row : esql.executeQueryAndReturnResult(CANDIDATE_MONTHS, cutoff))
+			months.add(ShopDates.parse(row.get(0)));
+		int archived = 0, skipped = 0;
+		for(LocalDate month : months){
+			if(month.plusMonths(1).isAfter(cutoff)) break;
+			int moved = archiveMonth(esql, month, cutoff);
+			if(moved < 0){
+				++skipped;
+				continue;
+			}
+			archived += moved;
+			System.out.println(String.format("archived %s: %d request(s)", month, moved));
+		}//end for
+		System.out.println(String.format("%d request(s) archived from before %s, %d month(s) kept hot for open or recently closed requests", archived, cutoff, skipped));
+		return archived;
+	}//end archive
+
+	/**
+	 * Method to move one month to the archive in one transaction.  REPEATABLE
+	 * READ keeps a request entered or closed meanwhile out of the move: its
+	 * row is either in the snapshot or left alone, and a close racing the
+	 * move fails one of the two transactions.
+	 *
+	 * @return the number of requests moved, -1 when the month has open or
+	 *         recently closed requests
+	 */
+	private static int archiveMonth(MechanicShop esql, final LocalDate month, final LocalDate cutoff) throws Exception {
+		final LocalDate end = month.plusMonths(1);
+		return UnitOfWork.run(esql, Connection.TRANSACTION_REPEATABLE_READ, new UnitOfWork.Work<Integer>(){
+			public Integer run(MechanicShop esql) throws Exception {
+				List<String> state = esql.executeQueryAndReturnResult(MONTH_STATE, month, end).get(0);
+				int requests = Integer.parseInt(state.get(0).trim());
+				LocalDate lastClosed = state.get(2) == null ? null : ShopDates.parse(state.get(2));
+				if(Integer.parseInt(state.get(1).trim()) > 0 || (lastClosed != null && !lastClosed.isBefore(cutoff))) return -1;
+				if(requests == 0) return 0;
+				esql.executeUpdate("INSERT INTO Service_Request_Archive SELECT * FROM Service_Request WHERE date >= ? AND date < ?", month, end);
+				esql.executeUpdate("INSERT INTO Closed_Request_Archive SELECT * FROM Closed_Request WHERE rid IN (" + MONTH_REQUESTS + ")", month, end);
+				esql.executeUpdate("DELETE FROM Closed_Request WHERE rid IN (" + MONTH_REQUESTS + ")", month, end);
+				int moved = esql.executeUpdate("DELETE FROM Service_Request WHERE date >= ? AND date < ?", month, end);
+				if(moved != requests) throw new Exception("Archiving " + month + " moved " + moved + " request(s), expected " + requests);
+				//a month archived again picks up the requests entered into it since
+				if(esql.executeUpdate("UPDATE Archived_Month SET requests = requests + ?, last_closed = GREATEST(last_closed, ?) WHERE month_start = ?", moved, lastClosed, month) == 0)
+					esql.executeUpdate("INSERT INTO Archived_Month(month_start, month_end, requests, last_closed) VALUES(?, ?, ?, ?)", month, end, moved, lastClosed);
+				return moved;
+			}
+		});
+	}
+
+	/**
+	 * Method to print the archived months and the size of both parts.
+	 */
+	public static void print(MechanicShop esql) throws SQLException {
+		esql.executeQueryAndPrintResult("SELECT month_start, requests, last_closed, archived_at FROM Archived_Month ORDER BY month_start", MechanicShop.NO_ARGS);
+		esql.executeQueryAndPrintResult("SELECT (SELECT COUNT(*) FROM Service_Request) AS hot_requests, (SELECT COUNT(*) FROM Closed_Request) AS hot_closed, " +
+			"(SELECT COUNT(*) FROM Service_Request_Archive) AS archived_requests, (SELECT COUNT(*) FROM Closed_Request_Archive) AS archived_closed", MechanicShop.NO_ARGS);
+	}
+
+	/**
+	 * Method to turn the arguments of the archive command into a cutoff:
+	 * the first day of the month monthsToKeep months before the one of
+	 * asOf.
+	 */
+	static LocalDate cutoff(int monthsToKeep, LocalDate asOf){
+		if(monthsToKeep < 0) throw new IllegalArgumentException("months to keep must not be negative");
+		return ShopDates.month(asOf).minusMonths(monthsToKeep);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Streaming, typed query result
+ * =============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class walks a query result one row at a time without materializing
+ * it.  The typed accessors read straight from the driver, so numbers are
+ * never boxed into Strings and parsed back.  The cursor itself is the row
+ * view returned by the iterator, which keeps iteration allocation free.
+ *
+ * Note that PostgreSQL only honours the fetch size, and so only streams
+ * large results, when the query runs inside a transaction (autocommit off);
+ * otherwise the driver still buffers the whole result.  A cursor opened in
+ * autocommit therefore owns a read-only transaction, ended by close.
+ *
+ */
+public class ResultCursor implements Iterator<ResultCursor>, AutoCloseable{
+	private final ResultSet rs;
+	//the read-only transaction opened for this cursor, null when it runs in the caller's
+	private Connection transaction;
+	private final int numCol;
+	//true when rs already points at a row that next() has not returned yet
+	private boolean lookahead = false;
+	private boolean done = false;
+
+	public ResultCursor(ResultSet rs) throws SQLException {
+		this(rs, null);
+	}
+
+	/**
+	 * @param rs the rows
+	 * @param transaction the connection whose read-only transaction close
+	 *                    ends, turning autocommit back on; null for none
+	 */
+	public ResultCursor(ResultSet rs, Connection transaction) throws SQLException {
+		this.rs = rs;
+		this.transaction = transaction;
+		this.numCol = rs.getMetaData().getColumnCount();
+	}
+
+	/**
+	 * Method to move to the next row, JDBC style.
+	 *
+	 * @return false when there are no more rows
+	 * @throws java.sql.SQLException when the driver failed to fetch
+	 */
+	public boolean advance() throws SQLException {
+		if(this.lookahead){
+			this.lookahead = false;
+			return true;
+		}
+		if(this.done) return false;
+		if(this.rs.next()) return true;
+		this.done = true;
+		return false;
+	}
+
+	public boolean hasNext(){
+		try{
+			if(!this.lookahead && !this.done){
+				if(this.rs.next()) this.lookahead = true;
+				else this.done = true;
+			}
+			return this.lookahead;
+		}catch(SQLException e){
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	public ResultCursor next(){
+		if(!hasNext()) throw new NoSuchElementException();
+		this.lookahead = false;
+		return this;
+	}
+
+	public int getColumnCount(){
+		return this.numCol;
+	}
+
+	public String getColumnName(int col) throws SQLException {
+		return this.rs.getMetaData().getColumnName(col);
+	}
+
+	/**
+	 * @return the java.sql.Types code of the column
+	 */
+	public int getColumnType(int col) throws SQLException {
+		return this.rs.getMetaData().getColumnType(col);
+	}
+
+	public int getInt(int col) throws SQLException {
+		return this.rs.getInt(col);
+	}
+
+	public long getLong(int col) throws SQLException {
+		return this.rs.getLong(col);
+	}
+
+	public double getDouble(int col) throws SQLException {
+		return this.rs.getDouble(col);
+	}
+
+	public Date getDate(int col) throws SQLException {
+		return this.rs.getDate(col);
+	}
+
+	public String getString(int col) throws SQLException {
+		return this.rs.getString(col);
+	}
+
+	/**
+	 * @return whether the last column read was SQL NULL
+	 */
+	public boolean wasNull() throws SQLException {
+		return this.rs.wasNull();
+	}
+
+	public void close() throws SQLException {
+		try{
+			this.rs.close();
+		}finally{
+			Connection conn = this.transaction;
+			this.transaction = null;
+			if(conn != null) endTransaction(conn);
+		}
+	}
+
+	/**
+	 * Method to end a read-only transaction opened for a cursor and go
+	 * back to autocommit.  It wrote nothing, so rolling back is enough and
+	 * also works when the query failed.
+	 */
+	static void endTransaction(Connection conn) throws SQLException {
+		try{
+			conn.rollback();
+		}finally{
+			conn.setAutoCommit(true);
+			conn.setReadOnly(false);
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Buffered report output
+ * ======================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * This class streams query results through one large buffer instead of
+ * printing every cell to the console, in one of three formats:
+ *
+ *	tab	the console layout of the menu: a header line, then one line per
+ *		row with every value followed by a tab
+ *	csv	RFC 4180 with a header line
+ *	json	one JSON object per row, keyed by column name
+ *
+ * csv and json drop the blank padding of CHAR columns and write numbers
+ * unquoted, so their output can be handed straight to other tools.
+ *
+ */
+public abstract class ResultWriter implements Closeable{
+	static final int BUFFER_SIZE = 1 << 16;
+
+	protected final Writer out;
+	//false for stdout, which is flushed but never closed
+	private final boolean ownsOut;
+	protected String[] names;
+	protected boolean[] numeric;
+
+	protected ResultWriter(Writer out, boolean ownsOut){
+		this.out = out;
+		this.ownsOut = ownsOut;
+	}
+
+	/**
+	 * Method to create a writer for the given format.
+	 *
+	 * @param format tab, csv or json
+	 * @param file the file to write, or null or "-" for standard out
+	 * @return the writer; close it to flush the last rows
+	 * @throws java.io.IOException when the file cannot be created
+	 */
+	public static ResultWriter open(String format, String file) throws IOException {
+		if(file == null || file.equals("-")){
+			return create(format, new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BUFFER_SIZE), false);
+		}
+		return create(format, new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE), true);
+	}
+
+	/**
+	 * Method to create a writer for the given format around any writer.
+	 *
+	 * @param format tab, csv or json
+	 * @param out where the rows go; should be buffered
+	 * @param ownsOut whether close also closes out
+	 * @return the writer
+	 */
+	public static ResultWriter create(String format, Writer out, boolean ownsOut){
+		if(format.equalsIgnoreCase("tab")) return new Tab(out, ownsOut);
+		if(format.equalsIgnoreCase("csv")) return new Csv(out, ownsOut);
+		if(format.equalsIgnoreCase("json")) return new JsonLines(out, ownsOut);
+		throw new IllegalArgumentException("Unknown output format: " + format + " (expected tab, csv or json)");
+	}
+
+	/**
+	 * Method to write every remaining row of a cursor, preceded by the
+	 * header when the cursor has rows.
+	 *
+	 * @param cursor the rows to write
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when the driver failed to fetch
+	 * @throws java.io.IOException when the output failed
+	 */
+	public int writeAll(ResultCursor cursor) throws SQLException, IOException {
+		int rowCount = 0;
+		while(cursor.advance()){
+			if(rowCount == 0) begin(cursor);
+			row(cursor);
+			++rowCount;
+		}//end while
+		return rowCount;
+	}
+
+	/**
+	 * Method to read the column names and types and write the header.
+	 */
+	protected void begin(ResultCursor cursor) throws SQLException, IOException {
+		int numCol = cursor.getColumnCount();
+		if(this.names == null || this.names.length != numCol){
+			this.names = new String[numCol];
+			this.numeric = new boolean[numCol];
+		}
+		for(int i = 0; i < numCol; ++i){
+			this.names[i] = cursor.getColumnName(i + 1);
+			this.numeric[i] = isNumeric(cursor.getColumnType(i + 1));
+		}
+		header();
+	}
+
+	protected abstract void header() throws IOException;
+
+	protected abstract void row(ResultCursor row) throws SQLException, IOException;
+
+	/**
+	 * Method to write a line that is not part of the result, such as a row
+	 * count, so that it stays in order with the buffered rows.
+	 */
+	public void println(String line) throws IOException {
+		this.out.write(line);
+		this.out.write('\n');
+	}
+
+	public void flush() throws IOException {
+		this.out.flush();
+	}
+
+	public void close() throws IOException {
+		if(this.ownsOut) this.out.close();
+		else this.out.flush();
+	}
+
+	private static boolean isNumeric(int type){
+		switch(type){
+			case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+			case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	//the value without the blank padding of CHAR columns, null for SQL NULL
+	protected static String trimmed(ResultCursor row, int col) throws SQLException {
+		String value = row.getString(col);
+		if(value == null) return null;
+		int end = value.length();
+		while(end > 0 && value.charAt(end - 1) == ' ') --end;
+		return value.substring(0, end);
+	}
+
+	static class Tab extends ResultWriter{
+		Tab(Writer out, boolean ownsOut){
+			super(out, ownsOut);
+		}
+
+		protected void header() throws IOException {
+			for(String name : this.names){
+				this.out.write(name);
+				this.out.write('\t');
+			}
+			this.out.write('\n');
+		}
+
+		protected void row(ResultCursor row) throws SQLException, IOException {
+			for(int i = 1; i <= this.names.length; ++i){
+				this.out.write(String.valueOf(row.getString(i)));
+				this.out.write('\t');
+			}
+			this.out.write('\n');
+		}
+	}
+
+	static class Csv extends ResultWriter{
+		Csv(Writer out, boolean ownsOut){
+			super(out, ownsOut);
+		}
+
+		protected void header() throws IOException {
+			for(int i = 0; i < this.names.length; ++i){
+				if(i > 0) this.out.write(',');
+				field(this.names[i]);
+			}
+			this.out.write("\r\n");
+		}
+
+		protected void row(ResultCursor row) throws SQLException, IOException {
+			for(int i = 1; i <= this.names.length; ++i){
+				if(i > 1) this.out.write(',');
+				String value = trimmed(row, i);
+				if(value != null) field(value);
+			}
+			this.out.write("\r\n");
+		}
+
+		private void field(String value) throws IOException {
+			boolean quote = false;
+			for(int i = 0; i < value.length() && !quote; ++i){
+				char c = value.charAt(i);
+				quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+			}
+			if(!quote){
+				this.out.write(value);
+				return;
+			}
+			this.out.write('"');
+			this.out.write(value.replace("\"", "\"\""));
+			this.out.write('"');
+		}
+	}
+
+	static class JsonLines extends ResultWriter{
+		JsonLines(Writer out, boolean ownsOut){
+			super(out, ownsOut);
+		}
+
+		protected void header(){
+			//every object carries its own keys
+		}
+
+		protected void row(ResultCursor row) throws SQLException, IOException {
+			this.out.write('{');
+			for(int i = 1; i <= this.names.length; ++i){
+				if(i > 1) this.out.write(',');
+				string(this.names[i - 1]);
+				this.out.write(':');
+				String value = trimmed(row, i);
+				if(value == null) this.out.write("null");
+				else if(this.numeric[i - 1]) this.out.write(value);
+				else string(value);
+			}
+			this.out.write("}\n");
+		}
+
+		private void string(String value) throws IOException {
+			this.out.write('"');
+			for(int i = 0; i < value.length(); ++i){
+				char c = value.charAt(i);
+				switch(c){
+					case '"': this.out.write("\\\""); break;
+					case '\\': this.out.write("\\\\"); break;
+					case '\n': this.out.write("\\n"); break;
+					case '\r': this.out.write("\\r"); break;
+					case '\t': this.out.write("\\t"); break;
+					default:
+						if(c < 0x20) this.out.write(String.format("\\u%04x", (int) c));
+						else this.out.write(c);
+				}
+			}
+			this.out.write('"');
+		}
+	}
+}
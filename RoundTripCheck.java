@@ -0,0 +1,79 @@
+/*
+ * Round trip regression check
+ * ===========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * This class runs operations at a small and a large result size and
+ * compares the number of statements each sent to the database.  An
+ * operation whose statement count grows with its result (an N+1 query)
+ * fails the check.  The reference caches are emptied before every run,
+ * so a cached result cannot hide the statements; an operation that sends
+ * none at all fails as well, since nothing was measured.
+ *
+ */
+public class RoundTripCheck{
+
+	interface Operation{
+		void run(MechanicShop esql, int size) throws Exception;
+	}
+
+	/**
+	 * Method to run every check and print the statement counts.
+	 *
+	 * @param esql a connection to a seeded database
+	 * @return true when no operation's statement count depends on its result size
+	 * @throws java.lang.Exception when an operation failed
+	 */
+	public static boolean run(MechanicShop esql) throws Exception {
+		boolean ok = true;
+		//the one-time catalog lookup must not count against the first operation
+		esql.hasSummaryTables();
+		ok &= check(esql, "ListKCarsWithTheMostServices", 1, 20, new Operation(){
+			public void run(MechanicShop esql, int k) throws Exception {
+				MechanicShop.ListKCarsWithTheMostServices(esql, k);
+			}
+		});
+		//the customer with the fewest cars against the one with the most
+		final int fewest = esql.executeQueryForInt("SELECT customer_id FROM Owns GROUP BY customer_id ORDER BY COUNT(*) ASC, customer_id LIMIT 1", MechanicShop.NO_ARGS);
+		final int most = esql.executeQueryForInt("SELECT customer_id FROM Owns GROUP BY customer_id ORDER BY COUNT(*) DESC, customer_id LIMIT 1", MechanicShop.NO_ARGS);
+		ok &= check(esql, "ListOwnedCars", fewest, most, new Operation(){
+			public void run(MechanicShop esql, int customerID) throws Exception {
+				MechanicShop.ListOwnedCars(esql, customerID);
+			}
+		});
+		return ok;
+	}//end run
+
+	private static boolean check(MechanicShop esql, String name, int small, int large, Operation op) throws Exception {
+		long smallCount = count(esql, small, op);
+		long largeCount = count(esql, large, op);
+		boolean ok = smallCount == largeCount && largeCount > 0;
+		System.out.println(String.format("%-32s %s: %d statement(s) for %d, %d statement(s) for %d",
+			name, ok ? "ok  " : "FAIL", smallCount, small, largeCount, large));
+		return ok;
+	}
+
+	private static long count(MechanicShop esql, int size, Operation op) throws Exception {
+		PrintStream out = System.out;
+		//the operations print their rows; only the statement count matters here
+		System.setOut(new PrintStream(new OutputStream(){
+			public void write(int b){}
+		}));
+		try{
+			RefCache.clearAll();
+			long before = esql.getStatementCount();
+			op.run(esql, size);
+			return esql.getStatementCount() - before;
+		}finally{
+			System.setOut(out);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+/*
+ * Row callback for streamed query results
+ * =======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * This interface receives the rows of a streamed query one at a time.  The
+ * cursor passed in always points at the current row and is reused for the
+ * next one, so handlers must copy out whatever they want to keep.
+ *
+ */
+public interface RowHandler{
+
+	void handle(ResultCursor row) throws SQLException;
+}
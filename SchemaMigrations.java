@@ -0,0 +1,202 @@
+/*
+ * Versioned schema migrations
+ * ===========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class creates and upgrades the schema the shop runs on: the six
+ * tables with their keys and foreign keys, and the indexes behind the
+ * joins and filters of the ten operations.
+ *
+ * Every migration has a version and is applied at most once, in its own
+ * transaction together with its row in schema_version.  The tables are
+ * created with IF NOT EXISTS, so a database set up by hand from the
+ * course scripts is adopted as version 1 as it is.  Two processes
+ * migrating at once are serialized by the primary key of schema_version:
+ * the second one fails to insert the version row, rolls back and skips
+ * the migration.
+ *
+ * Append new migrations at the end; never edit one that has shipped.
+ *
+ */
+public class SchemaMigrations{
+
+	static final Migration[] MIGRATIONS = {
+		new Migration(1, "tables, primary and foreign keys",
+			"CREATE TABLE IF NOT EXISTS Customer(id INTEGER NOT NULL PRIMARY KEY, fname CHAR(32) NOT NULL, lname CHAR(32) NOT NULL, phone CHAR(13) NOT NULL, address CHAR(256) NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS Mechanic(id INTEGER NOT NULL PRIMARY KEY, fname CHAR(32) NOT NULL, lname CHAR(32) NOT NULL, experience INTEGER)",
+			"CREATE TABLE IF NOT EXISTS Car(vin VARCHAR(16) NOT NULL PRIMARY KEY, make VARCHAR(32) NOT NULL, model VARCHAR(32) NOT NULL, year INTEGER)",
+			"CREATE TABLE IF NOT EXISTS Owns(ownership_id INTEGER NOT NULL PRIMARY KEY, customer_id INTEGER NOT NULL REFERENCES Customer(id), car_vin VARCHAR(16) NOT NULL REFERENCES Car(vin))",
+			"CREATE TABLE IF NOT EXISTS Service_Request(rid INTEGER NOT NULL PRIMARY KEY, customer_id INTEGER NOT NULL REFERENCES Customer(id), car_vin VARCHAR(16) NOT NULL REFERENCES Car(vin), date DATE DEFAULT CURRENT_DATE NOT NULL, odometer INTEGER, complain TEXT)",
+			"CREATE TABLE IF NOT EXISTS Closed_Request(wid INTEGER NOT NULL PRIMARY KEY, rid INTEGER NOT NULL REFERENCES Service_Request(rid), mid INTEGER NOT NULL REFERENCES Mechanic(id), date DATE DEFAULT CURRENT_DATE NOT NULL, comment TEXT, bill INTEGER NOT NULL)"),
+		new Migration(2, "indexes for the joins and filters of the operations",
+			//OWNED_CARS, the ownership check of InsertServiceRequest and report 7; covers customer_id -> car_vin
+			"CREATE INDEX IF NOT EXISTS owns_customer_car ON Owns(customer_id, car_vin)",
+			"CREATE INDEX IF NOT EXISTS owns_car_vin ON Owns(car_vin)",
+			"CREATE INDEX IF NOT EXISTS service_request_customer_id ON Service_Request(customer_id)",
+			//report 8 filters the requests of a car by odometer, report 9 groups by car
+			"CREATE INDEX IF NOT EXISTS service_request_car_odometer ON Service_Request(car_vin, odometer)",
+			//the Service_Request join of reports 6 and 10 and the closed check; covers the bill
+			"CREATE INDEX IF NOT EXISTS closed_request_rid_bill ON Closed_Request(rid, bill)",
+			"CREATE INDEX IF NOT EXISTS closed_request_mid ON Closed_Request(mid)",
+			"CREATE INDEX IF NOT EXISTS closed_request_bill ON Closed_Request(bill)",
+			"CREATE INDEX IF NOT EXISTS car_year ON Car(year)"),
+		new Migration(3, "date range indexes",
+			"CREATE INDEX IF NOT EXISTS service_request_date ON Service_Request(date)",
+			"CREATE INDEX IF NOT EXISTS closed_request_date ON Closed_Request(date)"),
+		new Migration(4, "name indexes for the duplicate checks",
+			//AddCustomer, AddMechanic and the confirmation queries of BulkImport
+			"CREATE INDEX IF NOT EXISTS customer_name ON Customer(lname, fname)",
+			"CREATE INDEX IF NOT EXISTS mechanic_name ON Mechanic(lname, fname)"),
+		new Migration(5, "checkpoints of the intake journals",
+			//the sequence number of the last journal record written to the database, see IntakeJournal
+			"CREATE TABLE IF NOT EXISTS intake_checkpoint(journal VARCHAR(256) NOT NULL PRIMARY KEY, seq BIGINT NOT NULL)"),
+		new Migration(6, "archive of closed months of requests",
+			//the cold part of the request history, see RequestArchive
+			"CREATE TABLE IF NOT EXISTS Service_Request_Archive(rid INTEGER NOT NULL PRIMARY KEY, customer_id INTEGER NOT NULL REFERENCES Customer(id), car_vin VARCHAR(16) NOT NULL REFERENCES Car(vin), date DATE NOT NULL, odometer INTEGER, complain TEXT)",
+			"CREATE TABLE IF NOT EXISTS Closed_Request_Archive(wid INTEGER NOT NULL PRIMARY KEY, rid INTEGER NOT NULL REFERENCES Service_Request_Archive(rid), mid INTEGER NOT NULL REFERENCES Mechanic(id), date DATE NOT NULL, comment TEXT, bill INTEGER NOT NULL)",
+			//the indexes of migrations 2 and 3, so the whole history reports keep their plans
+			"CREATE INDEX IF NOT EXISTS service_request_archive_customer_id ON Service_Request_Archive(customer_id)",
+			"CREATE INDEX IF NOT EXISTS service_request_archive_car_odometer ON Service_Request_Archive(car_vin, odometer)",
+			"CREATE INDEX IF NOT EXISTS service_request_archive_date ON Service_Request_Archive(date)",
+			"CREATE INDEX IF NOT EXISTS closed_request_archive_rid_bill ON Closed_Request_Archive(rid, bill)",
+			"CREATE INDEX IF NOT EXISTS closed_request_archive_mid ON Closed_Request_Archive(mid)",
+			"CREATE INDEX IF NOT EXISTS closed_request_archive_bill ON Closed_Request_Archive(bill)",
+			"CREATE INDEX IF NOT EXISTS closed_request_archive_date ON Closed_Request_Archive(date)",
+			//one row per archived month: no archived request was opened on or after month_end or closed after last_closed
+			"CREATE TABLE IF NOT EXISTS Archived_Month(month_start DATE NOT NULL PRIMARY KEY, month_end DATE NOT NULL, requests INTEGER NOT NULL, last_closed DATE, archived_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL)",
+			"CREATE OR REPLACE VIEW Service_Request_All AS SELECT * FROM Service_Request UNION ALL SELECT * FROM Service_Request_Archive",
+			"CREATE OR REPLACE VIEW Closed_Request_All AS SELECT * FROM Closed_Request UNION ALL SELECT * FROM Closed_Request_Archive"),
+		new Migration(7, "sequences of the id allocators", new Migration.Step(){
+			//committed here, so no rolled back operation can take a sequence with it
+			public void run(MechanicShop esql) throws Exception {
+				createIdSequences(esql);
+			}
+		}),
+	};
+
+	/**
+	 * One schema change.
+	 */
+	static final class Migration{
+		final int version;
+		final String description;
+		final String[] statements;
+		final Step step;
+
+		Migration(int version, String description, String... statements){
+			this.version = version;
+			this.description = description;
+			this.statements = statements;
+			this.step = null;
+		}
+
+		Migration(int version, String description, Step step){
+			this.version = version;
+			this.description = description;
+			this.statements = new String[0];
+			this.step = step;
+		}
+
+		/**
+		 * A change that needs the data, e.g. a sequence starting past the
+		 * largest key.
+		 */
+		interface Step{
+			void run(MechanicShop esql) throws Exception;
+		}
+	}
+
+	/**
+	 * Method to apply every migration the database does not have yet.
+	 *
+	 * @param esql the connected shop
+	 * @return the number of migrations applied
+	 * @throws java.lang.Exception when a migration failed; the migrations
+	 *         before it stay applied
+	 */
+	public static int migrate(MechanicShop esql) throws Exception {
+		esql.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version(version INTEGER NOT NULL PRIMARY KEY, description VARCHAR(256) NOT NULL, applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL)");
+		Set<Integer> applied = applied(esql);
+		int count = 0;
+		for(final Migration m : MIGRATIONS){
+			if(applied.contains(m.version)) continue;
+			try{
+				UnitOfWork.run(esql, new UnitOfWork.Work<Void>(){
+					public Void run(MechanicShop esql) throws Exception {
+						//first, so a concurrent migrator blocks here until this one commits
+						esql.executeUpdate("INSERT INTO schema_version(version, description) VALUES(?, ?)", m.version, m.description);
+						for(String statement : m.statements)
+							esql.executeUpdate(statement);
+						if(m.step != null) m.step.run(esql);
+						return null;
+					}
+				});
+			}catch(SQLException e){
+				if(applied(esql).contains(m.version)) continue;
+				throw new Exception("Migration " + m.version + " (" + m.description + ") failed: " + e.getMessage(), e);
+			}
+			System.out.println("applied migration " + m.version + ": " + m.description);
+			++count;
+		}//end for
+		return count;
+	}//end migrate
+
+	/**
+	 * Method to create the sequences of the id allocators that are missing.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.sql.SQLException when a sequence cannot be created
+	 */
+	public static void createIdSequences(MechanicShop esql) throws SQLException {
+		for(IdAllocator ids : new IdAllocator[]{ MechanicShop.customerIds, MechanicShop.mechanicIds, MechanicShop.ownsIds, MechanicShop.requestIds })
+			if(ids instanceof HiLoIdAllocator) ((HiLoIdAllocator) ids).create(esql);
+	}
+
+	/**
+	 * Method to move the sequences of the id allocators past the rows
+	 * loaded without them, so the first ids taken after a bulk load do not
+	 * step through nextval until they pass the loaded keys.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.sql.SQLException when a sequence cannot be moved
+	 */
+	public static void advanceIdSequences(MechanicShop esql) throws SQLException {
+		for(IdAllocator ids : new IdAllocator[]{ MechanicShop.customerIds, MechanicShop.mechanicIds, MechanicShop.ownsIds, MechanicShop.requestIds })
+			if(ids instanceof HiLoIdAllocator) ((HiLoIdAllocator) ids).advance(esql);
+	}
+
+	/**
+	 * @return the highest version applied, 0 for a database never migrated
+	 */
+	public static int currentVersion(MechanicShop esql) throws SQLException {
+		int version = 0;
+		for(int v : applied(esql)) version = Math.max(version, v);
+		return version;
+	}
+
+	/**
+	 * @return the version the code expects
+	 */
+	public static int latestVersion(){
+		return MIGRATIONS[MIGRATIONS.length - 1].version;
+	}
+
+	private static Set<Integer> applied(MechanicShop esql) throws SQLException {
+		Set<Integer> versions = new HashSet<Integer>();
+		if(esql.executeQueryForInt("SELECT COUNT(*) FROM information_schema.tables WHERE LOWER(table_name) = ?", "schema_version") == 0)
+			return versions;
+		List<List<String>> rows = esql.executeQueryAndReturnResult("SELECT version FROM schema_version", MechanicShop.NO_ARGS);
+		for(List<String> row : rows) versions.add(Integer.parseInt(row.get(0).trim()));
+		return versions;
+	}
+}
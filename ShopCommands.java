@@ -0,0 +1,184 @@
+/*
+ * Non-interactive MechanicShop operations
+ * =======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class runs the menu operations from a single line of tab separated
+ * fields, the operation name first, so that they can be driven without the
+ * interactive prompts (e.g. by server sessions).  Each operation goes
+ * through the same non-interactive methods, and therefore the same
+ * validation, as the menu.
+ *
+ *	AddCustomer	fname	lname	phone	address
+ *	AddMechanic	fname	lname	experience
+ *	AddCar	vin	make	model	year
+ *	AddOwnership	customer_id	vin
+ *	FindCustomers	last_name_prefix|phone|address_words
+ *	InsertServiceRequest	customer_id	vin	date	odometer	complain
+ *	InsertServiceRequestForNewCar	customer_id	vin	make	model	year	date	odometer	complain
+ *	CloseServiceRequest	rid	mechanic_id	date	comment	bill
+ *	ListCustomersWithBillLessThan100
+ *	ListCustomersWithMoreThan20Cars
+ *	ListCarsBefore1995With50000Milles
+ *	ListKCarsWithTheMostServices	k
+ *	ListCustomersInDescendingOrderOfTheirTotalBill
+ *	ListCustomersByTotalBillPage	page_size	[after_total	after_id]
+ *	ListRequestsOpenedBetween	first_date	last_date
+ *	ListMonthlyBills	first_date	last_date
+ *
+ * A page of the total bill ranking starts after the customer id (first
+ * column) and total (last column) of the last row of the previous page.
+ * The monthly bills cover the months of the two dates and everything
+ * in between.
+ *
+ */
+public class ShopCommands{
+
+	/**
+	 * Method to split an operation line into its fields.
+	 */
+	public static String[] parse(String line){
+		return line.split("\t", -1);
+	}
+
+	/**
+	 * Method to run one operation.
+	 *
+	 * @param esql the connection to run it on
+	 * @param op the operation name followed by its arguments
+	 * @return the textual result: the new key or the report rows
+	 * @throws java.lang.Exception when the arguments or the operation are invalid
+	 */
+	public static String execute(MechanicShop esql, String[] op) throws Exception {
+		String name = op[0].trim();
+		if(name.equalsIgnoreCase("AddCustomer")){
+			expect(op, 5);
+			return String.valueOf(MechanicShop.AddCustomer(esql, op[1], op[2], op[3], op[4]));
+		}else if(name.equalsIgnoreCase("AddMechanic")){
+			expect(op, 4);
+			return String.valueOf(MechanicShop.AddMechanic(esql, op[1], op[2], parseInt(op[3])));
+		}else if(name.equalsIgnoreCase("AddCar")){
+			expect(op, 5);
+			MechanicShop.AddCar(esql, op[1], op[2], op[3], parseInt(op[4]));
+			return op[1];
+		}else if(name.equalsIgnoreCase("AddOwnership")){
+			expect(op, 3);
+			return String.valueOf(MechanicShop.AddOwnership(esql, parseInt(op[1]), op[2]));
+		}else if(name.equalsIgnoreCase("FindCustomers")){
+			expect(op, 2);
+			List<List<String>> rows = new ArrayList<List<String>>();
+			for(CustomerIndex.Customer c : MechanicShop.FindCustomers(esql, op[1]))
+				rows.add(c.toRow());
+			return format(rows);
+		}else if(name.equalsIgnoreCase("InsertServiceRequest")){
+			expect(op, 6);
+			return String.valueOf(MechanicShop.InsertServiceRequest(esql, parseInt(op[1]), op[2], op[3], parseInt(op[4]), op[5]));
+		}else if(name.equalsIgnoreCase("InsertServiceRequestForNewCar")){
+			expect(op, 9);
+			return String.valueOf(MechanicShop.InsertServiceRequestForNewCar(esql, parseInt(op[1]), op[2], op[3], op[4], parseInt(op[5]), op[6], parseInt(op[7]), op[8]));
+		}else if(name.equalsIgnoreCase("CloseServiceRequest")){
+			expect(op, 6);
+			MechanicShop.CloseServiceRequest(esql, parseInt(op[1]), parseInt(op[2]), op[3], op[4], parseInt(op[5]));
+			return op[1];
+		}else if(name.equalsIgnoreCase("ListCustomersWithBillLessThan100")){
+			return report(esql, name, esql.allHistory(MechanicShop.REPORT_BILL_LESS_THAN_100));
+		}else if(name.equalsIgnoreCase("ListCustomersWithMoreThan20Cars")){
+			return report(esql, name, MechanicShop.REPORT_MORE_THAN_20_CARS);
+		}else if(name.equalsIgnoreCase("ListCarsBefore1995With50000Milles")){
+			return report(esql, name, esql.allHistory(MechanicShop.REPORT_CARS_BEFORE_1995));
+		}else if(name.equalsIgnoreCase("ListKCarsWithTheMostServices")){
+			expect(op, 2);
+			return format(MechanicShop.ListKCarsWithTheMostServices(esql, parseInt(op[1])));
+		}else if(name.equalsIgnoreCase("ListCustomersInDescendingOrderOfTheirTotalBill")){
+			return report(esql, name, MechanicShop.totalBillQuery(esql));
+		}else if(name.equalsIgnoreCase("ListCustomersByTotalBillPage")){
+			if(op.length != 2) expect(op, 4);
+			int pageSize = parseInt(op[1]);
+			if(pageSize <= 0) throw new Exception("Page size must be greater than 0.");
+			long afterTotal = op.length == 4 ? parseLong(op[2]) : Long.MAX_VALUE;
+			int afterId = op.length == 4 ? parseInt(op[3]) : Integer.MIN_VALUE;
+			return report(esql, name, ReportPager.query(esql), afterTotal, afterTotal, afterId, pageSize);
+		}else if(name.equalsIgnoreCase("ListRequestsOpenedBetween")){
+			expect(op, 3);
+			return report(esql, name, MechanicShop.openedBetweenQuery(esql), MechanicShop.openedBetween(op[1], op[2]));
+		}else if(name.equalsIgnoreCase("ListMonthlyBills")){
+			expect(op, 3);
+			return report(esql, name, MechanicShop.monthlyQuery(esql), MechanicShop.monthlyWindow(op[1], op[2]));
+		}
+		throw new Exception("Unknown operation: " + name);
+	}//end execute
+
+	private static void expect(String[] op, int fields) throws Exception {
+		if(op.length != fields)
+			throw new Exception(op[0] + " expects " + (fields - 1) + " argument(s), got " + (op.length - 1));
+	}
+
+	private static int parseInt(String value) throws Exception {
+		try{
+			return Integer.parseInt(value.trim());
+		}catch(NumberFormatException e){
+			throw new Exception("Not a number: " + value);
+		}
+	}
+
+	private static long parseLong(String value) throws Exception {
+		try{
+			return Long.parseLong(value.trim());
+		}catch(NumberFormatException e){
+			throw new Exception("Not a number: " + value);
+		}
+	}
+
+	//format, timed as the operation; the other operations time themselves
+	private static String report(MechanicShop esql, String name, String query, Object... args) throws Exception {
+		long start = System.nanoTime();
+		try{
+			return format(esql, query, args);
+		}finally{
+			Metrics.operation(name, start);
+		}
+	}
+
+	/**
+	 * Method to stream a report query straight into tab separated lines.
+	 */
+	static String format(MechanicShop esql, String query, Object... args) throws Exception {
+		final StringBuilder out = new StringBuilder();
+		int rowCount = esql.executeQueryForEach(query, new RowHandler(){
+			public void handle(ResultCursor row) throws SQLException {
+				for(int i = 1; i <= row.getColumnCount(); i++){
+					if(i > 1) out.append('\t');
+					out.append(row.getString(i));
+				}
+				out.append('\n');
+			}
+		}, args);
+		out.append("total row(s): ").append(rowCount);
+		return out.toString();
+	}
+
+	/**
+	 * Method to render report rows as tab separated lines.
+	 */
+	static String format(List<List<String>> rows){
+		StringBuilder out = new StringBuilder();
+		for(List<String> row : rows){
+			for(int i = 0; i < row.size(); i++){
+				if(i > 0) out.append('\t');
+				out.append(row.get(i));
+			}
+			out.append('\n');
+		}
+		out.append("total row(s): ").append(rows.size());
+		return out.toString();
+	}
+}
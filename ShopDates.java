@@ -0,0 +1,62 @@
+/*
+ * Typed service dates
+ * ===================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+
+/**
+ * This class turns the dates typed at the front desk and found in the seed
+ * files into LocalDate values, which are bound to the DATE columns of
+ * Service_Request and Closed_Request as dates rather than as text.  Dates
+ * then compare in calendar order whatever the DateStyle of the server and
+ * a range of them is a range of the date indexes (see SchemaMigrations).
+ *
+ * Accepted forms are MM/DD/YYYY (month and day may have one digit), the
+ * same followed by a time as in the seed files ("5/20/2016 00:00"), and
+ * ISO YYYY-MM-DD as the database prints it.
+ *
+ */
+public class ShopDates{
+	//binds a window of days once, so a query reading it in several places still takes (first day, day after the last)
+	static final String WINDOW = "WITH w AS (SELECT CAST(? AS DATE) AS first_day, CAST(? AS DATE) AS end_day) ";
+	//the condition that a column lies in WINDOW, formatted with the column
+	static final String IN_WINDOW = "%1$s >= (SELECT first_day FROM w) AND %1$s < (SELECT end_day FROM w)";
+	private static final DateTimeFormatter US = DateTimeFormatter.ofPattern("M/d/uuuu").withResolverStyle(ResolverStyle.STRICT);
+	private static final DateTimeFormatter ISO = DateTimeFormatter.ofPattern("uuuu-MM-dd").withResolverStyle(ResolverStyle.STRICT);
+
+	/**
+	 * Method to parse a date.
+	 *
+	 * @param value the date in one of the accepted forms
+	 * @return the date; any time of day is dropped
+	 * @throws java.lang.IllegalArgumentException when the value is not a
+	 *         valid date, e.g. 2/30/2016
+	 */
+	public static LocalDate parse(String value){
+		if(value == null) throw new IllegalArgumentException("Missing date (expected MM/DD/YYYY)");
+		String date = value.trim();
+		int space = date.indexOf(' ');
+		if(space >= 0) date = date.substring(0, space);
+		try{
+			return LocalDate.parse(date, date.indexOf('/') >= 0 ? US : ISO);
+		}catch(DateTimeParseException e){
+			throw new IllegalArgumentException("Invalid date: " + value.trim() + " (expected MM/DD/YYYY)");
+		}
+	}
+
+	/**
+	 * @return the first day of the month of the date, the key of the
+	 *         monthly rollups
+	 */
+	public static LocalDate month(LocalDate date){
+		return date.withDayOfMonth(1);
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Multi-session MechanicShop server
+ * =================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class lets many front desk sessions work at the same time.  Every
+ * session runs on its own thread (a virtual thread when the JVM offers them)
+ * and borrows a connection from the shared pool for each operation only.
+ *
+ * Clients connect over TCP and send one ShopCommands line per operation.
+ * Each reply is "OK" or "ERR <message>", then the result lines, then a line
+ * holding a single ".".  The line STATS returns the pool metrics, METRICS
+ * the latency and query metrics in the Prometheus text format, and QUIT
+ * ends the session.
+ *
+ */
+public class ShopServer{
+	private final ConnectionPool pool;
+	private final ExecutorService sessions;
+	private volatile ServerSocket serverSocket = null;
+
+	public ShopServer(ConnectionPool pool){
+		this.pool = pool;
+		this.sessions = newSessionExecutor();
+	}
+
+	/**
+	 * Method to create the executor the sessions run on: one virtual thread
+	 * per task when the JVM supports it (Java 21+), otherwise a cached pool
+	 * of daemon platform threads.  The connection pool, not this executor,
+	 * bounds the load put on the database.
+	 */
+	static ExecutorService newSessionExecutor(){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch(ReflectiveOperationException e){
+			final AtomicInteger count = new AtomicInteger();
+			return Executors.newCachedThreadPool(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "shop-session-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Method to run one operation line on a pooled connection.
+	 *
+	 * @param line the ShopCommands line
+	 * @return the result of the operation
+	 * @throws java.lang.Exception when no connection was available or the
+	 *         operation failed
+	 */
+	public String execute(String line) throws Exception {
+		MechanicShop esql = this.pool.acquire();
+		try{
+			return ShopCommands.execute(esql, ShopCommands.parse(line));
+		}finally{
+			this.pool.release(esql);
+		}
+	}
+
+	/**
+	 * Method to run an operation asynchronously on a session thread.
+	 *
+	 * @param line the ShopCommands line
+	 * @return the pending result
+	 */
+	public Future<String> submit(final String line){
+		return this.sessions.submit(new Callable<String>(){
+			public String call() throws Exception {
+				return execute(line);
+			}
+		});
+	}
+
+	/**
+	 * Method to accept client sessions until the server is shut down.
+	 *
+	 * @param port the TCP port to listen on
+	 * @throws java.io.IOException when the port could not be bound
+	 */
+	public void listen(int port) throws IOException {
+		this.serverSocket = new ServerSocket(port);
+		System.out.println("Listening on port " + port + " (" + this.pool + ")");
+		try{
+			while(!this.serverSocket.isClosed()){
+				final Socket client = this.serverSocket.accept();
+				this.sessions.submit(new Runnable(){
+					public void run(){
+						serve(client);
+					}
+				});
+			}//end while
+		}catch(IOException e){
+			if(!this.serverSocket.isClosed()) throw e;
+		}
+	}//end listen
+
+	private void serve(Socket client){
+		try{
+			BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+			Writer writer = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+			String line;
+			while((line = reader.readLine()) != null){
+				if(line.trim().isEmpty()) continue;
+				if(line.trim().equalsIgnoreCase("QUIT")) break;
+				if(line.trim().equalsIgnoreCase("STATS")){
+					writer.write("OK\n" + this.pool + "\n.\n");
+				}else if(line.trim().equalsIgnoreCase("METRICS")){
+					writer.write("OK\n" + Metrics.prometheus() + ".\n");
+				}else{
+					try{
+						writer.write("OK\n" + execute(line) + "\n.\n");
+					}catch(Exception e){
+						writer.write("ERR " + String.valueOf(e.getMessage()).trim() + "\n.\n");
+					}
+				}
+				writer.flush();
+			}//end while
+		}catch(IOException e){
+			// the client went away.
+		}finally{
+			try{
+				client.close();
+			}catch(IOException e){
+				// ignored.
+			}
+		}
+	}//end serve
+
+	/**
+	 * Method to stop accepting sessions and stop the session threads.
+	 */
+	public void shutdown(){
+		try{
+			if(this.serverSocket != null) this.serverSocket.close();
+		}catch(IOException e){
+			// ignored.
+		}
+		this.sessions.shutdownNow();
+	}
+}
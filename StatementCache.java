@@ -0,0 +1,107 @@
+/*
+ * Prepared statement cache for the MechanicShop database
+ * ======================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the prepared statements of one connection in least
+ * recently used order so that repeated calls with the same SQL text reuse the
+ * statement (and, after a few executions, the server side plan) instead of
+ * parsing and planning the query again.
+ *
+ */
+public class StatementCache{
+	private final Connection _connection;
+	private final int capacity;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public StatementCache(Connection connection, int capacity){
+		if(capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+		this._connection = connection;
+		this.capacity = capacity;
+		//access ordered so that the eldest entry is the least recently used
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+	}
+
+	/**
+	 * Method to return the prepared statement for an SQL string, preparing
+	 * it on a miss.  The statement stays owned by the cache: callers must
+	 * close the result sets they open but never the statement itself.
+	 *
+	 * @param sql the SQL text with ? placeholders
+	 * @return the cached prepared statement
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = this.statements.get(sql);
+		if(stmt != null && !stmt.isClosed()){
+			++this.hits;
+			return stmt;
+		}
+		++this.misses;
+		stmt = this._connection.prepareStatement(sql);
+		this.statements.put(sql, stmt);
+		if(this.statements.size() > this.capacity){
+			Iterator<Map.Entry<String, PreparedStatement>> eldest = this.statements.entrySet().iterator();
+			PreparedStatement evicted = eldest.next().getValue();
+			eldest.remove();
+			++this.evictions;
+			try{
+				evicted.close();
+			}catch(SQLException e){
+				// ignored.
+			}
+		}
+		return stmt;
+	}//end prepare
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	public void clear(){
+		for(PreparedStatement stmt : this.statements.values()){
+			try{
+				stmt.close();
+			}catch(SQLException e){
+				// ignored.
+			}
+		}
+		this.statements.clear();
+	}
+
+	public long getHits(){
+		return this.hits;
+	}
+
+	public long getMisses(){
+		return this.misses;
+	}
+
+	public long getEvictions(){
+		return this.evictions;
+	}
+
+	public int size(){
+		return this.statements.size();
+	}
+
+	@Override
+	public String toString(){
+		return String.format("statement cache: %d cached, %d hits, %d misses, %d evictions",
+			size(), this.hits, this.misses, this.evictions);
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * Incrementally maintained report aggregates
+ * ==========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps the aggregates behind reports 9 and 10 and the monthly
+ * report in summary tables so the reports read them through an index
+ * instead of grouping all of Service_Request and Closed_Request on every
+ * call:
+ *
+ *	Customer_Bill_Total	customer_id, total bill and number of closed requests
+ *	Car_Service_Count	car_vin and number of service requests
+ *	Request_Month	month_start (first day of the month), requests opened in it, requests
+ *		closed in it, their bills and the days they took to close
+ *
+ * InsertServiceRequest and CloseServiceRequest update them in the same
+ * transaction as their insert.  Each connection looks the tables up once,
+ * so install them before starting the server; rows written behind the
+ * shop's back are picked up by re-installing, which rebuilds the tables
+ * (the load command does so itself), and check reports any drift.
+ *
+ */
+public class SummaryTables{
+
+	static final String BILL_TOTALS = "customer_bill_total";
+	static final String SERVICE_COUNTS = "car_service_count";
+	static final String MONTHS = "request_month";
+
+	//report 10 read from Customer_Bill_Total
+	static final String REPORT_TOTAL_BILL = "SELECT c.fname, c.lname, t.total FROM Customer_Bill_Total t JOIN Customer c ON c.id = t.customer_id WHERE t.requests > 0 ORDER BY t.total DESC";
+	//report 9 read from Car_Service_Count; only the k rows at the top of the index are touched
+	static final String REPORT_TOP_K_CARS = "SELECT c.make, c.model, s.services FROM (SELECT car_vin, services FROM Car_Service_Count WHERE services > 0 ORDER BY services DESC LIMIT ?) s JOIN Car c ON c.vin = s.car_vin ORDER BY s.services DESC";
+
+	//full recomputes, the source of truth for install and check
+	static final String RECOMPUTE_BILL_TOTALS = "SELECT s.customer_id, SUM(c.bill), COUNT(*) FROM Service_Request s JOIN Closed_Request c ON c.rid = s.rid GROUP BY s.customer_id";
+	static final String RECOMPUTE_SERVICE_COUNTS = "SELECT car_vin, COUNT(*) FROM Service_Request GROUP BY car_vin";
+	static final String RECOMPUTE_MONTHS = months("SUM(opened), SUM(closed), SUM(billed), SUM(close_days)", "%s IS NOT NULL", "");
+
+	//the monthly report: read from Request_Month, or grouped from the base tables; both take the window [first month, month after the last)
+	static final String REPORT_MONTHS = "SELECT month_start, opened, closed, billed, ROUND(CAST(close_days AS NUMERIC) / NULLIF(closed, 0), 1) AS avg_days_to_close FROM Request_Month WHERE month_start >= ? AND month_start < ? AND (opened > 0 OR closed > 0) ORDER BY month_start";
+	static final String REPORT_MONTHS_SCAN = ShopDates.WINDOW + months("SUM(opened) AS opened, SUM(closed) AS closed, SUM(billed) AS billed, ROUND(CAST(SUM(close_days) AS NUMERIC) / NULLIF(SUM(closed), 0), 1) AS avg_days_to_close", ShopDates.IN_WINDOW, " ORDER BY month_start");
+
+	/**
+	 * Method to build a query grouping the base tables by month: a request
+	 * counts as opened in the month of its date and, once closed, as closed
+	 * (with its bill and days to close) in the month of the closing date.
+	 */
+	private static String months(String aggregates, String dateFilter, String order){
+		return "SELECT month_start, " + aggregates + " FROM (" +
+			"SELECT CAST(DATE_TRUNC('MONTH', date) AS DATE) AS month_start, 1 AS opened, 0 AS closed, 0 AS billed, 0 AS close_days FROM Service_Request WHERE " + String.format(dateFilter, "date") +
+			" UNION ALL SELECT CAST(DATE_TRUNC('MONTH', c.date) AS DATE), 0, 1, c.bill, CAST(c.date - s.date AS INTEGER) FROM Closed_Request c JOIN Service_Request s ON s.rid = c.rid WHERE " + String.format(dateFilter, "c.date") +
+			") m GROUP BY month_start" + order;
+	}
+
+	/**
+	 * Method to tell whether the summary tables exist in the database of
+	 * the given connection.
+	 *
+	 * @param esql the connected shop
+	 * @return true when all the summary tables are installed
+	 * @throws java.sql.SQLException when the catalog cannot be read
+	 */
+	public static boolean isInstalled(MechanicShop esql) throws SQLException {
+		return esql.executeQueryForInt("SELECT COUNT(*) FROM information_schema.tables WHERE LOWER(table_name) IN (?, ?, ?)", BILL_TOTALS, SERVICE_COUNTS, MONTHS) == 3;
+	}
+
+	/**
+	 * Method to create the summary tables, or rebuild them if they exist,
+	 * from a full recompute of the base tables.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.lang.Exception when the tables cannot be built
+	 */
+	public static void install(MechanicShop esql) throws Exception {
+		UnitOfWork.run(esql, new UnitOfWork.Work<Void>(){
+			public Void run(MechanicShop esql) throws Exception {
+				esql.executeUpdate("CREATE TABLE IF NOT EXISTS Customer_Bill_Total(customer_id INTEGER NOT NULL PRIMARY KEY, total BIGINT NOT NULL, requests INTEGER NOT NULL)");
+				//the ranking order of report 10, which also serves its keyset pages
+				esql.executeUpdate("CREATE INDEX IF NOT EXISTS customer_bill_total_rank ON Customer_Bill_Total(total DESC, customer_id)");
+				esql.executeUpdate("CREATE TABLE IF NOT EXISTS Car_Service_Count(car_vin VARCHAR(16) NOT NULL PRIMARY KEY, services INTEGER NOT NULL)");
+				esql.executeUpdate("CREATE INDEX IF NOT EXISTS car_service_count_services ON Car_Service_Count(services DESC)");
+				esql.executeUpdate("CREATE TABLE IF NOT EXISTS Request_Month(month_start DATE NOT NULL PRIMARY KEY, opened INTEGER NOT NULL, closed INTEGER NOT NULL, billed BIGINT NOT NULL, close_days BIGINT NOT NULL)");
+				esql.executeUpdate("DELETE FROM Customer_Bill_Total");
+				esql.executeUpdate("DELETE FROM Car_Service_Count");
+				esql.executeUpdate("DELETE FROM Request_Month");
+				esql.executeUpdate("INSERT INTO Customer_Bill_Total " + esql.allHistory(RECOMPUTE_BILL_TOTALS));
+				esql.executeUpdate("INSERT INTO Car_Service_Count " + esql.allHistory(RECOMPUTE_SERVICE_COUNTS));
+				esql.executeUpdate("INSERT INTO Request_Month " + esql.allHistory(RECOMPUTE_MONTHS));
+				return null;
+			}
+		});
+		esql.setSummaryTables(true);
+	}//end install
+
+	/**
+	 * Method to drop the summary tables; the reports go back to grouping
+	 * the base tables.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.sql.SQLException when the tables cannot be dropped
+	 */
+	public static void drop(MechanicShop esql) throws SQLException {
+		esql.executeUpdate("DROP TABLE IF EXISTS Customer_Bill_Total");
+		esql.executeUpdate("DROP TABLE IF EXISTS Car_Service_Count");
+		esql.executeUpdate("DROP TABLE IF EXISTS Request_Month");
+		esql.setSummaryTables(false);
+	}
+
+	/**
+	 * Method to count a new service request of a car and of its month.
+	 * Must run in the transaction that inserted the request.
+	 *
+	 * @param esql the connected shop
+	 * @param carVin the car the request was opened for
+	 * @param opened the date of the request
+	 * @throws java.sql.SQLException when a summary row cannot be written
+	 */
+	static void requestOpened(MechanicShop esql, String carVin, LocalDate opened) throws SQLException {
+		upsert(esql, "UPDATE Car_Service_Count SET services = services + 1 WHERE car_vin = ?", "INSERT INTO Car_Service_Count VALUES(?, 1)",
+			new Object[]{ carVin }, new Object[]{ carVin });
+		LocalDate month = ShopDates.month(opened);
+		upsert(esql, "UPDATE Request_Month SET opened = opened + 1 WHERE month_start = ?", "INSERT INTO Request_Month VALUES(?, 1, 0, 0, 0)",
+			new Object[]{ month }, new Object[]{ month });
+	}
+
+	/**
+	 * Method to count many new service requests at once, in two batched
+	 * round trips per table instead of two statements per request.  Must
+	 * run in the transaction that inserted the requests.
+	 *
+	 * @param esql the connected shop
+	 * @param byCar the number of new requests of every car
+	 * @param byMonth the number of new requests opened in every month,
+	 *        keyed by the first day of the month
+	 * @throws java.sql.SQLException when a summary row cannot be written
+	 */
+	static void requestsOpened(MechanicShop esql, Map<String, Integer> byCar, Map<LocalDate, Integer> byMonth) throws SQLException {
+		upsert(esql, "UPDATE Car_Service_Count SET services = services + ? WHERE car_vin = ?", "INSERT INTO Car_Service_Count VALUES(?, ?)", byCar);
+		upsert(esql, "UPDATE Request_Month SET opened = opened + ? WHERE month_start = ?", "INSERT INTO Request_Month VALUES(?, ?, 0, 0, 0)", byMonth);
+	}
+
+	/**
+	 * Method to add to the row of a key, inserting the row when there is
+	 * none.  Two sessions may both find no row under READ COMMITTED; the
+	 * second insert then fails on the primary key once the first commits,
+	 * and is undone to a savepoint and replaced by the update, which now
+	 * finds the row.
+	 */
+	private static void upsert(MechanicShop esql, String update, String insert, Object[] updateArgs, Object[] insertArgs) throws SQLException {
+		if(esql.executeUpdate(update, updateArgs) != 0) return;
+		Connection conn = esql.getConnection();
+		Savepoint savepoint = conn.getAutoCommit() ? null : conn.setSavepoint();
+		try{
+			esql.executeUpdate(insert, insertArgs);
+		}catch(SQLException e){
+			if(!isUniqueViolation(e)) throw e;
+			if(savepoint != null) conn.rollback(savepoint);
+			esql.executeUpdate(update, updateArgs);
+			return;
+		}
+		if(savepoint != null) conn.releaseSavepoint(savepoint);
+	}
+
+	//adds each count to the row of its key, then inserts the keys that had no row
+	private static <K> void upsert(MechanicShop esql, String update, String insert, Map<K, Integer> counts) throws SQLException {
+		if(counts.isEmpty()) return;
+		List<K> keys = new ArrayList<K>(counts.keySet());
+		List<Object[]> updates = new ArrayList<Object[]>(keys.size());
+		for(K key : keys) updates.add(new Object[]{ counts.get(key), key });
+		int[] updated = esql.executeBatch(update, updates);
+		List<K> missing = new ArrayList<K>();
+		List<Object[]> inserts = new ArrayList<Object[]>();
+		for(int i = 0; i < keys.size(); ++i){
+			if(updated[i] != 0) continue;
+			missing.add(keys.get(i));
+			inserts.add(new Object[]{ keys.get(i), counts.get(keys.get(i)) });
+		}
+		if(missing.isEmpty()) return;
+		Connection conn = esql.getConnection();
+		Savepoint savepoint = conn.getAutoCommit() ? null : conn.setSavepoint();
+		try{
+			esql.executeBatch(insert, inserts);
+		}catch(SQLException e){
+			if(!isUniqueViolation(e)) throw e;
+			//another session inserted one of the keys first: redo the keys one by one
+			if(savepoint != null) conn.rollback(savepoint);
+			for(K key : missing)
+				upsert(esql, update, insert, new Object[]{ counts.get(key), key }, new Object[]{ key, counts.get(key) });
+			return;
+		}
+		if(savepoint != null) conn.releaseSavepoint(savepoint);
+	}
+
+	//a duplicate key (23505), possibly reported as the next exception of a failed batch
+	private static boolean isUniqueViolation(SQLException e){
+		for(SQLException next = e; next != null; next = next.getNextException())
+			if("23505".equals(next.getSQLState())) return true;
+		return false;
+	}
+
+	/**
+	 * Method to add the bill of a closed request to its customer's total.
+	 * Must run in the transaction that inserted the closed request.
+	 *
+	 * @param esql the connected shop
+	 * @param rid the service request that was closed
+	 * @param bill the amount billed
+	 * @param opened the date of the service request
+	 * @param closed the closing date
+	 * @throws java.sql.SQLException when a summary row cannot be written
+	 */
+	static void requestClosed(MechanicShop esql, int rid, int bill, LocalDate opened, LocalDate closed) throws SQLException {
+		upsert(esql, "UPDATE Customer_Bill_Total SET total = total + ?, requests = requests + 1 WHERE customer_id = (SELECT customer_id FROM Service_Request WHERE rid = ?)",
+			"INSERT INTO Customer_Bill_Total SELECT customer_id, ?, 1 FROM Service_Request WHERE rid = ?",
+			new Object[]{ bill, rid }, new Object[]{ bill, rid });
+		LocalDate month = ShopDates.month(closed);
+		long days = ChronoUnit.DAYS.between(opened, closed);
+		upsert(esql, "UPDATE Request_Month SET closed = closed + 1, billed = billed + ?, close_days = close_days + ? WHERE month_start = ?",
+			"INSERT INTO Request_Month VALUES(?, 0, 1, ?, ?)", new Object[]{ bill, days, month }, new Object[]{ month, bill, days });
+	}
+
+	/**
+	 * Method to compare the summary tables against a full recompute and
+	 * print the first differences found.
+	 *
+	 * @param esql the connected shop
+	 * @return true when every table matches the base tables
+	 * @throws java.sql.SQLException when a query failed
+	 */
+	public static boolean check(MechanicShop esql) throws SQLException {
+		boolean ok = true;
+		ok &= compare("Customer_Bill_Total", load(esql, esql.allHistory(RECOMPUTE_BILL_TOTALS)),
+			load(esql, "SELECT customer_id, total, requests FROM Customer_Bill_Total WHERE requests > 0"));
+		ok &= compare("Car_Service_Count", load(esql, esql.allHistory(RECOMPUTE_SERVICE_COUNTS)),
+			load(esql, "SELECT car_vin, services FROM Car_Service_Count WHERE services > 0"));
+		ok &= compare("Request_Month", load(esql, esql.allHistory(RECOMPUTE_MONTHS)),
+			load(esql, "SELECT month_start, opened, closed, billed, close_days FROM Request_Month WHERE opened > 0 OR closed > 0"));
+		return ok;
+	}//end check
+
+	private static Map<String, String> load(MechanicShop esql, String query) throws SQLException {
+		final Map<String, String> rows = new HashMap<String, String>();
+		esql.executeQueryForEach(query, new RowHandler(){
+			public void handle(ResultCursor row) throws SQLException {
+				StringBuilder value = new StringBuilder();
+				for(int i = 2; i <= row.getColumnCount(); ++i){
+					if(i > 2) value.append('\t');
+					value.append(row.getLong(i));
+				}
+				rows.put(row.getString(1).trim(), value.toString());
+			}
+		});
+		return rows;
+	}
+
+	private static boolean compare(String table, Map<String, String> expected, Map<String, String> actual){
+		int differences = 0;
+		for(Map.Entry<String, String> e : expected.entrySet()){
+			String found = actual.get(e.getKey());
+			if(!e.getValue().equals(found)){
+				if(differences++ < 10)
+					System.out.println(String.format("%s: %s is %s, expected %s", table, e.getKey(), found == null ? "missing" : found, e.getValue()));
+			}
+		}
+		for(String key : actual.keySet()){
+			if(!expected.containsKey(key) && differences++ < 10)
+				System.out.println(String.format("%s: %s is %s, expected nothing", table, key, actual.get(key)));
+		}
+		System.out.println(String.format("%-20s %s: %d row(s), %d difference(s)", table, differences == 0 ? "ok  " : "FAIL", expected.size(), differences));
+		return differences == 0;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Transactional unit of work
+ * ==========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class runs the reads and writes of one operation in a single
+ * transaction, so that the operation either happens completely or not at
+ * all and pays for one commit instead of one per statement.
+ *
+ * A unit run while the connection is already in a transaction joins it
+ * (keeping that transaction's isolation level, which must be at least
+ * the one the unit asks for), so operations compose: e.g. adding a car,
+ * its ownership and a service request commit together.
+ *
+ * A transaction aborted by a serialization failure or a deadlock is
+ * retried with a short random backoff, so the work must not have effects
+ * outside the database that cannot be repeated.  Effects that must follow
+ * the data, such as cache invalidations, are registered with afterCommit
+ * and run once the outermost transaction commits.
+ *
+ */
+public class UnitOfWork{
+	static final int MAX_ATTEMPTS = 5;
+
+	/**
+	 * The statements of a unit of work.
+	 */
+	public interface Work<T>{
+		T run(MechanicShop esql) throws Exception;
+	}
+
+	/**
+	 * Method to run work in one READ COMMITTED transaction.
+	 *
+	 * @see #run(MechanicShop, int, Work)
+	 */
+	public static <T> T run(MechanicShop esql, Work<T> work) throws Exception {
+		return run(esql, Connection.TRANSACTION_READ_COMMITTED, work);
+	}
+
+	/**
+	 * Method to run work in one transaction: commit when it returns, roll
+	 * back when it throws, retry when the database aborted it to serialize
+	 * it against concurrent transactions.
+	 *
+	 * @param esql the connection to run the work on
+	 * @param isolation a Connection.TRANSACTION_* level
+	 * @param work the statements to run
+	 * @return the result of the work
+	 * @throws java.lang.Exception the exception thrown by the work, or the
+	 *         last serialization failure once the attempts are used up
+	 * @throws java.sql.SQLException when the transaction to join has a
+	 *         weaker isolation level than the work needs
+	 */
+	public static <T> T run(MechanicShop esql, int isolation, Work<T> work) throws Exception {
+		Connection conn = esql.getConnection();
+		if(!conn.getAutoCommit()){
+			//the levels are ordered: READ_COMMITTED < REPEATABLE_READ < SERIALIZABLE
+			if(conn.getTransactionIsolation() < isolation)
+				throw new SQLException("The open transaction is weaker than the isolation level " + isolation + " this work needs");
+			return work.run(esql);
+		}
+		int previous = conn.getTransactionIsolation();
+		if(previous != isolation) conn.setTransactionIsolation(isolation);
+		conn.setAutoCommit(false);
+		try{
+			for(int attempt = 1; ; ++attempt){
+				T result;
+				try{
+					result = work.run(esql);
+					conn.commit();
+				}catch(Exception e){
+					conn.rollback();
+					dropActions(esql, 0);
+					if(attempt >= MAX_ATTEMPTS || !isSerializationFailure(e)) throw e;
+					Thread.sleep(ThreadLocalRandom.current().nextLong(1L << attempt));
+					continue;
+				}
+				committed(esql);
+				return result;
+			}//end for
+		}finally{
+			conn.setAutoCommit(true);
+			if(previous != isolation) conn.setTransactionIsolation(previous);
+		}
+	}//end run
+
+	/**
+	 * Method to run an action once the transaction the connection is in
+	 * commits, e.g. invalidating a cache entry the transaction changed:
+	 * done before the commit, a concurrent reader could load the old row
+	 * and cache it again.  In autocommit the action runs at once; a
+	 * rollback drops it.
+	 *
+	 * @param esql the connection the change was made on
+	 * @param action what to do after the commit
+	 * @throws java.sql.SQLException when the connection cannot be read
+	 */
+	public static void afterCommit(MechanicShop esql, Runnable action) throws SQLException {
+		if(esql.getConnection().getAutoCommit()) action.run();
+		else esql.afterCommitActions().add(action);
+	}
+
+	/**
+	 * @return the number of actions waiting for the commit, to drop those
+	 *         registered after a savepoint that is rolled back
+	 */
+	static int pendingActions(MechanicShop esql){
+		return esql.afterCommitActions().size();
+	}
+
+	/**
+	 * Method to drop the actions registered after the first count, once
+	 * their changes are rolled back.
+	 */
+	static void dropActions(MechanicShop esql, int count){
+		List<Runnable> actions = esql.afterCommitActions();
+		actions.subList(count, actions.size()).clear();
+	}
+
+	/**
+	 * Method to run the actions of a transaction that committed.
+	 */
+	static void committed(MechanicShop esql){
+		List<Runnable> actions = new ArrayList<Runnable>(esql.afterCommitActions());
+		esql.afterCommitActions().clear();
+		for(Runnable action : actions) action.run();
+	}
+
+	/**
+	 * @return whether the exception is a serialization failure (40001) or a
+	 *         deadlock (40P01), after which the transaction may be retried
+	 */
+	static boolean isSerializationFailure(Throwable e){
+		for(; e != null; e = e.getCause()){
+			if(e instanceof SQLException){
+				String state = ((SQLException) e).getSQLState();
+				if("40001".equals(state) || "40P01".equals(state)) return true;
+			}
+		}
+		return false;
+	}
+}
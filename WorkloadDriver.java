@@ -0,0 +1,385 @@
+/*
+ * Open-loop shop floor workload driver
+ * ====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class plays a shop floor of clerks against the database to find
+ * how many of them it serves before the latency of the operations grows.
+ *
+ * Arrivals are open loop: they come at the target rate, with exponential
+ * gaps, whether or not the sessions keep up.  Each one is queued for the
+ * next free session, and its latency counts from the moment it arrived,
+ * so the time spent waiting behind slow operations shows in the
+ * percentiles instead of silently lowering the rate.
+ *
+ * The operations are the ten of the menu, drawn from a weighted mix
+ * (DEFAULT_MIX unless given as name=weight,...) over the seed files:
+ *
+ *	- service requests pick an ownership row at random, so customers
+ *	  with many cars (id 105 has 50) come in as often as in the data,
+ *	  and a HOT_SHARE of them go to the most serviced VINs;
+ *	- requests are closed after the date they were opened, by a random
+ *	  mechanic, oldest opened by the run first;
+ *	- a DUPLICATE_SHARE of the adds and closes repeat an existing
+ *	  customer, mechanic, VIN or closed request, and are counted as
+ *	  conflicts rather than errors when the shop rejects them.
+ *
+ */
+public class WorkloadDriver{
+	static final String[] OPERATIONS = {
+		"AddCustomer", "AddMechanic", "AddCar", "InsertServiceRequest", "CloseServiceRequest",
+		"ListCustomersWithBillLessThan100", "ListCustomersWithMoreThan20Cars", "ListCarsBefore1995With50000Milles",
+		"ListKCarsWithTheMostServices", "ListCustomersInDescendingOrderOfTheirTotalBill"
+	};
+	static final String DEFAULT_MIX = "AddCustomer=2,AddMechanic=1,AddCar=2,InsertServiceRequest=40,CloseServiceRequest=35,"
+		+ "ListCustomersWithBillLessThan100=4,ListCustomersWithMoreThan20Cars=2,ListCarsBefore1995With50000Milles=4,"
+		+ "ListKCarsWithTheMostServices=5,ListCustomersInDescendingOrderOfTheirTotalBill=5";
+	static final double HOT_SHARE = 0.2;
+	//the most serviced fraction of the VINs that HOT_SHARE of the requests go to
+	static final double HOT_VINS = 0.01;
+	static final double DUPLICATE_SHARE = 0.05;
+	//how long the sessions may finish the queued arrivals after the last one
+	static final long DRAIN_MILLIS = 30000;
+
+	private final ConnectionPool pool;
+	private final Seed seed;
+	private final String[] mix;
+	private final double[] cumulative;
+	private final Map<String, Stat> stats = new LinkedHashMap<String, Stat>();
+	//requests opened by the run that are not closed yet: { rid, open date as epoch day }
+	private final ConcurrentLinkedQueue<long[]> opened = new ConcurrentLinkedQueue<long[]>();
+	private final AtomicLong unique = new AtomicLong(System.currentTimeMillis() % 1000000000L * 1000);
+
+	/**
+	 * Counters and latencies of one operation.
+	 */
+	static final class Stat{
+		final Metrics.Histogram latency = new Metrics.Histogram();
+		final LongAdder ok = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder conflicts = new LongAdder();
+	}
+
+	/**
+	 * An operation due at a point in time.
+	 */
+	private static final class Arrival{
+		final String op;
+		final long due;
+
+		Arrival(String op, long due){
+			this.op = op;
+			this.due = due;
+		}
+	}
+
+	/**
+	 * @param pool the connections of the sessions, one per session
+	 * @param dataDir the directory holding the seed csv files, as loaded
+	 * @param mix the weights of the operations, name=weight,...
+	 * @throws java.io.IOException when a seed file cannot be read
+	 */
+	public WorkloadDriver(ConnectionPool pool, File dataDir, String mix) throws IOException {
+		this.pool = pool;
+		this.seed = new Seed(dataDir);
+		Map<String, Double> weights = new LinkedHashMap<String, Double>();
+		for(String entry : mix.split(",")){
+			String[] pair = entry.split("=");
+			String op = canonical(pair[0].trim());
+			double weight = Double.parseDouble(pair[1].trim());
+			if(weight > 0) weights.put(op, weight);
+		}
+		if(weights.isEmpty()) throw new IllegalArgumentException("The mix has no operation");
+		this.mix = weights.keySet().toArray(new String[weights.size()]);
+		this.cumulative = new double[this.mix.length];
+		double total = 0;
+		for(int i = 0; i < this.mix.length; ++i){
+			total += weights.get(this.mix[i]);
+			this.cumulative[i] = total;
+			this.stats.put(this.mix[i], new Stat());
+		}
+		for(int i = 0; i < this.cumulative.length; ++i) this.cumulative[i] /= total;
+	}
+
+	private static String canonical(String name){
+		for(String op : OPERATIONS)
+			if(op.equalsIgnoreCase(name)) return op;
+		throw new IllegalArgumentException("Unknown operation in the mix: " + name);
+	}
+
+	/**
+	 * Method to drive the workload and print what it measured.
+	 *
+	 * @param seconds how long arrivals are generated
+	 * @param sessions the number of concurrent clerks
+	 * @param rate the arrivals per second
+	 * @return true when no operation failed other than on a conflict
+	 * @throws java.lang.InterruptedException when interrupted
+	 */
+	public boolean run(int seconds, int sessions, double rate) throws InterruptedException {
+		if(seconds <= 0 || sessions <= 0 || rate <= 0) throw new IllegalArgumentException("duration, sessions and rate must be positive");
+		final BlockingQueue<Arrival> arrivals = new LinkedBlockingQueue<Arrival>();
+		final Arrival stop = new Arrival(null, 0);
+		Thread[] clerks = new Thread[sessions];
+		for(int i = 0; i < sessions; ++i){
+			clerks[i] = new Thread(new Runnable(){
+				public void run(){
+					try{
+						for(Arrival a = arrivals.take(); a != stop; a = arrivals.take()) execute(a);
+					}catch(InterruptedException e){
+						//abandoned after the drain period
+					}
+				}
+			}, "clerk-" + (i + 1));
+			clerks[i].setDaemon(true);
+			clerks[i].start();
+		}
+		Random random = new Random();
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		long due = start;
+		long generated = 0;
+		long maxLag = 0;
+		while(true){
+			due += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+			if(due >= end) break;
+			long wait = due - System.nanoTime();
+			if(wait > 0) LockSupport.parkNanos(wait);
+			maxLag = Math.max(maxLag, System.nanoTime() - due);
+			arrivals.add(new Arrival(pick(random.nextDouble()), due));
+			++generated;
+		}//end while
+		long backlog = arrivals.size();
+		for(int i = 0; i < sessions; ++i) arrivals.add(stop);
+		long drainUntil = System.currentTimeMillis() + DRAIN_MILLIS;
+		for(Thread clerk : clerks){
+			clerk.join(Math.max(1, drainUntil - System.currentTimeMillis()));
+			clerk.interrupt();
+		}
+		long elapsed = System.nanoTime() - start;
+		long abandoned = 0;
+		for(Arrival a : arrivals) if(a != stop) ++abandoned;
+		return printReport(seconds, sessions, rate, generated, backlog, abandoned, maxLag, elapsed);
+	}//end run
+
+	private String pick(double u){
+		for(int i = 0; i < this.cumulative.length; ++i)
+			if(u < this.cumulative[i]) return this.mix[i];
+		return this.mix[this.mix.length - 1];
+	}
+
+	/**
+	 * Method to run one arrival on a pooled connection and record it.
+	 */
+	private void execute(Arrival a){
+		Stat stat = this.stats.get(a.op);
+		String[] op = null;
+		try{
+			MechanicShop esql = this.pool.acquire();
+			try{
+				op = operation(a.op);
+				String result = ShopCommands.execute(esql, op);
+				if(a.op.equals("InsertServiceRequest"))
+					this.opened.add(new long[]{ Long.parseLong(result.trim()), ShopDates.parse(op[3]).toEpochDay() });
+			}finally{
+				this.pool.release(esql);
+			}
+			stat.ok.increment();
+		}catch(Exception e){
+			if(isConflict(e)){
+				stat.conflicts.increment();
+			}else{
+				stat.errors.increment();
+				System.err.println(a.op + ": " + String.valueOf(e.getMessage()).trim());
+			}
+		}finally{
+			stat.latency.record(System.nanoTime() - a.due);
+		}
+	}//end execute
+
+	/**
+	 * @return whether the failure is a rejected duplicate or a lost race
+	 *         for the same row, which the shop is expected to report
+	 */
+	static boolean isConflict(Exception e){
+		for(Throwable t = e; t != null; t = t.getCause()){
+			if(t instanceof SQLException){
+				String state = ((SQLException) t).getSQLState();
+				//integrity constraint violation, serialization failure, deadlock
+				if(state != null && (state.startsWith("23") || state.equals("40001") || state.equals("40P01"))) return true;
+			}
+			String message = t.getMessage();
+			if(message != null && message.contains("already exists")) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Method to build the ShopCommands line of an operation.
+	 */
+	String[] operation(String name){
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		boolean duplicate = random.nextDouble() < DUPLICATE_SHARE;
+		if(name.equals("AddCustomer")){
+			if(duplicate) return concat(name, this.seed.customers.get(random.nextInt(this.seed.customers.size())));
+			long n = this.unique.incrementAndGet();
+			return new String[]{ name, "Clerk", "Load" + n, String.format("(%03d)%03d-%04d", n / 10000000 % 1000, n / 10000 % 1000, n % 10000), n + " Workload Road" };
+		}else if(name.equals("AddMechanic")){
+			if(duplicate) return concat(name, this.seed.mechanics.get(random.nextInt(this.seed.mechanics.size())));
+			return new String[]{ name, "Clerk", "Load" + this.unique.incrementAndGet(), String.valueOf(random.nextInt(1, 40)) };
+		}else if(name.equals("AddCar")){
+			String vin = duplicate ? this.seed.vins.get(random.nextInt(this.seed.vins.size())) : String.format("LOAD%012d", this.unique.incrementAndGet());
+			return new String[]{ name, vin, "Load", "Model", String.valueOf(random.nextInt(1980, 2017)) };
+		}else if(name.equals("InsertServiceRequest")){
+			return insertServiceRequest(random);
+		}else if(name.equals("CloseServiceRequest")){
+			long[] request = duplicate ? null : this.opened.poll();
+			//nothing opened by the run yet, or a repeat: close a request the seed closed already
+			if(request == null) return closeServiceRequest(random, this.seed.closedRids[random.nextInt(this.seed.closedRids.length)], LocalDate.of(2017, 1, 1));
+			return closeServiceRequest(random, request[0], LocalDate.ofEpochDay(request[1]).plusDays(random.nextInt(1, 15)));
+		}else if(name.equals("ListKCarsWithTheMostServices")){
+			return new String[]{ name, "10" };
+		}
+		return new String[]{ name };
+	}//end operation
+
+	private String[] insertServiceRequest(ThreadLocalRandom random){
+		String[] owns;
+		if(random.nextDouble() < HOT_SHARE){
+			List<String[]> hot = this.seed.hotOwns;
+			owns = hot.get(random.nextInt(hot.size()));
+		}else{
+			owns = this.seed.owns.get(random.nextInt(this.seed.owns.size()));
+		}
+		LocalDate date = LocalDate.now().minusDays(random.nextInt(0, 60));
+		String complain = this.seed.complains.get(random.nextInt(this.seed.complains.size()));
+		return new String[]{ "InsertServiceRequest", owns[1], owns[2], date.getMonthValue() + "/" + date.getDayOfMonth() + "/" + date.getYear(),
+			String.valueOf(random.nextInt(1000, 250000)), complain };
+	}
+
+	private String[] closeServiceRequest(ThreadLocalRandom random, long rid, LocalDate date){
+		return new String[]{ "CloseServiceRequest", String.valueOf(rid), this.seed.mechanicIds[random.nextInt(this.seed.mechanicIds.length)],
+			date.getMonthValue() + "/" + date.getDayOfMonth() + "/" + date.getYear(), "Closed by the workload", String.valueOf(random.nextInt(20, 1000)) };
+	}
+
+	private static String[] concat(String name, String[] fields){
+		String[] op = new String[fields.length + 1];
+		op[0] = name;
+		System.arraycopy(fields, 0, op, 1, fields.length);
+		return op;
+	}
+
+	private boolean printReport(int seconds, int sessions, double rate, long generated, long backlog, long abandoned, long maxLag, long elapsed){
+		System.out.println(String.format("%d session(s), %.1f op/s offered for %ds: %d arrival(s), %d queued at the end, %d abandoned, generator lag up to %.3fms",
+			sessions, rate, seconds, generated, backlog, abandoned, maxLag / 1e6));
+		System.out.println(String.format("%-48s %8s %8s %9s %8s %9s %9s %9s %9s %9s", "operation", "ok", "errors", "conflicts", "op/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		long ok = 0, errors = 0, conflicts = 0;
+		for(Map.Entry<String, Stat> e : this.stats.entrySet()){
+			Stat s = e.getValue();
+			Metrics.Histogram h = s.latency;
+			System.out.println(String.format("%-48s %8d %8d %9d %8.1f %9.3f %9.3f %9.3f %9.3f %9.3f", e.getKey(), s.ok.sum(), s.errors.sum(), s.conflicts.sum(),
+				h.getCount() / (elapsed / 1e9), h.percentile(0.5) / 1e6, h.percentile(0.9) / 1e6, h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6, h.getMax() / 1e6));
+			ok += s.ok.sum();
+			errors += s.errors.sum();
+			conflicts += s.conflicts.sum();
+		}
+		System.out.println(String.format("total %d ok, %d error(s), %d conflict(s) in %.3fs (%.1f op/s achieved); %s",
+			ok, errors, conflicts, elapsed / 1e9, (ok + errors + conflicts) / (elapsed / 1e9), this.pool));
+		return errors == 0 && abandoned == 0;
+	}
+
+	/**
+	 * The rows of the seed files the operations draw from.
+	 */
+	static final class Seed{
+		//{ fname, lname, phone, address } and { fname, lname, experience }
+		final List<String[]> customers = new ArrayList<String[]>();
+		final List<String[]> mechanics = new ArrayList<String[]>();
+		final List<String> vins = new ArrayList<String>();
+		//{ ownership_id, customer_id, vin }, all of them and those of the hot VINs
+		final List<String[]> owns = new ArrayList<String[]>();
+		final List<String[]> hotOwns = new ArrayList<String[]>();
+		final List<String> complains = new ArrayList<String>();
+		final String[] mechanicIds;
+		final long[] closedRids;
+
+		Seed(File dir) throws IOException {
+			List<String> mechanicIds = new ArrayList<String>();
+			for(String[] row : read(new File(dir, "customer.csv"), 5))
+				this.customers.add(new String[]{ row[1], row[2], row[3], row[4] });
+			for(String[] row : read(new File(dir, "mechanic.csv"), 4)){
+				this.mechanics.add(new String[]{ row[1], row[2], row[3] });
+				mechanicIds.add(row[0]);
+			}
+			this.mechanicIds = mechanicIds.toArray(new String[mechanicIds.size()]);
+			for(String[] row : read(new File(dir, "car.csv"), 4)) this.vins.add(row[0]);
+			this.owns.addAll(read(new File(dir, "owns.csv"), 3));
+			final Map<String, Integer> services = new HashMap<String, Integer>();
+			for(String[] row : read(new File(dir, "service_request.csv"), 6)){
+				Integer count = services.get(row[2]);
+				services.put(row[2], count == null ? 1 : count + 1);
+				if(this.complains.size() < 1000) this.complains.add(row[5]);
+			}
+			List<String> byServices = new ArrayList<String>(services.keySet());
+			Collections.sort(byServices, new Comparator<String>(){
+				public int compare(String a, String b){
+					return services.get(b) - services.get(a);
+				}
+			});
+			Set<String> hot = new HashSet<String>(byServices.subList(0, Math.max(1, (int) (byServices.size() * HOT_VINS))));
+			for(String[] row : this.owns) if(hot.contains(row[2])) this.hotOwns.add(row);
+			if(this.hotOwns.isEmpty()) this.hotOwns.addAll(this.owns);
+			List<String[]> closed = read(new File(dir, "closed_request.csv"), 6);
+			this.closedRids = new long[closed.size()];
+			for(int i = 0; i < this.closedRids.length; ++i) this.closedRids[i] = Long.parseLong(closed.get(i)[1]);
+			if(this.customers.isEmpty() || this.mechanicIds.length == 0 || this.owns.isEmpty() || this.closedRids.length == 0 || this.complains.isEmpty())
+				throw new IOException("The seed files in " + dir + " are missing or empty");
+		}
+
+		private static List<String[]> read(File file, int numCol) throws IOException {
+			List<String[]> rows = new ArrayList<String[]>();
+			if(!file.exists()) return rows;
+			BufferedReader in = new BufferedReader(new FileReader(file), 1 << 16);
+			try{
+				String line;
+				while((line = in.readLine()) != null){
+					String[] fields = BulkLoader.splitLine(line, numCol);
+					if(fields != null) rows.add(fields);
+				}
+			}finally{
+				in.close();
+			}
+			return rows;
+		}
+	}
+}
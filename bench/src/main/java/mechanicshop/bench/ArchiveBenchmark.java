@@ -0,0 +1,153 @@
+package mechanicshop.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The recent activity of the front desk (opening and closing a request,
+ * the requests of last month, the bills of the last months) on a history
+ * of 1, 10 or 100 years, the seed year repeated further back.  With
+ * archived=true everything before the last two months of the seed year is
+ * first moved to the request archive, so only the hot tables should be
+ * read and the times should not grow with the history.
+ *
+ * The database is migrated, so both variants have the date indexes; the
+ * summary tables are not installed, so the monthly report groups the
+ * requests.  Every trial runs in its own fork, as the id allocators are
+ * static.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArchiveBenchmark{
+
+	// customer 0 owns this car in the seed data and in every copy 0
+	static final String OWNER = "0";
+	static final String OWNED_VIN = "XEGUBS7780168971";
+	// the first day kept hot: the last two months of the seed year
+	static final LocalDate CUTOFF = LocalDate.of(2016, 11, 1);
+
+	/**
+	 * A migrated embedded database holding scale years of history.
+	 */
+	@State(Scope.Benchmark)
+	public static class History{
+
+		@Param({ "1", "10", "100" })
+		public int scale;
+
+		@Param({ "false", "true" })
+		public boolean archived;
+
+		String url;
+		private Connection keepAlive;
+
+		@Setup(Level.Trial)
+		public void seed() throws Exception {
+			this.url = "jdbc:h2:mem:history" + this.scale + ";MODE=PostgreSQL;NON_KEYWORDS=YEAR,DATE,VALUE;DB_CLOSE_DELAY=-1";
+			this.keepAlive = DriverManager.getConnection(this.url, "sa", "");
+			Statement stmt = this.keepAlive.createStatement();
+			try{
+				stmt.execute("DROP ALL OBJECTS");
+			}finally{
+				stmt.close();
+			}
+			Shop shop = new Shop(this.keepAlive);
+			PrintStream out = System.out;
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+			try{
+				shop.migrate();
+				Shop.load(this.keepAlive, ScaledData.history(EmbeddedDatabase.seedDir(), this.scale));
+				if(this.archived){
+					shop.archive(CUTOFF);
+				}
+			}finally{
+				System.setOut(out);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void drop() throws Exception {
+			Statement stmt = this.keepAlive.createStatement();
+			try{
+				stmt.execute("DROP ALL OBJECTS");
+			}finally{
+				stmt.close();
+				this.keepAlive.close();
+			}
+		}
+	}
+
+	/**
+	 * One benchmark thread's connection, with a request of its own that
+	 * closeServiceRequest can close over and over.
+	 */
+	@State(Scope.Thread)
+	public static class Desk{
+		Shop shop;
+		String rid;
+		private Connection connection;
+		private PrintStream out;
+
+		@Setup(Level.Trial)
+		public void open(History history) throws Exception {
+			this.connection = DriverManager.getConnection(history.url, "sa", "");
+			this.shop = new Shop(this.connection);
+			this.out = System.out;
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+			this.rid = this.shop.command("InsertServiceRequest", OWNER, OWNED_VIN, "2016-12-20", "1000", "benchmark");
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws Exception {
+			System.setOut(this.out);
+			this.connection.close();
+		}
+	}
+
+	@Benchmark
+	public String insertServiceRequest(Desk d) throws Exception {
+		return d.shop.command("InsertServiceRequest", OWNER, OWNED_VIN, "2016-12-20", "1000", "benchmark");
+	}
+
+	/**
+	 * Includes reopening the request (one DELETE) so the same request can be
+	 * closed again.
+	 */
+	@Benchmark
+	public String closeServiceRequest(Desk d) throws Exception {
+		d.shop.executeUpdate("DELETE FROM Closed_Request WHERE rid = ?", Integer.valueOf(d.rid));
+		return d.shop.command("CloseServiceRequest", d.rid, "0", "2016-12-28", "benchmark", "50");
+	}
+
+	@Benchmark
+	public String listRequestsOpenedLastMonth(Desk d) throws Exception {
+		return d.shop.command("ListRequestsOpenedBetween", "12/1/2016", "12/31/2016");
+	}
+
+	@Benchmark
+	public String listMonthlyBillsOfLastTwoMonths(Desk d) throws Exception {
+		return d.shop.command("ListMonthlyBills", "11/1/2016", "12/1/2016");
+	}
+}
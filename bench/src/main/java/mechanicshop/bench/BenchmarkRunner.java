@@ -0,0 +1,26 @@
+package mechanicshop.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler always on, so every result comes
+ * with its allocation rate (gc.alloc.rate.norm is bytes per operation).
+ * Accepts the usual JMH command line, e.g. "-p scale=1 MenuOperation".
+ */
+public final class BenchmarkRunner{
+
+	private BenchmarkRunner(){
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,69 @@
+package mechanicshop.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A service request for a car the customer brings in for the first time,
+ * before and after the unit of work: as three operations each committing
+ * on its own (car, ownership, request), and as one transaction, with the
+ * commit waiting for the log flush or not (commit=async).  Several threads
+ * commit at once so the asynchronous mode can batch their log flushes.
+ *
+ * The embedded database does not flush a log on commit, so the difference
+ * it shows is the round trips only; run with -Dmechanicshop.url pointing at
+ * PostgreSQL to see the commits per second that the disk allows.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class CommitBenchmark{
+
+	private static final AtomicLong UNIQUE = new AtomicLong(System.nanoTime());
+
+	@State(Scope.Thread)
+	public static class CommitMode{
+		@Param({ "sync", "async" })
+		public String commit;
+
+		@Setup(Level.Trial)
+		public void apply(Session s) throws Exception {
+			s.shop.setAsynchronousCommit(this.commit.equals("async"));
+		}
+	}
+
+	//16 character VINs no seed car uses
+	private static String vin(){
+		return String.format("U%015d", UNIQUE.incrementAndGet() % 1000000000000000L);
+	}
+
+	@Benchmark
+	public String separateCommits(Session s, CommitMode mode) throws Exception {
+		String vin = vin();
+		s.shop.command("AddCar", vin, "Bench", "Commit", "2015");
+		s.shop.command("AddOwnership", MenuOperationBenchmark.OWNER, vin);
+		return s.shop.command("InsertServiceRequest", MenuOperationBenchmark.OWNER, vin, "2017-01-01", "1000", "benchmark");
+	}
+
+	@Benchmark
+	public String unitOfWork(Session s, CommitMode mode) throws Exception {
+		return s.shop.command("InsertServiceRequestForNewCar", MenuOperationBenchmark.OWNER, vin(), "Bench", "Commit", "2015", "2017-01-01", "1000", "benchmark");
+	}
+}
@@ -0,0 +1,103 @@
+package mechanicshop.bench;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Scanner;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * An in-memory H2 database in PostgreSQL mode, seeded from data/*.csv at 1x,
+ * 10x or 100x the seed size.  It stands in for the shop's PostgreSQL server
+ * so the benchmarks run on any machine.
+ *
+ * The seed directory is taken from -Dmechanicshop.data, then ./data, then
+ * ../data.
+ *
+ * With -Dmechanicshop.url (and -Dmechanicshop.user, -Dmechanicshop.password)
+ * the benchmarks run against that database instead, e.g. a real PostgreSQL
+ * server for numbers that include its log flushes.  It must already hold
+ * the shop schema and data; the scale parameter is then only a label.
+ */
+@State(Scope.Benchmark)
+public class EmbeddedDatabase{
+
+	@Param({ "1", "10", "100" })
+	public int scale;
+
+	String url;
+	private String user = "sa";
+	private String password = "";
+	private Connection keepAlive;
+
+	@Setup(Level.Trial)
+	public void seed() throws Exception {
+		String external = System.getProperty("mechanicshop.url");
+		if(external != null){
+			this.url = external;
+			this.user = System.getProperty("mechanicshop.user", System.getProperty("user.name"));
+			this.password = System.getProperty("mechanicshop.password", "");
+			return;
+		}
+		this.url = "jdbc:h2:mem:shop" + this.scale + ";MODE=PostgreSQL;NON_KEYWORDS=YEAR,DATE,VALUE;DB_CLOSE_DELAY=-1";
+		this.keepAlive = DriverManager.getConnection(this.url, this.user, this.password);
+		Statement stmt = this.keepAlive.createStatement();
+		try{
+			stmt.execute("DROP ALL OBJECTS");
+			for(String ddl : schema().split(";")){
+				if(!ddl.trim().isEmpty()){
+					stmt.execute(ddl);
+				}
+			}
+		}finally{
+			stmt.close();
+		}
+		File seed = seedDir();
+		Shop.load(this.keepAlive, this.scale == 1 ? seed : ScaledData.write(seed, this.scale));
+		new Shop(this.keepAlive).createIdSequences();
+	}
+
+	@TearDown(Level.Trial)
+	public void drop() throws Exception {
+		if(this.keepAlive == null) return;
+		Statement stmt = this.keepAlive.createStatement();
+		try{
+			stmt.execute("DROP ALL OBJECTS");
+		}finally{
+			stmt.close();
+			this.keepAlive.close();
+		}
+	}
+
+	Connection connect() throws Exception {
+		return DriverManager.getConnection(this.url, this.user, this.password);
+	}
+
+	static File seedDir(){
+		String configured = System.getProperty("mechanicshop.data");
+		if(configured != null){
+			return new File(configured);
+		}
+		File here = new File("data");
+		return here.isDirectory() ? here : new File("../data");
+	}
+
+	private static String schema(){
+		InputStream in = EmbeddedDatabase.class.getResourceAsStream("/schema.sql");
+		Scanner scanner = new Scanner(in, StandardCharsets.UTF_8.name()).useDelimiter("\\A");
+		try{
+			return scanner.hasNext() ? scanner.next() : "";
+		}finally{
+			scanner.close();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package mechanicshop.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ten menu operations, driven through ShopCommands instead of the
+ * prompts.  The inserting operations use fresh names and VINs on every call
+ * so their duplicate checks always pass.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MenuOperationBenchmark{
+
+	// customer 0 owns this car in the seed data (and in every scaled copy 0)
+	static final String OWNER = "0";
+	static final String OWNED_VIN = "XEGUBS7780168971";
+
+	private static final AtomicLong UNIQUE = new AtomicLong();
+
+	/**
+	 * A service request of this thread's own that CloseServiceRequest can
+	 * close over and over.
+	 */
+	@State(Scope.Thread)
+	public static class OpenRequest{
+		String rid;
+
+		@Setup(Level.Trial)
+		public void open(Session s) throws Exception {
+			this.rid = s.shop.command("InsertServiceRequest", OWNER, OWNED_VIN, "2017-01-01", "1000", "benchmark");
+		}
+	}
+
+	private static String unique(){
+		return "b" + UNIQUE.incrementAndGet();
+	}
+
+	@Benchmark
+	public String addCustomer(Session s) throws Exception {
+		return s.shop.command("AddCustomer", unique(), "Bench", "(000)000-0000", "1 Bench Street");
+	}
+
+	@Benchmark
+	public String addMechanic(Session s) throws Exception {
+		return s.shop.command("AddMechanic", unique(), "Bench", "5");
+	}
+
+	@Benchmark
+	public String addCar(Session s) throws Exception {
+		return s.shop.command("AddCar", String.format("BENCH%011d", UNIQUE.incrementAndGet()), "Bench", "Mark I", "2010");
+	}
+
+	@Benchmark
+	public String insertServiceRequest(Session s) throws Exception {
+		return s.shop.command("InsertServiceRequest", OWNER, OWNED_VIN, "2017-01-01", "1000", "benchmark");
+	}
+
+	/**
+	 * Includes reopening the request (one DELETE) so the same request can be
+	 * closed again.
+	 */
+	@Benchmark
+	public String closeServiceRequest(Session s, OpenRequest r) throws Exception {
+		s.shop.executeUpdate("DELETE FROM Closed_Request WHERE rid = ?", Integer.valueOf(r.rid));
+		return s.shop.command("CloseServiceRequest", r.rid, "0", "2017-02-01", "benchmark", "50");
+	}
+
+	@Benchmark
+	public String listCustomersWithBillLessThan100(Session s) throws Exception {
+		return s.shop.command("ListCustomersWithBillLessThan100");
+	}
+
+	@Benchmark
+	public String listCustomersWithMoreThan20Cars(Session s) throws Exception {
+		return s.shop.command("ListCustomersWithMoreThan20Cars");
+	}
+
+	@Benchmark
+	public String listCarsBefore1995With50000Milles(Session s) throws Exception {
+		return s.shop.command("ListCarsBefore1995With50000Milles");
+	}
+
+	@Benchmark
+	public String listKCarsWithTheMostServices(Session s) throws Exception {
+		return s.shop.command("ListKCarsWithTheMostServices", "10");
+	}
+
+	@Benchmark
+	public String listCustomersInDescendingOrderOfTheirTotalBill(Session s) throws Exception {
+		return s.shop.command("ListCustomersInDescendingOrderOfTheirTotalBill");
+	}
+}
@@ -0,0 +1,76 @@
+package mechanicshop.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The MechanicShop query helpers, each in its concatenated SQL form and its
+ * cached, parameterized form, on the same statements.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryHelperBenchmark{
+
+	static final int CUSTOMER = 105;
+
+	@Benchmark
+	public void executeUpdate(Session s) throws Exception {
+		s.shop.executeUpdate("UPDATE Customer SET phone = phone WHERE id = " + CUSTOMER);
+	}
+
+	@Benchmark
+	public int executeUpdateParameterized(Session s) throws Exception {
+		return s.shop.executeUpdate("UPDATE Customer SET phone = phone WHERE id = ?", CUSTOMER);
+	}
+
+	@Benchmark
+	public int executeQuery(Session s) throws Exception {
+		return s.shop.executeQuery("SELECT * FROM Customer WHERE id = " + CUSTOMER);
+	}
+
+	@Benchmark
+	public int executeQueryParameterized(Session s) throws Exception {
+		return s.shop.executeQuery("SELECT * FROM Customer WHERE id = ?", CUSTOMER);
+	}
+
+	@Benchmark
+	public List<List<String>> executeQueryAndReturnResult(Session s) throws Exception {
+		return s.shop.executeQueryAndReturnResult("SELECT * FROM Service_Request WHERE customer_id = " + CUSTOMER);
+	}
+
+	@Benchmark
+	public List<List<String>> executeQueryAndReturnResultParameterized(Session s) throws Exception {
+		return s.shop.executeQueryAndReturnResult("SELECT * FROM Service_Request WHERE customer_id = ?", CUSTOMER);
+	}
+
+	@Benchmark
+	public int executeQueryAndPrintResult(Session s) throws Exception {
+		return s.shop.executeQueryAndPrintResult("SELECT * FROM Service_Request WHERE customer_id = " + CUSTOMER);
+	}
+
+	@Benchmark
+	public int executeQueryAndPrintResultParameterized(Session s) throws Exception {
+		return s.shop.executeQueryAndPrintResult("SELECT * FROM Service_Request WHERE customer_id = ?", CUSTOMER);
+	}
+
+	@Benchmark
+	public int executeQueryForEach(Session s) throws Exception {
+		return s.shop.executeQueryForEach("SELECT * FROM Service_Request WHERE customer_id = ?", CUSTOMER);
+	}
+
+	@Benchmark
+	public int executeQueryForInt(Session s) throws Exception {
+		return s.shop.executeQueryForInt("SELECT COUNT(*) FROM Owns WHERE customer_id = ?", CUSTOMER);
+	}
+}
@@ -0,0 +1,133 @@
+package mechanicshop.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a copy of the seed files scale times larger.  Copy c of every row
+ * shifts its integer keys by c times the key range of the seed file and
+ * lowercases a two letter code into the VIN, so the copies never collide
+ * with each other or with the (upper case) seed VINs, and every foreign key
+ * points into its own copy.
+ *
+ * The history variant also moves the request dates of copy c c years back,
+ * so the data grows the way a shop's does: the same year of business
+ * repeated further into the past instead of a busier year.
+ */
+final class ScaledData{
+
+	private ScaledData(){
+	}
+
+	static File write(File seedDir, int scale) throws IOException {
+		return write(seedDir, scale, false);
+	}
+
+	static File history(File seedDir, int scale) throws IOException {
+		return write(seedDir, scale, true);
+	}
+
+	private static File write(File seedDir, int scale, boolean history) throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"), (history ? "mechanicshop-h" : "mechanicshop-x") + scale);
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("Cannot create " + dir);
+		}
+		int customers = range(seedDir, "customer.csv", 0);
+		int mechanics = range(seedDir, "mechanic.csv", 0);
+		int owns = range(seedDir, "owns.csv", 0);
+		int requests = range(seedDir, "service_request.csv", 0);
+		int closed = range(seedDir, "closed_request.csv", 0);
+		// column kinds: k = key shifted by the given range, v = VIN, d = date moved back a year per copy, anything else is copied
+		String date = history ? "d" : "";
+		scale(seedDir, dir, "customer.csv", scale, new String[] { "k", "", "", "", "" }, new int[] { customers });
+		scale(seedDir, dir, "mechanic.csv", scale, new String[] { "k", "", "", "" }, new int[] { mechanics });
+		scale(seedDir, dir, "car.csv", scale, new String[] { "v", "", "", "" }, new int[] { 0 });
+		scale(seedDir, dir, "owns.csv", scale, new String[] { "k", "k", "v" }, new int[] { owns, customers, 0 });
+		scale(seedDir, dir, "service_request.csv", scale, new String[] { "k", "k", "v", date, "", "" }, new int[] { requests, customers, 0, 0, 0, 0 });
+		scale(seedDir, dir, "closed_request.csv", scale, new String[] { "k", "k", "k", date, "", "" }, new int[] { closed, requests, mechanics, 0, 0, 0 });
+		return dir;
+	}
+
+	/**
+	 * @return one more than the largest value of an integer column
+	 */
+	private static int range(File dir, String file, int column) throws IOException {
+		int max = -1;
+		for(String[] row : rows(new File(dir, file))){
+			max = Math.max(max, Integer.parseInt(row[column].trim()));
+		}
+		return max + 1;
+	}
+
+	private static void scale(File seedDir, File dir, String file, int scale, String[] kinds, int[] ranges) throws IOException {
+		List<String[]> rows = rows(new File(seedDir, file));
+		BufferedWriter out = new BufferedWriter(new FileWriter(new File(dir, file)), 1 << 16);
+		try{
+			for(int copy = 0; copy < scale; copy++){
+				for(String[] row : rows){
+					for(int i = 0; i < row.length; i++){
+						if(i > 0){
+							out.write(',');
+						}
+						if(kinds[i].equals("k")){
+							out.write(Long.toString(Long.parseLong(row[i].trim()) + (long) copy * ranges[i]));
+						} else if(kinds[i].equals("v")){
+							out.write(vin(row[i].trim(), copy));
+						} else if(kinds[i].equals("d")){
+							out.write(yearsBack(row[i].trim(), copy));
+						}else{
+							out.write(row[i]);
+						}
+					}
+					out.write('\n');
+				}
+			}
+		}finally{
+			out.close();
+		}
+	}
+
+	static String vin(String vin, int copy){
+		if(copy == 0){
+			return vin;
+		}
+		return "" + (char) ('a' + copy / 26 % 26) + (char) ('a' + copy % 26) + vin.substring(2);
+	}
+
+	/**
+	 * @return a seed file date ("M/D/YYYY hh:mm") moved back years years,
+	 *         February 29 becoming the 28th
+	 */
+	static String yearsBack(String date, int years){
+		if(years == 0){
+			return date;
+		}
+		int space = date.indexOf(' ');
+		String[] mdy = (space < 0 ? date : date.substring(0, space)).split("/");
+		LocalDate moved = LocalDate.of(Integer.parseInt(mdy[2]), Integer.parseInt(mdy[0]), Integer.parseInt(mdy[1])).minusYears(years);
+		return moved.getMonthValue() + "/" + moved.getDayOfMonth() + "/" + moved.getYear() + (space < 0 ? "" : date.substring(space));
+	}
+
+	private static List<String[]> rows(File file) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try{
+			String line;
+			while((line = in.readLine()) != null){
+				if(!line.trim().isEmpty()){
+					rows.add(line.split(",", -1));
+				}
+			}
+		}finally{
+			in.close();
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,44 @@
+package mechanicshop.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * One benchmark thread's connection to the embedded database, wrapped in a
+ * MechanicShop.  Standard out is silenced for the trial because the print
+ * helpers write every row to it.
+ */
+@State(Scope.Thread)
+public class Session{
+
+	Shop shop;
+	private Connection connection;
+	private PrintStream out;
+
+	@Setup(Level.Trial)
+	public void open(EmbeddedDatabase db) throws Exception {
+		this.connection = db.connect();
+		this.shop = new Shop(this.connection);
+		this.out = System.out;
+		System.setOut(new PrintStream(new OutputStream(){
+			public void write(int b){
+			}
+
+			public void write(byte[] b, int off, int len){
+			}
+		}));
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		System.setOut(this.out);
+		this.connection.close();
+	}
+}
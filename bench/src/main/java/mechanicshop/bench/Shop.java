@@ -0,0 +1,186 @@
+package mechanicshop.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.List;
+
+/**
+ * Bridge to the shop classes.  They live in the default package, which a
+ * named package (and JMH requires one) cannot import, so every call goes
+ * through reflection.  The Method objects are resolved once; the per call
+ * cost is small next to a database round trip.
+ */
+final class Shop{
+	static final Class<?> MECHANIC_SHOP = type("MechanicShop");
+	static final Class<?> SHOP_COMMANDS = type("ShopCommands");
+	static final Class<?> BULK_LOADER = type("BulkLoader");
+	static final Class<?> ROW_HANDLER = type("RowHandler");
+	static final Class<?> SCHEMA_MIGRATIONS = type("SchemaMigrations");
+	static final Class<?> REQUEST_ARCHIVE = type("RequestArchive");
+	static final Object[] NO_ARGS = new Object[0];
+
+	private static final Method EXECUTE_UPDATE = method(MECHANIC_SHOP, "executeUpdate", String.class);
+	private static final Method EXECUTE_UPDATE_ARGS = method(MECHANIC_SHOP, "executeUpdate", String.class, Object[].class);
+	private static final Method EXECUTE_QUERY = method(MECHANIC_SHOP, "executeQuery", String.class);
+	private static final Method EXECUTE_QUERY_ARGS = method(MECHANIC_SHOP, "executeQuery", String.class, Object[].class);
+	private static final Method RETURN_RESULT = method(MECHANIC_SHOP, "executeQueryAndReturnResult", String.class);
+	private static final Method RETURN_RESULT_ARGS = method(MECHANIC_SHOP, "executeQueryAndReturnResult", String.class, Object[].class);
+	private static final Method PRINT_RESULT = method(MECHANIC_SHOP, "executeQueryAndPrintResult", String.class);
+	private static final Method PRINT_RESULT_ARGS = method(MECHANIC_SHOP, "executeQueryAndPrintResult", String.class, Object[].class);
+	private static final Method FOR_EACH = method(MECHANIC_SHOP, "executeQueryForEach", String.class, ROW_HANDLER, Object[].class);
+	private static final Method FOR_INT = method(MECHANIC_SHOP, "executeQueryForInt", String.class, Object[].class);
+	private static final Method COMMAND = method(SHOP_COMMANDS, "execute", MECHANIC_SHOP, String[].class);
+	private static final Method ASYNC_COMMIT = method(MECHANIC_SHOP, "setAsynchronousCommit", boolean.class);
+	private static final Method GET_STRING = method(type("ResultCursor"), "getString", int.class);
+	private static final Object FIRST_COLUMN = Proxy.newProxyInstance(ROW_HANDLER.getClassLoader(), new Class<?>[] { ROW_HANDLER }, new InvocationHandler(){
+		public Object invoke(Object proxy, Method m, Object[] a) throws Throwable {
+			if(m.getName().equals("handle")){
+				call(GET_STRING, a[0], 1);
+				return null;
+			}
+			return m.invoke(this, a);
+		}
+	});
+
+	private final Object esql;
+
+	Shop(Connection connection){
+		try{
+			java.lang.reflect.Constructor<?> ctor = MECHANIC_SHOP.getDeclaredConstructor(Connection.class);
+			ctor.setAccessible(true);
+			this.esql = ctor.newInstance(connection);
+		}catch(ReflectiveOperationException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	void executeUpdate(String sql) throws Exception {
+		call(EXECUTE_UPDATE, this.esql, sql);
+	}
+
+	int executeUpdate(String sql, Object... args) throws Exception {
+		return (Integer) call(EXECUTE_UPDATE_ARGS, this.esql, sql, args);
+	}
+
+	int executeQuery(String query) throws Exception {
+		return (Integer) call(EXECUTE_QUERY, this.esql, query);
+	}
+
+	int executeQuery(String query, Object... args) throws Exception {
+		return (Integer) call(EXECUTE_QUERY_ARGS, this.esql, query, args);
+	}
+
+	@SuppressWarnings("unchecked")
+	List<List<String>> executeQueryAndReturnResult(String query) throws Exception {
+		return (List<List<String>>) call(RETURN_RESULT, this.esql, query);
+	}
+
+	@SuppressWarnings("unchecked")
+	List<List<String>> executeQueryAndReturnResult(String query, Object... args) throws Exception {
+		return (List<List<String>>) call(RETURN_RESULT_ARGS, this.esql, query, args);
+	}
+
+	int executeQueryAndPrintResult(String query) throws Exception {
+		return (Integer) call(PRINT_RESULT, this.esql, query);
+	}
+
+	int executeQueryAndPrintResult(String query, Object... args) throws Exception {
+		return (Integer) call(PRINT_RESULT_ARGS, this.esql, query, args);
+	}
+
+	/**
+	 * Streams a query through executeQueryForEach with a handler that only
+	 * reads the first column of every row.
+	 */
+	int executeQueryForEach(String query, Object... args) throws Exception {
+		return (Integer) call(FOR_EACH, this.esql, query, FIRST_COLUMN, args);
+	}
+
+	int executeQueryForInt(String query, Object... args) throws Exception {
+		return (Integer) call(FOR_INT, this.esql, query, args);
+	}
+
+	/**
+	 * Runs one menu operation through ShopCommands, i.e. without the
+	 * interactive prompts but with the same validation.
+	 */
+	String command(String... op) throws Exception {
+		return (String) call(COMMAND, null, this.esql, op);
+	}
+
+	/**
+	 * Stops (or resumes) waiting for the log flush on commit; PostgreSQL only.
+	 */
+	void setAsynchronousCommit(boolean async) throws Exception {
+		call(ASYNC_COMMIT, this.esql, async);
+	}
+
+	/**
+	 * Creates the shop schema with its indexes through SchemaMigrations.
+	 */
+	void migrate() throws Exception {
+		call(method(SCHEMA_MIGRATIONS, "migrate", MECHANIC_SHOP), null, this.esql);
+	}
+
+	/**
+	 * Creates the sequences of the id allocators past the keys loaded, as
+	 * migration 7 does.
+	 */
+	void createIdSequences() throws Exception {
+		call(method(SCHEMA_MIGRATIONS, "createIdSequences", MECHANIC_SHOP), null, this.esql);
+	}
+
+	/**
+	 * Moves the closed months before the cutoff to the request archive.
+	 *
+	 * @return the number of requests archived
+	 */
+	int archive(java.time.LocalDate cutoff) throws Exception {
+		return (Integer) call(method(REQUEST_ARCHIVE, "archive", MECHANIC_SHOP, java.time.LocalDate.class), null, this.esql, cutoff);
+	}
+
+	/**
+	 * Seeds the database from a directory of csv files with the batched
+	 * insert path of BulkLoader.
+	 */
+	static void load(Connection connection, java.io.File dir) throws Exception {
+		java.lang.reflect.Constructor<?> ctor = BULK_LOADER.getDeclaredConstructor(Connection.class);
+		Object loader = ctor.newInstance(connection);
+		call(method(BULK_LOADER, "setBatchSize", int.class), loader, 5000);
+		call(method(BULK_LOADER, "setCommitInterval", int.class), loader, 50000);
+		call(method(BULK_LOADER, "loadAll", java.io.File.class), loader, dir);
+	}
+
+	static Class<?> type(String name){
+		try{
+			return Class.forName(name);
+		}catch(ClassNotFoundException e){
+			throw new IllegalStateException("MechanicShop classes are not on the class path", e);
+		}
+	}
+
+	static Method method(Class<?> type, String name, Class<?>... params){
+		try{
+			Method m = type.getDeclaredMethod(name, params);
+			m.setAccessible(true);
+			return m;
+		}catch(NoSuchMethodException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static Object call(Method m, Object target, Object... args) throws Exception {
+		try{
+			return m.invoke(target, args);
+		}catch(InvocationTargetException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof Exception){
+				throw (Exception) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+}
@@ -0,0 +1,6 @@
+CREATE TABLE Customer(id INTEGER PRIMARY KEY, fname CHAR(32), lname CHAR(32), phone CHAR(13), address CHAR(256));
+CREATE TABLE Mechanic(id INTEGER PRIMARY KEY, fname CHAR(32), lname CHAR(32), experience INTEGER);
+CREATE TABLE Car(vin VARCHAR(16) PRIMARY KEY, make VARCHAR(32), model VARCHAR(32), year INTEGER);
+CREATE TABLE Owns(ownership_id INTEGER PRIMARY KEY, customer_id INTEGER REFERENCES Customer(id), car_vin VARCHAR(16) REFERENCES Car(vin));
+CREATE TABLE Service_Request(rid INTEGER PRIMARY KEY, customer_id INTEGER REFERENCES Customer(id), car_vin VARCHAR(16) REFERENCES Car(vin), date DATE, odometer INTEGER, complain TEXT);
+CREATE TABLE Closed_Request(wid INTEGER PRIMARY KEY, rid INTEGER REFERENCES Service_Request(rid), mid INTEGER REFERENCES Mechanic(id), date DATE, comment TEXT, bill INTEGER);